@@ -0,0 +1,105 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link AccessLogger} throughput, from events being handed to it until 
+ * they are in the access_log table, for a few batch sizes.
+ * 
+ * @author dfraser
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccessLoggerBenchmark {
+
+	private static final int EVENTS = 1000;
+	
+	@Param({"1", "50", "200"})
+	public int batchSize;
+	
+	private Session session;
+	private AccessLogger logger;
+	private DoorAccessEvent[] events;
+	
+	@Setup
+	public void setUp() throws Exception {
+		Properties properties = BenchSupport.properties("logger"+batchSize);
+		properties.setProperty("accessLogBatchSize", Integer.toString(batchSize));
+		properties.setProperty("accessLogQueueSize", Integer.toString(EVENTS * 2));
+		BenchSupport.createDatabase(properties, 0);
+		session = new Session(properties);
+		logger = new AccessLogger(session);
+		logger.start();
+		
+		// all allowed: repeated denials are counted into one row per 
+		// accessLogDenySeconds, so they would never all reach the table
+		UserCard user = new UserCard("Bench User", "bench", true, false);
+		events = new DoorAccessEvent[EVENTS];
+		for (int i = 0; i < events.length; i++) {
+			events[i] = new DoorAccessEvent(this, BenchSupport.cardId(i), user, true, BenchSupport.DOOR);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws SQLException {
+		logger.stop();
+		BenchSupport.close(session);
+	}
+	
+	private long handled() {
+		return logger.getEntriesWritten() + logger.getEntriesSpooled() + logger.getEntriesDropped();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public void logAndWrite() {
+		long target = handled() + EVENTS;
+		for (DoorAccessEvent event : events) {
+			logger.doorActionEvent(event);
+		}
+		while (handled() < target) {
+			LockSupport.parkNanos(50000);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link AccessVerifier#checkAccess(int, int)} against caches from 100 to 
+ * a million cards, for cards in the cache and not, and the after hours test
+ * on its own.
+ * 
+ * @author dfraser
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessVerifierBenchmark {
+
+	@Param({"100", "10000", "100000", "1000000"})
+	public int cacheSize;
+	
+	@Param({"false", "true"})
+	public boolean afterHours;
+	
+	private Session session;
+	private AccessVerifier av;
+	private int[] facilities;
+	private int[] numbers;
+	private String[] ids;
+	private int next = 0;
+	
+	@Setup
+	public void setUp() throws Exception {
+		Properties properties = BenchSupport.properties("verifier"+cacheSize+afterHours);
+		if (afterHours) {
+			// after hours all day, so that every lookup evaluates the rule
+			properties.setProperty("afterHoursStart", "0");
+			properties.setProperty("afterHoursEnd", "2359");
+		}
+		BenchSupport.createDatabase(properties, 0);
+		session = new Session(properties);
+		av = session.getAccessCache().addDoor(BenchSupport.DOOR);
+		av.publish(BenchSupport.buildCache(cacheSize), false, av.getSchedules());
+		
+		// a spread of cards, every fourth one not in the cache
+		facilities = new int[1024];
+		numbers = new int[1024];
+		ids = new String[1024];
+		for (int i = 0; i < facilities.length; i++) {
+			int card = (int) ((long) i * cacheSize / facilities.length);
+			if (i % 4 == 3) {
+				card += cacheSize;
+			}
+			int key = BenchSupport.cardKey(card);
+			facilities[i] = key >> 16;
+			numbers[i] = key & 0xFFFF;
+			ids[i] = BenchSupport.cardId(card);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws SQLException {
+		BenchSupport.close(session);
+	}
+	
+	@Benchmark
+	public UserCard checkAccess() {
+		int i = next = (next + 1) & (facilities.length - 1);
+		return av.checkAccess(facilities[i], numbers[i]);
+	}
+	
+	@Benchmark
+	public UserCard checkAccessByCardId() {
+		int i = next = (next + 1) & (ids.length - 1);
+		return av.checkAccess(ids[i]);
+	}
+	
+	@Benchmark
+	public boolean isAfterHours() {
+		return av.isAfterHours();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Shared set up for the benchmarks: an embedded H2 database in MySQL mode 
+ * holding the tables the controller uses, and a {@link Session} with no 
+ * doors of its own connected to it.
+ * 
+ * @author dfraser
+ *
+ */
+class BenchSupport {
+
+	/**
+	 * The door the benchmarks check cards at.
+	 */
+	static final String DOOR = "bench";
+	
+	/**
+	 * Returns the configuration for a session using an in-memory database.
+	 * 
+	 * @param dbName the name of the database, unique to the benchmark
+	 * @return the configuration
+	 */
+	static Properties properties(String dbName) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("dbDriver", "org.h2.Driver");
+		p.setProperty("dbUrl", "jdbc:h2:mem:"+dbName+";MODE=MySQL;DB_CLOSE_DELAY=-1;NON_KEYWORDS=USER");
+		p.setProperty("dbPoolValidationQuery", "SELECT 1");
+		// benchmarks reload when they want to
+		p.setProperty("cacheReloadSeconds", "86400");
+		File spool = File.createTempFile("bench", ".spool");
+		spool.delete();
+		spool.deleteOnExit();
+		p.setProperty("accessLogSpoolFile", spool.getPath());
+		return p;
+	}
+	
+	/**
+	 * Creates the tables, the bench door, and an access group for it holding 
+	 * the given number of cards.  Must be called before the session is created.
+	 * 
+	 * @param properties the session configuration
+	 * @param cards the number of cards to add
+	 */
+	static void createDatabase(Properties properties, int cards) throws Exception {
+		Class.forName(properties.getProperty("dbDriver"));
+		Connection con = DriverManager.getConnection(properties.getProperty("dbUrl"));
+		try {
+			Statement stmt = con.createStatement();
+			stmt.execute("CREATE TABLE door (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(50) NOT NULL UNIQUE, "
+					+"default_unlocked CHAR(1) NOT NULL)");
+			stmt.execute("CREATE TABLE card (card_id VARCHAR(50) PRIMARY KEY, user VARCHAR(255) NOT NULL, nick VARCHAR(255), "
+					+"after_hours CHAR(1) NOT NULL, expires DATETIME NULL, valid_from DATETIME NULL, "
+					+"disabled CHAR(1) NOT NULL, magic CHAR(1) NOT NULL)");
+			stmt.execute("CREATE TABLE card_group (card_id VARCHAR(50) NOT NULL, access_group_id INT NOT NULL)");
+			stmt.execute("CREATE TABLE door_access (id INT AUTO_INCREMENT PRIMARY KEY, door_id INT NOT NULL, access_group_id INT NOT NULL)");
+			stmt.execute("CREATE TABLE access_log (id INT AUTO_INCREMENT PRIMARY KEY, logged DATETIME NOT NULL, card_id VARCHAR(50), "
+					+"door VARCHAR(50), action VARCHAR(5), detail VARCHAR(255))");
+			stmt.execute("INSERT INTO door (id, name, default_unlocked) VALUES (1, '"+DOOR+"', 'N')");
+			stmt.execute("INSERT INTO door_access (door_id, access_group_id) VALUES (1, 1)");
+			stmt.close();
+			
+			con.setAutoCommit(false);
+			PreparedStatement card = con.prepareStatement("INSERT INTO card (card_id, user, nick, after_hours, disabled, magic) "
+					+"VALUES (?, ?, ?, ?, 'N', 'N')");
+			PreparedStatement group = con.prepareStatement("INSERT INTO card_group (card_id, access_group_id) VALUES (?, 1)");
+			for (int i = 0; i < cards; i++) {
+				String id = cardId(i);
+				card.setString(1, id);
+				card.setString(2, "User "+i);
+				card.setString(3, "user"+i);
+				card.setString(4, i % 2 == 0 ? "Y" : "N");
+				card.addBatch();
+				group.setString(1, id);
+				group.addBatch();
+				if (i % 1000 == 999) {
+					card.executeBatch();
+					group.executeBatch();
+				}
+			}
+			card.executeBatch();
+			group.executeBatch();
+			con.commit();
+		} finally {
+			con.close();
+		}
+	}
+	
+	/**
+	 * Returns the packed key of the i'th bench card.
+	 */
+	static int cardKey(int i) {
+		return HIDCard.packCardKey(1 + (i >> 16), i & 0xFFFF);
+	}
+	
+	/**
+	 * Returns the card id of the i'th bench card.
+	 */
+	static String cardId(int i) {
+		return (1 + (i >> 16))+"-"+(i & 0xFFFF);
+	}
+	
+	/**
+	 * Builds a cache of the given number of cards, half of them allowed after hours.
+	 */
+	static CardCache buildCache(int cards) {
+		CardCache cache = new CardCache(cards);
+		UserCard anyTime = new UserCard("Any Time", "anytime", true, false);
+		UserCard officeHours = new UserCard("Office Hours", "office", false, false);
+		for (int i = 0; i < cards; i++) {
+			cache.put(cardKey(i), i % 2 == 0 ? anyTime : officeHours);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Stops the session's background work and closes its database connections.
+	 */
+	static void close(Session session) throws SQLException {
+		session.getAccessCache().stop();
+		session.getScheduler().shutdownNow();
+		session.getEventBus().shutdown();
+		session.getConnectionPool().close();
+	}
+}
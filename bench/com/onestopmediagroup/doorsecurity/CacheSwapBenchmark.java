@@ -0,0 +1,102 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Card lookups running while the access cache is reloaded from the database
+ * and swapped in.  Three threads look up cards as fast as they can while a 
+ * fourth does full reloads back to back; lookups should hardly notice.
+ * 
+ * @author dfraser
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheSwapBenchmark {
+
+	@Param({"1000", "100000"})
+	public int cacheSize;
+	
+	private Session session;
+	private AccessVerifier av;
+	
+	@Setup
+	public void setUp() throws Exception {
+		Properties properties = BenchSupport.properties("swap"+cacheSize);
+		BenchSupport.createDatabase(properties, cacheSize);
+		session = new Session(properties);
+		av = session.getAccessCache().addDoor(BenchSupport.DOOR);
+		session.getAccessCache().reload();
+		if (av.getCache().size() != cacheSize) {
+			throw new IllegalStateException("loaded "+av.getCache().size()+" cards, expected "+cacheSize);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws SQLException {
+		BenchSupport.close(session);
+	}
+	
+	/**
+	 * Each lookup thread's position in the card list.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+	
+	@Benchmark
+	@Group("swap")
+	@GroupThreads(3)
+	public UserCard lookup(Cursor cursor) {
+		int key = BenchSupport.cardKey(cursor.next++ % cacheSize);
+		return av.checkAccess(key >> 16, key & 0xFFFF);
+	}
+	
+	@Benchmark
+	@Group("swap")
+	@GroupThreads(1)
+	public void reload() {
+		session.getAccessCache().reload();
+	}
+}
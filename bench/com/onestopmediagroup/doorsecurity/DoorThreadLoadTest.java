@@ -0,0 +1,169 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Compares the thread models for the door loops: starts a session with the
+ * given number of simulated (sim://) doors, each presenting a card every
+ * ten seconds, lets them run, and prints the JVM's thread count, heap in
+ * use and resident set size.  The thread count is of platform threads, so
+ * virtual door threads only show up as the carrier threads running them.
+ *
+ * With no arguments, runs 1, 16 and 128 doors under each thread model, each
+ * in a JVM of its own so the memory figures don't include earlier runs,
+ * and prints a table.  The java running this is used for the child JVMs,
+ * so run it on Java 21 or newer to measure virtual threads; on an older JVM
+ * threadModel=virtual falls back to platform threads, and the table says so.
+ *
+ * Usage: DoorThreadLoadTest [doors threadModel [seconds]]
+ *
+ * @author dfraser
+ *
+ */
+public class DoorThreadLoadTest {
+
+	private static final int[] DOORS = { 1, 16, 128 };
+	private static final String[] MODELS = { "platform", "virtual" };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 2) {
+			run(Integer.parseInt(args[0]), args[1], args.length > 2 ? Integer.parseInt(args[2]) : 20);
+			return;
+		}
+		System.out.println("java "+System.getProperty("java.version")+" ("+System.getProperty("java.vm.name")+" "
+				+System.getProperty("java.vm.version")+")");
+		System.out.println("doors  threadModel         threads  heap MB  RSS MB  swipes");
+		String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		for (String model : MODELS) {
+			for (int doors : DOORS) {
+				List<String> command = new ArrayList<String>();
+				command.add(java);
+				command.add("-Xmx256m");
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(DoorThreadLoadTest.class.getName());
+				command.add(String.valueOf(doors));
+				command.add(model);
+				ProcessBuilder pb = new ProcessBuilder(command);
+				pb.redirectErrorStream(true);
+				Process p = pb.start();
+				BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+				String line;
+				String result = null;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("RESULT ")) {
+						result = line.substring(7);
+					}
+				}
+				p.waitFor();
+				System.out.println(result != null ? result : String.format("%5d  %-18s  failed", doors, model));
+			}
+		}
+	}
+
+	private static void run(int doors, String model, int seconds) throws Exception {
+		Properties properties = BenchSupport.properties("threads"+doors+model);
+		properties.setProperty("threadModel", model);
+		BenchSupport.createDatabase(properties, 1000);
+		addDoors(properties, doors);
+		for (int i = 1; i <= doors; i++) {
+			properties.setProperty("port"+i, "sim://?swipesPerMinute=6");
+			properties.setProperty("name"+i, "door"+i);
+		}
+		Session session = new Session(properties);
+		for (DoorController dc : session.getDoorControllers().values()) {
+			dc.start();
+		}
+		Thread.sleep(seconds * 1000L);
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		long heap = memory.getHeapMemoryUsage().getUsed();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long swipes = 0;
+		for (String door : session.getDoorControllers().keySet()) {
+			Metrics.DoorMetrics m = session.getMetrics().door(door);
+			swipes += m.allowed.get() + m.denied.get();
+		}
+		String used = "virtual".equals(model) && !session.isVirtualThreads() ? "virtual (platform)" : model;
+		System.out.println("RESULT "+String.format("%5d  %-18s  %7d  %7.1f  %6s  %6d", doors, used, threads,
+				heap / 1048576.0, rss(), swipes));
+		System.exit(0);
+	}
+
+	/**
+	 * Adds the simulated doors to the bench database, with access for the
+	 * bench group.
+	 */
+	private static void addDoors(Properties properties, int doors) throws Exception {
+		Connection con = DriverManager.getConnection(properties.getProperty("dbUrl"));
+		try {
+			PreparedStatement door = con.prepareStatement("INSERT INTO door (id, name, default_unlocked) VALUES (?, ?, 'N')");
+			PreparedStatement access = con.prepareStatement("INSERT INTO door_access (door_id, access_group_id) VALUES (?, 1)");
+			for (int i = 1; i <= doors; i++) {
+				door.setInt(1, i + 1);
+				door.setString(2, "door"+i);
+				door.execute();
+				access.setInt(1, i + 1);
+				access.execute();
+			}
+		} finally {
+			con.close();
+		}
+	}
+
+	/**
+	 * Returns the resident set size in MB, from /proc, or "n/a" where there
+	 * isn't one.
+	 */
+	private static String rss() {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						long kb = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+						return String.valueOf(kb / 1024);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// not Linux
+		}
+		return "n/a";
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing 'H' frames from the board into {@link HIDCard}s.
+ * 
+ * @author dfraser
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HIDCardBenchmark {
+
+	private byte[][] frames;
+	private int next = 0;
+	
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		frames = new byte[256][];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = SimulatedDoorTransport.encodeCard(random.nextInt(256), random.nextInt(65536));
+		}
+	}
+	
+	private byte[] nextFrame() {
+		next = (next + 1) & (frames.length - 1);
+		return frames[next];
+	}
+	
+	@Benchmark
+	public int parse() {
+		byte[] frame = nextFrame();
+		return new HIDCard(frame, 0, frame.length).getCardKey();
+	}
+	
+	@Benchmark
+	public String parseToCardId() {
+		byte[] frame = nextFrame();
+		return new HIDCard(frame, 0, frame.length).getCardId();
+	}
+	
+	@Benchmark
+	public int parseCardKey() {
+		return HIDCard.parseCardKey("123-45678");
+	}
+}
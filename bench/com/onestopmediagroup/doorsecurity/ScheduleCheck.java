@@ -0,0 +1,116 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks that {@link WeeklySchedule#officeHours(int, int)} read through a
+ * {@link ScheduleClock} gives the same answer as the Calendar based
+ * isAfterHours which AccessVerifier used before schedules were precomputed.
+ *
+ * Random instants between 1990 and 2040 are checked in several time zones,
+ * including ones with daylight saving time and a half hour offset, against
+ * an after hours period which wraps past midnight and one which doesn't.
+ * Prints the number of instants which disagree, and exits with status 1 if
+ * there are any.
+ *
+ * Usage: ScheduleCheck [instants per zone]
+ *
+ * @author dfraser
+ *
+ */
+public class ScheduleCheck {
+
+	private static final String[] ZONES = {
+		"America/Toronto", "Europe/London", "Australia/Lord_Howe", "Asia/Kolkata"
+	};
+
+	private static final int[][] AFTER_HOURS = { { 1800, 800 }, { 900, 1700 } };
+
+	private static final long FROM = 631152000000L; // 1990-01-01
+	private static final long TO = 2208988800000L; // 2040-01-01
+
+	public static void main(String[] args) {
+		int instants = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Random random = new Random(1);
+		long checked = 0;
+		long mismatches = 0;
+		for (String id : ZONES) {
+			TimeZone zone = TimeZone.getTimeZone(id);
+			ScheduleClock clock = new ScheduleClock(zone);
+			Calendar cal = Calendar.getInstance(zone);
+			WeeklySchedule[] schedules = new WeeklySchedule[AFTER_HOURS.length];
+			for (int i = 0; i < schedules.length; i++) {
+				schedules[i] = WeeklySchedule.officeHours(AFTER_HOURS[i][0], AFTER_HOURS[i][1]);
+			}
+			long zoneMismatches = 0;
+			for (int n = 0; n < instants; n++) {
+				long millis = FROM + (long) (random.nextDouble() * (TO - FROM));
+				cal.setTimeInMillis(millis);
+				int minuteOfWeek = clock.at(millis).minuteOfWeek;
+				for (int i = 0; i < schedules.length; i++) {
+					boolean old = !isAfterHours(cal, AFTER_HOURS[i][0], AFTER_HOURS[i][1]);
+					if (old != schedules[i].allows(minuteOfWeek)) {
+						if (zoneMismatches++ < 10) {
+							System.out.println(id+" "+cal.getTime()+" after hours "+AFTER_HOURS[i][0]+"-"
+									+AFTER_HOURS[i][1]+": old "+old+", new "+!old);
+						}
+					}
+				}
+				checked++;
+			}
+			System.out.println(id+": "+instants+" instants, "+zoneMismatches+" mismatches");
+			mismatches += zoneMismatches;
+		}
+		System.out.println(checked+" instants checked, "+mismatches+" mismatches");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * AccessVerifier.isAfterHours(int, int) as it was before schedules were
+	 * precomputed, with the Calendar passed in and the logging left out.
+	 */
+	private static boolean isAfterHours(Calendar cal, int startTime, int endTime) {
+		if (cal.get(Calendar.DAY_OF_WEEK) == Calendar.SATURDAY || cal.get(Calendar.DAY_OF_WEEK) == Calendar.SUNDAY) {
+			return true;
+		}
+
+		int currentTime = cal.get(Calendar.HOUR_OF_DAY) * 100 + cal.get(Calendar.MINUTE);
+
+		if (startTime > endTime) {
+			// crossing midnight, special test
+			if ( (startTime <= currentTime && currentTime <= 2359) ||
+				 (0 <= currentTime && currentTime < endTime)) {
+				return true;
+			}
+		} else {
+			// simple case, not crossing midnight
+			if (currentTime >= startTime && currentTime < endTime) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
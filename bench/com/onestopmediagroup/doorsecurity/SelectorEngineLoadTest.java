@@ -0,0 +1,232 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for {@link DoorIoEngine}: connects it to hundreds of simulated 
+ * door boards on localhost, presents cards at a fixed rate, and measures 
+ * the time from a card frame being written by the board to its access check
+ * being done on a worker.
+ * 
+ * Usage: SelectorEngineLoadTest [doors] [swipesPerSecondPerDoor] [seconds] [ioThreads] [workerThreads]
+ * 
+ * @author dfraser
+ *
+ */
+public class SelectorEngineLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int doors = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int ioThreads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		int workerThreads = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+		
+		// half the cards presented are in the cache
+		final CardCache cache = new CardCache();
+		UserCard user = new UserCard("Bench User", "bench", true, false);
+		for (int n = 0; n < 1000; n++) {
+			cache.put(HIDCard.packCardKey(10, n), user);
+		}
+		
+		BoardFarm farm = new BoardFarm(doors, rate);
+		farm.start();
+		DoorIoEngine engine = new DoorIoEngine(ioThreads, workerThreads);
+		final AtomicInteger allowed = new AtomicInteger();
+		final long[] latencies = new long[(int) (doors * rate * seconds * 2) + 1000];
+		final AtomicInteger samples = new AtomicInteger();
+		for (int i = 0; i < doors; i++) {
+			final SelectorDoorTransport transport = engine.connect("127.0.0.1", farm.getPort(), 5000);
+			final ConcurrentLinkedQueue<Long> sent = farm.awaitBoard(i).sent;
+			transport.setFrameHandler(new DoorIoEngine.FrameHandler() {
+				final byte[] open = { 'S', '4', '\n', 'G', '4', '\n' };
+				public void frame(byte[] frame, int length, long received) {
+					HIDCard card = new HIDCard(frame, 0, length);
+					if (cache.get(card.getCardKey()) != null) {
+						allowed.incrementAndGet();
+						try {
+							transport.send(open, open.length);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+					Long t = sent.poll();
+					int n = samples.getAndIncrement();
+					if (t != null && n < latencies.length) {
+						latencies[n] = System.nanoTime() - t.longValue();
+					}
+				}
+				
+				public void closed(IOException cause) {
+					System.err.println("connection closed: "+cause.getMessage());
+				}
+			});
+		}
+		farm.go();
+		Thread.sleep(seconds * 1000L);
+		System.out.println(doors+" doors, "+ioThreads+" io threads, "+workerThreads
+				+" workers, "+Thread.activeCount()+" threads in the JVM including the board farm");
+		farm.shutdown();
+		Thread.sleep(500);
+		engine.stop();
+		
+		int n = Math.min(samples.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		System.out.println("frames: "+engine.getFramesReceived()+" ("+(engine.getFramesReceived() / seconds)+"/s), allowed: "
+				+allowed.get()+", written by boards: "+farm.getWritten()+", discarded: "+engine.getFramesDiscarded());
+		if (n > 0) {
+			System.out.println("latency us: p50="+sorted[n / 2] / 1000+" p99="+sorted[(int) (n * 0.99)] / 1000
+					+" p999="+sorted[(int) (n * 0.999)] / 1000+" max="+sorted[n - 1] / 1000);
+		}
+	}
+	
+	/**
+	 * Simulated door boards: one selector thread accepts the engine's 
+	 * connections and writes card frames to each at the given rate.  Commands
+	 * from the engine are read and thrown away.
+	 */
+	static class BoardFarm extends Thread {
+		private final ServerSocketChannel server;
+		private final Selector selector;
+		private final List<Board> boards = new ArrayList<Board>();
+		private final int doors;
+		private final double rate;
+		private final Random random = new Random(1);
+		private volatile boolean going = false;
+		private volatile boolean running = true;
+		private volatile long written = 0;
+		
+		BoardFarm(int doors, double rate) throws IOException {
+			super("BoardFarm");
+			setDaemon(true);
+			this.doors = doors;
+			this.rate = rate;
+			server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress("127.0.0.1", 0), doors);
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		
+		int getPort() {
+			return server.socket().getLocalPort();
+		}
+		
+		long getWritten() {
+			return written;
+		}
+		
+		Board awaitBoard(int i) throws InterruptedException {
+			while (true) {
+				synchronized (boards) {
+					if (boards.size() > i) {
+						return boards.get(i);
+					}
+					boards.wait(100);
+				}
+			}
+		}
+		
+		void go() {
+			long now = System.nanoTime();
+			synchronized (boards) {
+				for (Board b : boards) {
+					b.next = now + (long) (random.nextDouble() * 1e9 / rate);
+				}
+			}
+			going = true;
+		}
+		
+		void shutdown() {
+			running = false;
+		}
+		
+		@Override
+		public void run() {
+			ByteBuffer discard = ByteBuffer.allocate(1024);
+			long interval = (long) (1e9 / rate);
+			try {
+				while (running) {
+					selector.select(1);
+					for (SelectionKey key : selector.selectedKeys()) {
+						if (key.isAcceptable()) {
+							SocketChannel c = server.accept();
+							if (c != null) {
+								c.configureBlocking(false);
+								c.socket().setTcpNoDelay(true);
+								Board b = new Board(c);
+								c.register(selector, SelectionKey.OP_READ, b);
+								synchronized (boards) {
+									boards.add(b);
+									boards.notifyAll();
+								}
+							}
+						} else if (key.isReadable()) {
+							discard.clear();
+							((SocketChannel) key.channel()).read(discard);
+						}
+					}
+					selector.selectedKeys().clear();
+					if (!going) {
+						continue;
+					}
+					long now = System.nanoTime();
+					for (int i = 0; i < boards.size() && i < doors; i++) {
+						Board b = boards.get(i);
+						while (b.next <= now) {
+							byte[] frame = SimulatedDoorTransport.encodeCard(10, random.nextInt(2000));
+							b.sent.add(Long.valueOf(System.nanoTime()));
+							b.channel.write(ByteBuffer.wrap(frame));
+							written++;
+							b.next += interval;
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	static class Board {
+		final SocketChannel channel;
+		final ConcurrentLinkedQueue<Long> sent = new ConcurrentLinkedQueue<Long>();
+		long next;
+		
+		Board(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the two ways {@link RS232SerialPort} can receive card frames: the
+ * old loop which polls {@link InputStream#available()} and sleeps 10ms between
+ * polls, and event-driven reception, where the RXTX event thread drains the
+ * port into a {@link FrameBuffer} and the reader blocks in
+ * {@link FrameBuffer#take(byte[], long)}.
+ *
+ * No serial hardware is needed: each simulated port is an in-memory stream
+ * which a feeder thread writes card frames into at the given rate, standing
+ * in for the serial driver.  In event mode the feeder also plays the part of
+ * the RXTX event thread and drains the stream into the frame buffer, as
+ * RS232SerialPort's listener does.  Both loops below are copies of the code
+ * in RS232SerialPort.
+ *
+ * For each mode, reports the CPU time used by the reader threads (one per
+ * port, as with the door threads) and by the feeder, and the latency from a
+ * frame being written to the port to its reader having it.  Run it with a
+ * rate of 0 to see what idle doors cost.
+ *
+ * Usage: SerialReceiveBenchmark [ports] [framesPerSecondPerPort] [seconds]
+ *
+ * @author dfraser
+ *
+ */
+public class SerialReceiveBenchmark {
+	
+	private static final int RECEIVE_TIMEOUT = 1000;
+	private static final int EOT = '\n';
+	
+	public static void main(String[] args) throws Exception {
+		int ports = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		
+		run(false, ports, rate, seconds);
+		run(true, ports, rate, seconds);
+	}
+	
+	private static void run(final boolean events, int ports, double rate, int seconds) throws Exception {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		final List<Port> list = new ArrayList<Port>();
+		for (int i = 0; i < ports; i++) {
+			list.add(new Port(events));
+		}
+		final long[] latencies = new long[(int) (ports * rate * seconds * 2) + 1000];
+		final AtomicInteger samples = new AtomicInteger();
+		final boolean[] running = { true };
+		List<Thread> readers = new ArrayList<Thread>();
+		for (final Port p : list) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					byte[] rxBuf = new byte[40];
+					while (running[0]) {
+						int len;
+						try {
+							len = events ? p.frames.take(rxBuf, RECEIVE_TIMEOUT) : p.receive(rxBuf, rxBuf.length, EOT);
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+						if (len > 0) {
+							Long t = p.sent.poll();
+							int n = samples.getAndIncrement();
+							if (t != null && n < latencies.length) {
+								latencies[n] = System.nanoTime() - t.longValue();
+							}
+						}
+					}
+				}
+			}, "Reader-"+readers.size());
+			t.setDaemon(true);
+			readers.add(t);
+		}
+		Feeder feeder = new Feeder(list, rate);
+		for (Thread t : readers) {
+			t.start();
+		}
+		feeder.start();
+		
+		// let everything get going before measuring
+		Thread.sleep(1000);
+		samples.set(0);
+		long readerCpu = -cpuTime(mx, readers);
+		long feederCpu = -mx.getThreadCpuTime(feeder.getId());
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		readerCpu += cpuTime(mx, readers);
+		feederCpu += mx.getThreadCpuTime(feeder.getId());
+		long elapsed = System.nanoTime() - start;
+		running[0] = false;
+		feeder.shutdown();
+		for (Thread t : readers) {
+			t.join();
+		}
+		feeder.join();
+		
+		int n = Math.min(samples.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		System.out.println((events ? "event" : "poll ")+": "+ports+" ports, "+n+" frames, reader CPU "
+				+percent(readerCpu, elapsed)+"% of one core ("+readerCpu / 1000 / Math.max(1, n)+"us/frame), feeder CPU "
+				+percent(feederCpu, elapsed)+"%");
+		if (n > 0) {
+			System.out.println("       latency us: p50="+sorted[n / 2] / 1000+" p99="+sorted[(int) (n * 0.99)] / 1000
+					+" max="+sorted[n - 1] / 1000);
+		}
+	}
+	
+	private static long cpuTime(ThreadMXBean mx, List<Thread> threads) {
+		long total = 0;
+		for (Thread t : threads) {
+			total += mx.getThreadCpuTime(t.getId());
+		}
+		return total;
+	}
+	
+	private static String percent(long cpu, long elapsed) {
+		return String.valueOf(Math.round(cpu * 1000.0 / elapsed) / 10.0);
+	}
+	
+	/**
+	 * A simulated serial port: bytes written by the feeder, read by a reader
+	 * thread or drained into a frame buffer.
+	 */
+	static class Port extends InputStream {
+		private final byte[] buf = new byte[4096];
+		private int head = 0;
+		private int size = 0;
+		final ConcurrentLinkedQueue<Long> sent = new ConcurrentLinkedQueue<Long>();
+		final FrameBuffer frames;
+		private final byte[] chunk = new byte[256];
+		
+		Port(boolean events) {
+			frames = events ? new FrameBuffer(4096, EOT) : null;
+		}
+		
+		synchronized void write(byte[] b) {
+			for (int i = 0; i < b.length && size < buf.length; i++) {
+				buf[(head + size++) % buf.length] = b[i];
+			}
+		}
+		
+		@Override
+		public synchronized int available() {
+			return size;
+		}
+		
+		@Override
+		public synchronized int read() {
+			if (size == 0) {
+				return -1;
+			}
+			int b = buf[head] & 0xFF;
+			head = (head + 1) % buf.length;
+			size--;
+			return b;
+		}
+		
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			int n = Math.min(len, size);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = buf[head];
+				head = (head + 1) % buf.length;
+			}
+			size -= n;
+			return n;
+		}
+		
+		/**
+		 * RS232SerialPort.receive(byte[], int, int), as used before frame events.
+		 */
+		int receive(byte rxBuf[], int rxLen, int eotChar) throws IOException {
+			long currentTime = System.currentTimeMillis();
+			
+			int rxCount = 0;
+			while(System.currentTimeMillis() - currentTime < RECEIVE_TIMEOUT && rxCount < rxLen) {
+				if(available() > 0) {
+					int ret = read(rxBuf, rxCount, rxLen - rxCount);
+					rxCount += ret;
+					if(rxBuf[rxCount - 1] == eotChar) {
+						return rxCount;
+					}
+				}
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					// do nothing here... it's the same as a timeout
+				}
+			}
+			return rxCount;
+		}
+		
+		/**
+		 * RS232SerialPort.drainInput(), run by the RXTX event thread.
+		 */
+		void drainInput() {
+			while (available() > 0) {
+				int ret = read(chunk, 0, chunk.length);
+				if (ret <= 0) {
+					return;
+				}
+				frames.write(chunk, 0, ret);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a card frame to each port at the given rate, spread out at
+	 * random so the ports aren't in step.
+	 */
+	static class Feeder extends Thread {
+		private final List<Port> ports;
+		private final double rate;
+		private volatile boolean running = true;
+		
+		Feeder(List<Port> ports, double rate) {
+			super("Feeder");
+			setDaemon(true);
+			this.ports = ports;
+			this.rate = rate;
+		}
+		
+		void shutdown() {
+			running = false;
+		}
+		
+		@Override
+		public void run() {
+			Random random = new Random(1);
+			if (rate <= 0) {
+				while (running) {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				return;
+			}
+			long interval = (long) (1e9 / rate);
+			long[] next = new long[ports.size()];
+			long now = System.nanoTime();
+			for (int i = 0; i < next.length; i++) {
+				next[i] = now + (long) (random.nextDouble() * interval);
+			}
+			while (running) {
+				now = System.nanoTime();
+				long wake = now + 1000000;
+				for (int i = 0; i < next.length; i++) {
+					if (next[i] <= now) {
+						Port p = ports.get(i);
+						p.sent.add(Long.valueOf(System.nanoTime()));
+						p.write(SimulatedDoorTransport.encodeCard(10, random.nextInt(2000)));
+						if (p.frames != null) {
+							p.drainInput();
+						}
+						next[i] += interval;
+					}
+					wake = Math.min(wake, next[i]);
+				}
+				long sleep = wake - System.nanoTime();
+				if (sleep > 0) {
+					try {
+						Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+}
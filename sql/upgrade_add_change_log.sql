@@ -0,0 +1,69 @@
+--
+-- Copyright 2008 Dan Fraser
+--
+-- This file is part of Cerberus-Prox.
+--
+-- Cerberus-Prox is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- Cerberus-Prox is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU General Public License for more details.
+--
+-- You should have received a copy of the GNU General Public License
+-- along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+-- 
+
+--
+-- This file adds the change log used by "cacheReloadMode=delta", and polled
+-- every changePollMillis to pick up changes between reloads.
+--
+-- Every insert, update or delete on card or card_group records the affected
+-- card_id, and every change to door_access records the affected group.  The
+-- auto-increment id is the change version: each door controller remembers the
+-- last id it has applied, and on reload fetches only the cards changed since.
+-- Ids are handed out at insert but rows appear at commit, so a controller also
+-- re-reads ids it skipped over for a few minutes in case they turn up late.
+-- Deleted and disabled cards are logged like any other change, so they are
+-- dropped from the cache on the next reload.
+--
+-- Old rows can be pruned at any time once every controller has synced past
+-- them, e.g.:  DELETE FROM access_change WHERE changed < NOW() - INTERVAL 1 DAY;
+
+CREATE TABLE IF NOT EXISTS `access_change` (
+  `id` bigint(20) NOT NULL auto_increment,
+  `card_id` varchar(50) default NULL,
+  `access_group_id` int(11) default NULL,
+  `changed` timestamp NOT NULL default CURRENT_TIMESTAMP,
+  PRIMARY KEY  (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+CREATE TRIGGER card_insert_log AFTER INSERT ON card
+  FOR EACH ROW INSERT INTO access_change (card_id) VALUES (NEW.card_id);
+
+CREATE TRIGGER card_update_log AFTER UPDATE ON card
+  FOR EACH ROW INSERT INTO access_change (card_id) VALUES (OLD.card_id), (NEW.card_id);
+
+CREATE TRIGGER card_delete_log AFTER DELETE ON card
+  FOR EACH ROW INSERT INTO access_change (card_id) VALUES (OLD.card_id);
+
+CREATE TRIGGER card_group_insert_log AFTER INSERT ON card_group
+  FOR EACH ROW INSERT INTO access_change (card_id) VALUES (NEW.card_id);
+
+CREATE TRIGGER card_group_update_log AFTER UPDATE ON card_group
+  FOR EACH ROW INSERT INTO access_change (card_id) VALUES (OLD.card_id), (NEW.card_id);
+
+CREATE TRIGGER card_group_delete_log AFTER DELETE ON card_group
+  FOR EACH ROW INSERT INTO access_change (card_id) VALUES (OLD.card_id);
+
+CREATE TRIGGER door_access_insert_log AFTER INSERT ON door_access
+  FOR EACH ROW INSERT INTO access_change (access_group_id) VALUES (NEW.access_group_id);
+
+CREATE TRIGGER door_access_update_log AFTER UPDATE ON door_access
+  FOR EACH ROW INSERT INTO access_change (access_group_id) VALUES (OLD.access_group_id), (NEW.access_group_id);
+
+CREATE TRIGGER door_access_delete_log AFTER DELETE ON door_access
+  FOR EACH ROW INSERT INTO access_change (access_group_id) VALUES (OLD.access_group_id);
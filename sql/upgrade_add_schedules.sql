@@ -0,0 +1,57 @@
+--
+-- Copyright 2008 Dan Fraser
+--
+-- This file is part of Cerberus-Prox.
+--
+-- Cerberus-Prox is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- Cerberus-Prox is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU General Public License for more details.
+--
+-- You should have received a copy of the GNU General Public License
+-- along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+-- 
+
+--
+-- This file adds per-group access schedules and holidays.
+--
+-- An access group with a schedule_id may only be used during that schedule's
+-- windows; groups without one use the afterHoursStart/afterHoursEnd settings.
+-- A card in several groups for the same door gets the union of their 
+-- schedules.  day_of_week is 1 for Monday to 7 for Sunday, and a window whose 
+-- end_time is not after its start_time runs past midnight into the next day.
+-- Use '24:00:00' as the end_time for the end of the day.
+--
+-- No scheduled access is allowed on the days listed in holiday.  Cards with
+-- after_hours = 'Y' ignore both schedules and holidays.
+--
+-- Schedule changes are picked up on the next cache reload.
+
+CREATE TABLE IF NOT EXISTS `schedule` (
+  `id` int(11) NOT NULL auto_increment,
+  `name` varchar(255) NOT NULL,
+  PRIMARY KEY  (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+CREATE TABLE IF NOT EXISTS `schedule_window` (
+  `id` int(11) NOT NULL auto_increment,
+  `schedule_id` int(11) NOT NULL,
+  `day_of_week` tinyint(4) NOT NULL,
+  `start_time` time NOT NULL,
+  `end_time` time NOT NULL,
+  PRIMARY KEY  (`id`),
+  KEY `schedule_id` (`schedule_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+CREATE TABLE IF NOT EXISTS `holiday` (
+  `holiday_date` date NOT NULL,
+  `name` varchar(255) default NULL,
+  PRIMARY KEY  (`holiday_date`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+ALTER TABLE access_group ADD `schedule_id` int(11) default NULL;
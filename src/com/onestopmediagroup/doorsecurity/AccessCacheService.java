@@ -0,0 +1,1296 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Site-wide loader for the door access caches.  
+ * 
+ * A single query fetches the (card, door) pairs for every configured door, 
+ * and they are reloaded on the session's shared scheduler.  Each card is represented by 
+ * one UserCard object shared by all the doors it opens, so the memory used 
+ * grows with the number of cards plus the number of grants rather than 
+ * cards times doors.
+ * 
+ * Access groups may have a weekly schedule, from the schedule_window table, 
+ * and the holiday table lists days on which no scheduled access is allowed.
+ * A card's schedule at a door is the union of the schedules of the groups 
+ * which give it access there; groups without a schedule use the default 
+ * one from afterHoursStart and afterHoursEnd.  Each distinct combination is 
+ * built into a {@link WeeklySchedule} once per reload, and cached cards 
+ * refer to it by index.
+ * 
+ * Besides the reloads every cacheReloadSeconds, the access_change log is 
+ * polled every changePollMillis, which only costs a primary key lookup when 
+ * nothing has changed, and changed cards are patched into the caches.  Cards 
+ * and groups can also be reloaded on demand with {@link #invalidateCard(String)} 
+ * and {@link #invalidateGroup(int)}, e.g. straight after a badge is revoked.
+ * 
+ * Change log ids are handed out when a row is inserted but the row only 
+ * becomes visible when its transaction commits, so a row can turn up with 
+ * a lower id than one already applied.  Ids skipped over are remembered as
+ * gaps and read again on each delta until they turn up or are 
+ * {@link #GAP_EXPIRY_MILLIS} old, and in delta mode there is a full reload 
+ * every cacheFullReloadSeconds in case one was still missed.
+ * 
+ * If readThroughMillis is set, a card presented at a door whose cache 
+ * doesn't have it is looked up in the database with {@link #lookupCard(String)}, 
+ * so a newly issued card works without waiting for a reload.
+ * 
+ * @author dfraser
+ *
+ */
+public class AccessCacheService {
+
+	private static Logger log = Logger.getLogger(AccessCacheService.class);
+	
+	/**
+	 * If more cards than this have changed, a full reload is cheaper than patching.
+	 */
+	private static final int MAX_DELTA_CARDS = 500;
+	
+	/**
+	 * How many change log ids below the newest are checked for gaps after a 
+	 * full reload, i.e. how many changes may still be uncommitted then.
+	 */
+	private static final int CHANGE_WINDOW = 100;
+	
+	/**
+	 * If more change log ids than this are missing, a full reload is done instead.
+	 */
+	private static final int MAX_CHANGE_GAPS = 1000;
+	
+	/**
+	 * How long a missing change log id is waited for.  Most are from rolled 
+	 * back transactions and never turn up.
+	 */
+	private static final long GAP_EXPIRY_MILLIS = 5 * 60 * 1000;
+	
+	/**
+	 * Threads for looking up cards missing from the caches, and how many 
+	 * lookups may wait for them; any more are skipped.
+	 */
+	private static final int LOOKUP_THREADS = 2;
+	private static final int LOOKUP_QUEUE_SIZE = 32;
+	
+	/**
+	 * How long a request to reload cards waits for a reload already running.
+	 */
+	static final int INVALIDATE_WAIT_SECONDS = 5;
+	
+	/**
+	 * Returned by the invalidate methods if the database couldn't be reached, 
+	 * or if another reload kept the caches for longer than INVALIDATE_WAIT_SECONDS.
+	 */
+	public static final int DATABASE_ERROR = -1;
+	public static final int BUSY = -2;
+	
+	/**
+	 * The SQLState for a table which doesn't exist.
+	 */
+	private static final String TABLE_NOT_FOUND = "42S02";
+	
+	/**
+	 * Query for the cards with access to a set of doors; the door list is appended.
+	 * Validity dates are checked when the card is used rather than here, so that a 
+	 * card which expires (or becomes valid) is handled correctly without a reload.
+	 */
+	private static final String CARD_SQL = "SELECT "+
+			"	door.name AS door_name, "+
+			"	card.card_id, "+
+			"	card.user, "+
+			"	card.nick, "+
+			"	card.after_hours, "+
+			"	card.magic, "+
+			"	card.valid_from, "+
+			"	card.expires, "+
+			"	door_access.access_group_id "+
+			"FROM "+
+			"	card, "+
+			"	card_group, "+
+			"	door_access, "+
+			"	door "+
+			"WHERE "+
+			"	card_group.card_id = card.card_id "+
+			"AND "+
+			"	card_group.access_group_id = door_access.access_group_id "+
+			"AND "+
+			"	door_access.door_id = door.id "+
+			"AND "+
+			"	card.disabled = 'N' "+
+			"AND "+
+			"	door.name IN ";
+	
+	private final Session session;
+	
+	/**
+	 * The verifier for each door, by door name.  Never changed once published; 
+	 * {@link #addDoor(String)} replaces it with a copy while holding reloadLock, 
+	 * so it stays the same for the whole of a reload.
+	 */
+	private volatile Map<String,AccessVerifier> verifiers = Collections.emptyMap();
+	
+	private final ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> reloadTask;
+	private ScheduledFuture<?> pollTask;
+	
+	/**
+	 * Held while the caches are being reloaded or patched, so that only one 
+	 * thread at a time changes them.  Everything below is guarded by it.
+	 */
+	private final ReentrantLock reloadLock = new ReentrantLock();
+	
+	/**
+	 * Runs card lookups for {@link #lookupCard(String)}, or null if they're turned off.
+	 */
+	private final ThreadPoolExecutor lookupExecutor;
+	
+	/**
+	 * The lookups queued or running, by card id, so a card presented again 
+	 * while it is being looked up waits for the same lookup.  Guarded by itself.
+	 */
+	private final Map<String,FutureTask<Boolean>> lookups = new HashMap<String,FutureTask<Boolean>>();
+	
+	/**
+	 * Where the caches are saved after each reload, or null if they aren't.
+	 */
+	private final CacheSnapshotFile snapshotFile;
+	
+	/**
+	 * The id of the last access_change row applied to the caches, or -1 if 
+	 * the next reload must be a full one.
+	 */
+	private long syncVersion = -1;
+	
+	/**
+	 * Change log ids below syncVersion which haven't been seen yet, and when 
+	 * they were noticed missing.
+	 */
+	private TreeMap<Long,Long> gaps = new TreeMap<Long,Long>();
+	
+	/**
+	 * When the last full reload was done, from {@link System#nanoTime()}.
+	 */
+	private long lastFullReload;
+	
+	/**
+	 * Whether the access_change table is missing, so the warning is only logged once.
+	 */
+	private boolean changeLogMissing = false;
+	
+	/**
+	 * Whether the caches have changed since the snapshot file was last saved.
+	 */
+	private boolean snapshotDirty = false;
+	
+	/**
+	 * The schedule tables as of the last reload, or null before the first one.
+	 */
+	private ScheduleTables scheduleTables;
+	
+	/**
+	 * The schedule ids making up each profile, by profile index; 0 stands for 
+	 * the default schedule.  Indexes stay the same until the next full reload, 
+	 * so that caches patched by a delta reload can keep their entries.
+	 */
+	private final List<int[]> profiles = new ArrayList<int[]>();
+	
+	/**
+	 * The profile index for each list of schedule ids, keyed by {@link Arrays#toString(int[])}.
+	 */
+	private final Map<String,Integer> profileIndex = new HashMap<String,Integer>();
+	
+	/**
+	 * The schedules published with the current caches.
+	 */
+	private AccessSchedules schedules;
+	
+	/**
+	 * Whether the schedule tables are missing, so the warning is only logged once.
+	 */
+	private boolean schedulesMissing = false;
+	
+	/**
+	 * Creates a new AccessCacheService.  Doors are added with {@link #addDoor(String)},
+	 * then {@link #start()} loads the caches and schedules reloads.
+	 * 
+	 * @param session the session holding the database configuration
+	 */
+	public AccessCacheService(Session session) {
+		this.session = session;
+		this.scheduler = session.getScheduler();
+		this.snapshotFile = session.getCacheSnapshotFile() == null ? null 
+				: new CacheSnapshotFile(new File(session.getCacheSnapshotFile()), 
+						session.getSnapshotMaxAgeSeconds() * 1000L);
+		if (session.getReadThroughMillis() > 0) {
+			lookupExecutor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 0, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(LOOKUP_QUEUE_SIZE), new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CardLookup-"+(count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			lookupExecutor = null;
+		}
+	}
+	
+	/**
+	 * Creates the AccessVerifier for a door, whose cache will be loaded by this service.
+	 * 
+	 * @param doorName the door name, from the database door table
+	 * @return the verifier for the door
+	 */
+	public AccessVerifier addDoor(String doorName) {
+		AccessVerifier av = new AccessVerifier(doorName, session, this);
+		reloadLock.lock();
+		try {
+			Map<String,AccessVerifier> doors = new LinkedHashMap<String,AccessVerifier>(verifiers);
+			doors.put(doorName, av);
+			verifiers = Collections.unmodifiableMap(doors);
+			// a delta wouldn't load the new door's cache
+			syncVersion = -1;
+		} finally {
+			reloadLock.unlock();
+		}
+		return av;
+	}
+	
+	/**
+	 * Returns the number of cards in each door's cache.
+	 * 
+	 * @return the cache sizes, by door name
+	 */
+	public Map<String,Integer> getCacheSizes() {
+		Map<String,Integer> sizes = new LinkedHashMap<String,Integer>();
+		for (AccessVerifier av : verifiers.values()) {
+			sizes.put(av.getDoorName(), Integer.valueOf(av.getCache().size()));
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Loads every door's cache, then schedules reloads every cacheReloadSeconds.
+	 * 
+	 * If a saved snapshot is available the caches are loaded from it and the 
+	 * first database load happens in the background, so that doors work straight
+	 * away even if the database isn't up yet.  Otherwise the caches are loaded
+	 * from the database before returning.
+	 */
+	public void start() {
+		int initialDelay = session.getCacheReloadSeconds();
+		if (loadSnapshot()) {
+			initialDelay = 0;
+		} else {
+			reload();
+		}
+		reloadTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				reload();
+			}
+		}, initialDelay, session.getCacheReloadSeconds(), TimeUnit.SECONDS);
+		if (session.getChangePollMillis() > 0) {
+			pollTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					pollChanges();
+				}
+			}, session.getChangePollMillis(), session.getChangePollMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stops reloading the caches.
+	 */
+	public void stop() {
+		if (reloadTask != null) {
+			reloadTask.cancel(true);
+		}
+		if (pollTask != null) {
+			pollTask.cancel(true);
+		}
+		if (lookupExecutor != null) {
+			lookupExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Brings all caches up to date with our SQL database, either by fetching only 
+	 * the cards that have changed since the last sync, or by loading them in full.
+	 */
+	void reload() {
+		PooledConnection con = null;
+		long start = System.nanoTime();
+		boolean ok = false;
+		reloadLock.lock();
+		try {
+			log.trace("loading cache for "+verifiers.size()+" doors");
+			con = session.getConnectionPool().borrow();
+			if (!session.isCacheDeltaReload() || syncVersion < 0 || fullReloadDue() || !reloadDelta(con, false)) {
+				reloadFull(con);
+				snapshotDirty = true;
+			}
+			if (snapshotDirty) {
+				saveSnapshot();
+			}
+			ok = true;
+		} catch (SQLException e) {
+			if (con != null) {
+				con.markBroken();
+			}
+			log.error("database error updating cache: "+e.getMessage(),e);
+		} catch (RuntimeException e) {
+			// don't let the scheduler cancel future reloads
+			log.error("error updating cache: "+e.getMessage(),e);
+		} finally {
+			session.getConnectionPool().release(con);
+			reloadLock.unlock();
+			if (ok) {
+				session.getMetrics().cacheReload.recordSince(start);
+			} else {
+				session.getMetrics().cacheReloadFailures.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether cacheFullReloadSeconds have passed since the last full reload.
+	 */
+	private boolean fullReloadDue() {
+		long interval = TimeUnit.SECONDS.toNanos(session.getCacheFullReloadSeconds());
+		return interval > 0 && System.nanoTime() - lastFullReload >= interval;
+	}
+	
+	/**
+	 * Patches in any cards in the change log since the last sync.  Skipped 
+	 * if a reload is running, since that will pick the changes up anyways, 
+	 * and so as not to hold up a scheduler thread.
+	 */
+	void pollChanges() {
+		if (!reloadLock.tryLock()) {
+			return;
+		}
+		PooledConnection con = null;
+		long start = System.nanoTime();
+		try {
+			if (syncVersion < 0) {
+				// no change log, or the next reload is a full one anyways
+				return;
+			}
+			con = session.getConnectionPool().borrow();
+			long version = syncVersion;
+			if (!reloadDelta(con, true)) {
+				reloadFull(con);
+				snapshotDirty = true;
+			}
+			if (syncVersion != version) {
+				session.getMetrics().cachePatch.recordSince(start);
+			}
+			if (snapshotDirty) {
+				saveSnapshot();
+			}
+		} catch (SQLException e) {
+			if (con != null) {
+				con.markBroken();
+			}
+			log.error("database error polling access_change: "+e.getMessage(),e);
+		} catch (RuntimeException e) {
+			// don't let the scheduler cancel future polls
+			log.error("error polling access_change: "+e.getMessage(),e);
+		} finally {
+			session.getConnectionPool().release(con);
+			reloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Reloads one card for every door straight away, e.g. after it has been 
+	 * revoked or granted access.  If the database can't be reached the card 
+	 * is dropped from every cache anyways, so a revoked card stops working, 
+	 * and the next reload is a full one.
+	 * 
+	 * @param cardId the card, e.g. "10-1234"
+	 * @return the number of doors the card now opens, {@link #DATABASE_ERROR} 
+	 *         if the database couldn't be reached, or {@link #BUSY} if another 
+	 *         reload is taking too long
+	 */
+	public int invalidateCard(String cardId) {
+		Set<String> cardIds = new HashSet<String>();
+		cardIds.add(cardId);
+		int patched = invalidate(cardIds, null);
+		if (patched < 0) {
+			return patched;
+		}
+		int doors = 0;
+		for (AccessVerifier av : verifiers.values()) {
+			if (av.getCache().getProfile(cardId) >= 0) {
+				doors++;
+			}
+		}
+		return doors;
+	}
+	
+	/**
+	 * Reloads every card in an access group for every door straight away, 
+	 * e.g. after the group has been given or lost access to a door.
+	 * 
+	 * @param groupId the access group id
+	 * @return the number of cards reloaded, {@link #DATABASE_ERROR} if the 
+	 *         database couldn't be reached, or {@link #BUSY} if another reload 
+	 *         is taking too long
+	 */
+	public int invalidateGroup(int groupId) {
+		Set<Integer> groupIds = new HashSet<Integer>();
+		groupIds.add(Integer.valueOf(groupId));
+		return invalidate(new HashSet<String>(), groupIds);
+	}
+	
+	/**
+	 * Looks up a card which a door's cache doesn't have, and adds it to the 
+	 * cache of every door it opens.  Waits up to readThroughMillis; a lookup 
+	 * which takes longer carries on in the background, so the card works 
+	 * next time it is presented, unless it is still waiting for a reload, 
+	 * which will load the card anyways.  If the lookup threads are all busy, e.g. 
+	 * because the database is slow or someone is presenting lots of unknown 
+	 * cards, the lookup is queued but not waited for, and if the queue is 
+	 * full it is skipped, so a miss costs a door at most one deadline.
+	 * 
+	 * @param cardId the card, e.g. "10-1234"
+	 * @return true if the lookup finished in time, whether or not the card was found
+	 */
+	boolean lookupCard(final String cardId) {
+		FutureTask<Boolean> lookup;
+		synchronized (lookups) {
+			lookup = lookups.get(cardId);
+			if (lookup == null) {
+				lookup = new FutureTask<Boolean>(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						try {
+							return Boolean.valueOf(readThrough(cardId));
+						} finally {
+							synchronized (lookups) {
+								lookups.remove(cardId);
+							}
+						}
+					}
+				});
+				boolean busy = lookups.size() >= LOOKUP_THREADS;
+				try {
+					lookupExecutor.execute(lookup);
+				} catch (RejectedExecutionException e) {
+					session.getMetrics().cardLookupSkipped.incrementAndGet();
+					return false;
+				}
+				lookups.put(cardId, lookup);
+				if (busy) {
+					// queued behind other lookups, so it won't be done in time
+					session.getMetrics().cardLookupSkipped.incrementAndGet();
+					return false;
+				}
+			}
+		}
+		try {
+			return lookup.get(session.getReadThroughMillis(), TimeUnit.MILLISECONDS).booleanValue();
+		} catch (TimeoutException e) {
+			session.getMetrics().cardLookupTimeouts.incrementAndGet();
+			return false;
+		} catch (ExecutionException e) {
+			log.error("error looking up card "+cardId+": "+e.getCause().getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Loads one card for every door and publishes patched copies of the 
+	 * caches of the doors it opens which don't have it yet.  Runs on a lookup thread.
+	 * 
+	 * A door may be waiting, so this waits no longer than readThroughMillis 
+	 * for a reload to finish with the caches, and for a connection, between them.
+	 * 
+	 * @return false if the card couldn't be looked up: the caches haven't been 
+	 *         loaded from the database yet, or a reload or the pool kept it 
+	 *         waiting too long
+	 */
+	private boolean readThrough(String cardId) throws SQLException {
+		PooledConnection con = null;
+		long deadline = System.currentTimeMillis() + session.getReadThroughMillis();
+		try {
+			if (!reloadLock.tryLock(session.getReadThroughMillis(), TimeUnit.MILLISECONDS)) {
+				// the reload will load the card; the door has counted the timeout
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		try {
+			if (scheduleTables == null) {
+				// only the snapshot is loaded; the first reload is on its way
+				return false;
+			}
+			con = session.getConnectionPool().borrow(Math.max(1, deadline - System.currentTimeMillis()));
+			Map<String,CardCache> found = new HashMap<String,CardCache>();
+			for (String doorName : verifiers.keySet()) {
+				found.put(doorName, new CardCache(4));
+			}
+			Set<String> cardIds = new HashSet<String>();
+			cardIds.add(cardId);
+			loadCards(con, found, cardIds);
+			if (profiles.size() != schedules.getProfileCount()) {
+				schedules = buildSchedules();
+			}
+			for (AccessVerifier av : verifiers.values()) {
+				CardCache one = found.get(av.getDoorName());
+				UserCard user = one.get(cardId);
+				if (user != null && av.getCache().getProfile(cardId) < 0) {
+					CardCache cache = av.getCache().copy();
+					cache.put(cardId, user, one.getProfile(cardId));
+					av.publish(cache, av.isForceUnlocked(), schedules);
+					snapshotDirty = true;
+				}
+			}
+			return true;
+		} catch (SQLException e) {
+			if (con != null) {
+				con.markBroken();
+			}
+			throw e;
+		} finally {
+			session.getConnectionPool().release(con);
+			reloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Patches the given cards, and the members of the given groups, into the 
+	 * caches.  Waits up to INVALIDATE_WAIT_SECONDS for a reload which is 
+	 * running, e.g. one stuck on a slow database, rather than holding up the 
+	 * caller for as long as it takes.
+	 * 
+	 * @return the number of cards patched, {@link #DATABASE_ERROR} or {@link #BUSY}
+	 */
+	private int invalidate(Set<String> cardIds, Set<Integer> groupIds) {
+		PooledConnection con = null;
+		long start = System.nanoTime();
+		try {
+			if (!reloadLock.tryLock(INVALIDATE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("caches busy for over "+INVALIDATE_WAIT_SECONDS+"s, not reloading "
+						+(groupIds != null ? "group "+groupIds : cardIds)+" on request");
+				return BUSY;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return BUSY;
+		}
+		try {
+			con = session.getConnectionPool().borrow();
+			if (groupIds != null) {
+				cardIds.addAll(readGroupCards(con, groupIds));
+			}
+			// until a full reload has been done there's nothing to patch: the 
+			// caches came from the snapshot, or a door was added since
+			if (scheduleTables == null || syncVersion < 0 && tracksChanges() || !patch(con, cardIds)) {
+				reloadFull(con);
+			}
+			snapshotDirty = true;
+			session.getMetrics().cachePatch.recordSince(start);
+			if (log.isInfoEnabled()) {
+				log.info("reloaded "+(groupIds != null ? "group "+groupIds+", " : "")+cardIds.size()+" cards on request");
+			}
+			return cardIds.size();
+		} catch (SQLException e) {
+			if (con != null) {
+				con.markBroken();
+			}
+			log.error("database error reloading "+cardIds+": "+e.getMessage()+"; dropping them until the next reload", e);
+			if (!cardIds.isEmpty()) {
+				for (AccessVerifier av : verifiers.values()) {
+					CardCache cache = av.getCache().copy();
+					for (String cardId : cardIds) {
+						cache.remove(cardId);
+					}
+					av.publish(cache, av.isForceUnlocked(), av.getSchedules());
+				}
+			}
+			syncVersion = -1;
+			return DATABASE_ERROR;
+		} finally {
+			session.getConnectionPool().release(con);
+			reloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Publishes the caches saved in the snapshot file, if there is one.
+	 * 
+	 * @return true if a snapshot was loaded
+	 */
+	private boolean loadSnapshot() {
+		if (snapshotFile == null) {
+			return false;
+		}
+		Map<String,CacheSnapshotFile.DoorSnapshot> doors = snapshotFile.load();
+		if (doors == null) {
+			return false;
+		}
+		for (AccessVerifier av : verifiers.values()) {
+			CacheSnapshotFile.DoorSnapshot door = doors.get(av.getDoorName());
+			if (door != null) {
+				av.publish(door.cache, door.forceUnlocked, door.schedules);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Saves the current caches to the snapshot file, if there is one.
+	 */
+	private void saveSnapshot() {
+		if (snapshotFile == null) {
+			return;
+		}
+		Map<String,CacheSnapshotFile.DoorSnapshot> doors = new LinkedHashMap<String,CacheSnapshotFile.DoorSnapshot>();
+		for (AccessVerifier av : verifiers.values()) {
+			doors.put(av.getDoorName(), new CacheSnapshotFile.DoorSnapshot(av.getCache(), 
+					av.isForceUnlocked(), av.getSchedules()));
+		}
+		try {
+			snapshotFile.save(doors);
+			snapshotDirty = false;
+		} catch (IOException e) {
+			log.error("couldn't save cache snapshot: "+e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Returns whether the change log position is kept, for delta reloads or 
+	 * change polling.  Without it syncVersion is always -1.
+	 */
+	private boolean tracksChanges() {
+		return session.isCacheDeltaReload() || session.getChangePollMillis() > 0;
+	}
+	
+	/**
+	 * Loads complete new caches for every door and publishes them.
+	 * 
+	 * @param con the database connection to use
+	 * @throws SQLException if there was a database error
+	 */
+	private void reloadFull(PooledConnection con) throws SQLException {
+		// note the change log position before loading, so that anything 
+		// changed while we load is picked up again by the next delta
+		long newVersion = tracksChanges() ? readChangeVersion(con) : -1;
+		TreeMap<Long,Long> newGaps = new TreeMap<Long,Long>();
+		if (newVersion > 0) {
+			readChangeGaps(con, newVersion, newGaps);
+		}
+		
+		ScheduleTables tables = readScheduleTables(con);
+		
+		// if the load fails, the doors keep their caches, and so need the 
+		// profiles those were built with
+		ScheduleTables oldTables = scheduleTables;
+		List<int[]> oldProfiles = new ArrayList<int[]>(profiles);
+		Map<String,Integer> oldProfileIndex = new HashMap<String,Integer>(profileIndex);
+		Map<String,CardCache> caches = new HashMap<String,CardCache>();
+		Map<String,Boolean> forced;
+		boolean loaded = false;
+		try {
+			scheduleTables = tables;
+			profiles.clear();
+			profileIndex.clear();
+			internProfile(new int[] { 0 });
+			
+			// size each fresh cache from the old one so it doesn't have to grow while loading
+			for (AccessVerifier av : verifiers.values()) {
+				caches.put(av.getDoorName(), new CardCache(av.getCache().size()));
+			}
+			loadCards(con, caches, null);
+			forced = readForceUnlocked(con);
+			loaded = true;
+		} finally {
+			if (!loaded) {
+				scheduleTables = oldTables;
+				profiles.clear();
+				profiles.addAll(oldProfiles);
+				profileIndex.clear();
+				profileIndex.putAll(oldProfileIndex);
+			}
+		}
+		schedules = buildSchedules();
+		for (AccessVerifier av : verifiers.values()) {
+			av.publish(caches.get(av.getDoorName()), forced.get(av.getDoorName()).booleanValue(), schedules);
+		}
+		syncVersion = newVersion;
+		gaps = newGaps;
+		lastFullReload = System.nanoTime();
+	}
+	
+	/**
+	 * Fetches only the cards listed in the change log since our last sync, or 
+	 * in rows which were missing then, and publishes patched copies of the 
+	 * current caches.  A group which has gained or lost a door is patched by 
+	 * reloading all its cards.
+	 * 
+	 * @param con the database connection to use
+	 * @param onlyIfChanged if true, nothing else is read if the change log is 
+	 *        empty; otherwise the door and schedule tables, which aren't in 
+	 *        the change log, are checked as well
+	 * @return true if the caches were patched or are already up to date, 
+	 *         false if a full reload is needed instead
+	 * @throws SQLException if there was a database error
+	 */
+	private boolean reloadDelta(PooledConnection con, boolean onlyIfChanged) throws SQLException {
+		Set<String> changed = new HashSet<String>();
+		Set<Integer> groups = new HashSet<Integer>();
+		long newVersion = syncVersion;
+		long now = System.currentTimeMillis();
+		TreeMap<Long,Long> newGaps = new TreeMap<Long,Long>(gaps);
+		PreparedStatement pstmt = con.prepareStatement("SELECT id, card_id, access_group_id "
+				+"FROM access_change "
+				+"WHERE id > ? "
+				+"ORDER BY id");
+		pstmt.setLong(1, newGaps.isEmpty() ? syncVersion : Math.min(syncVersion, newGaps.firstKey().longValue() - 1));
+		ResultSet rs = pstmt.executeQuery();
+		try {
+			while (rs.next()) {
+				long id = rs.getLong(1);
+				if (id > newVersion) {
+					if (newGaps.size() + (id - newVersion - 1) > MAX_CHANGE_GAPS) {
+						log.debug("too many change log gaps, doing full reload");
+						return false;
+					}
+					for (long gap = newVersion + 1; gap < id; gap++) {
+						newGaps.put(Long.valueOf(gap), Long.valueOf(now));
+					}
+					newVersion = id;
+				} else if (newGaps.remove(Long.valueOf(id)) == null) {
+					// applied already
+					continue;
+				}
+				String cardId = rs.getString(2);
+				if (cardId != null) {
+					changed.add(cardId);
+				}
+				int groupId = rs.getInt(3);
+				if (!rs.wasNull()) {
+					groups.add(Integer.valueOf(groupId));
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		for (Iterator<Long> i = newGaps.values().iterator(); i.hasNext(); ) {
+			if (now - i.next().longValue() > GAP_EXPIRY_MILLIS) {
+				i.remove();
+			}
+		}
+		if (onlyIfChanged && changed.isEmpty() && groups.isEmpty()) {
+			gaps = newGaps;
+			return true;
+		}
+		
+		if (!groups.isEmpty() && changed.size() <= MAX_DELTA_CARDS) {
+			// a group gained or lost a door, so all its cards may have
+			changed.addAll(readGroupCards(con, groups));
+		}
+		if (!patch(con, changed)) {
+			return false;
+		}
+		syncVersion = newVersion;
+		gaps = newGaps;
+		return true;
+	}
+	
+	/**
+	 * Reloads the given cards, and publishes patched copies of the current 
+	 * caches.  Also picks up changes to the door and schedule tables.
+	 * 
+	 * @param con the database connection to use
+	 * @param changed the cards to reload
+	 * @return true if the caches were patched or are already up to date, 
+	 *         false if a full reload is needed instead
+	 * @throws SQLException if there was a database error
+	 */
+	private boolean patch(PooledConnection con, Set<String> changed) throws SQLException {
+		if (changed.size() > MAX_DELTA_CARDS) {
+			log.debug("delta too large, doing full reload");
+			return false;
+		}
+		
+		ScheduleTables tables = readScheduleTables(con);
+		if (!tables.groups.equals(scheduleTables.groups)) {
+			// a group's schedule changed, which isn't in the change log
+			log.debug("group schedules changed, doing full reload");
+			return false;
+		}
+		boolean schedulesChanged = !tables.equals(scheduleTables);
+		
+		Map<String,Boolean> forced = readForceUnlocked(con);
+		Map<String,CardCache> caches = new HashMap<String,CardCache>();
+		if (!changed.isEmpty()) {
+			// copy-on-write: readers keep using the old caches until the swap
+			for (AccessVerifier av : verifiers.values()) {
+				CardCache cache = av.getCache().copy();
+				for (String cardId : changed) {
+					cache.remove(cardId);
+				}
+				caches.put(av.getDoorName(), cache);
+			}
+			loadCards(con, caches, changed);
+		}
+		// only once the cards have loaded, so if that fails the next patch still sees the change
+		scheduleTables = tables;
+		if (schedulesChanged || profiles.size() != schedules.getProfileCount()) {
+			schedules = buildSchedules();
+		}
+		for (AccessVerifier av : verifiers.values()) {
+			CardCache cache = caches.get(av.getDoorName());
+			boolean newForced = forced.get(av.getDoorName()).booleanValue();
+			if (cache != null || newForced != av.isForceUnlocked() || schedules != av.getSchedules()) {
+				av.publish(cache != null ? cache : av.getCache(), newForced, schedules);
+				snapshotDirty = true;
+			}
+		}
+		if (!changed.isEmpty()) {
+			log.debug("patched "+changed.size()+" cards");
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the cards in a set of access groups.
+	 * 
+	 * @param con the database connection to use
+	 * @param groupIds the access group ids
+	 * @return the card ids
+	 * @throws SQLException if there was a database error
+	 */
+	private Set<String> readGroupCards(PooledConnection con, Set<Integer> groupIds) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT DISTINCT card_id "
+				+"FROM card_group "
+				+"WHERE access_group_id IN ");
+		appendPlaceholders(sql, groupIds.size());
+		PreparedStatement pstmt = con.getConnection().prepareStatement(sql.toString());
+		int param = 1;
+		for (Integer groupId : groupIds) {
+			pstmt.setInt(param++, groupId.intValue());
+		}
+		Set<String> cardIds = new HashSet<String>();
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next()) {
+			cardIds.add(rs.getString(1));
+		}
+		rs.close();
+		pstmt.close();
+		return cardIds;
+	}
+	
+	/**
+	 * Runs the card query for all doors and adds the results to the door caches.
+	 * 
+	 * @param con the database connection to use
+	 * @param caches the cache to fill for each door, by door name
+	 * @param cardIds if not null, only these cards are loaded
+	 * @throws SQLException if there was a database error
+	 */
+	private void loadCards(PooledConnection con, Map<String,CardCache> caches, Set<String> cardIds) throws SQLException {
+		if (verifiers.isEmpty() || (cardIds != null && cardIds.isEmpty())) {
+			// "IN ()" isn't valid SQL, and there would be nothing to load anyways
+			return;
+		}
+		StringBuilder sql = new StringBuilder(CARD_SQL);
+		appendPlaceholders(sql, verifiers.size());
+		if (cardIds != null) {
+			sql.append(" AND card.card_id IN ");
+			appendPlaceholders(sql, cardIds.size());
+		}
+		// the full and single card queries never change so their statements 
+		// are cached; longer card lists are one-offs
+		boolean cached = cardIds == null || cardIds.size() == 1;
+		PreparedStatement pstmt = cached ? con.prepareStatement(sql.toString())
+				: con.getConnection().prepareStatement(sql.toString());
+		int param = 1;
+		for (String doorName : verifiers.keySet()) {
+			pstmt.setString(param++, doorName);
+		}
+		if (cardIds != null) {
+			for (String cardId : cardIds) {
+				pstmt.setString(param++, cardId);
+			}
+		}
+		
+		// one UserCard per card, shared by every door it opens
+		Map<String,UserCard> users = new HashMap<String,UserCard>();
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next()) {
+			String cardId = rs.getString("card_id");
+			UserCard user = users.get(cardId);
+			if (user == null) {
+				user = readUserCard(rs);
+				users.put(cardId, user);
+			}
+			CardCache cache = caches.get(rs.getString("door_name"));
+			if (cache != null) {
+				Integer scheduleId = scheduleTables.groups.get(Integer.valueOf(rs.getInt("access_group_id")));
+				int[] ids = new int[] { scheduleId == null ? 0 : scheduleId.intValue() };
+				// a card in several groups for this door gets the union of their schedules;
+				// the entry can only be from this load, as changed cards were removed first
+				int existing = cache.getProfile(cardId);
+				if (existing > 0) {
+					ids = merge(profiles.get(existing), ids[0]);
+				} else if (existing == 0 && ids[0] != 0) {
+					ids = new int[] { 0, ids[0] };
+				}
+				cache.put(cardId, user, internProfile(ids));
+			}
+		}
+		rs.close();
+		if (!cached) {
+			pstmt.close();
+		}
+	}
+	
+	/**
+	 * Returns the profile index for a sorted list of schedule ids, adding a 
+	 * new profile if the list hasn't been seen since the last full reload.
+	 */
+	private int internProfile(int[] scheduleIds) {
+		String key = Arrays.toString(scheduleIds);
+		Integer index = profileIndex.get(key);
+		if (index == null) {
+			index = Integer.valueOf(profiles.size());
+			profiles.add(scheduleIds);
+			profileIndex.put(key, index);
+		}
+		return index.intValue();
+	}
+	
+	/**
+	 * Returns a sorted list of schedule ids with one more id added.
+	 */
+	private static int[] merge(int[] scheduleIds, int scheduleId) {
+		if (Arrays.binarySearch(scheduleIds, scheduleId) >= 0) {
+			return scheduleIds;
+		}
+		int[] merged = new int[scheduleIds.length + 1];
+		System.arraycopy(scheduleIds, 0, merged, 0, scheduleIds.length);
+		merged[scheduleIds.length] = scheduleId;
+		Arrays.sort(merged);
+		return merged;
+	}
+	
+	/**
+	 * Builds the schedule for every profile from the current schedule tables.
+	 */
+	private AccessSchedules buildSchedules() {
+		Map<WeeklySchedule,WeeklySchedule> built = new HashMap<WeeklySchedule,WeeklySchedule>();
+		WeeklySchedule[] weekly = new WeeklySchedule[profiles.size()];
+		for (int p = 0; p < weekly.length; p++) {
+			WeeklySchedule schedule = null;
+			for (int id : profiles.get(p)) {
+				WeeklySchedule part = id == 0 ? session.getDefaultSchedule() : scheduleTables.windows.get(Integer.valueOf(id));
+				if (part == null) {
+					// a schedule with no windows allows nothing
+					part = new WeeklySchedule.Builder().build();
+				}
+				schedule = schedule == null ? part : schedule.union(part);
+			}
+			// many profiles usually come out the same, so share their bitmaps
+			WeeklySchedule same = built.get(schedule);
+			if (same != null) {
+				schedule = same;
+			} else {
+				built.put(schedule, schedule);
+			}
+			weekly[p] = schedule;
+		}
+		return new AccessSchedules(weekly, scheduleTables.holidays);
+	}
+	
+	/**
+	 * The contents of the access_group schedule, schedule_window and holiday tables.
+	 */
+	private static class ScheduleTables {
+		/**
+		 * The schedule id of each group which has one, by group id.
+		 */
+		final Map<Integer,Integer> groups = new HashMap<Integer,Integer>();
+		
+		/**
+		 * The weekly schedule for each schedule id.
+		 */
+		final Map<Integer,WeeklySchedule> windows = new HashMap<Integer,WeeklySchedule>();
+		
+		/**
+		 * The holidays, as sorted local days since 1 January 1970.
+		 */
+		int[] holidays = new int[0];
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ScheduleTables)) {
+				return false;
+			}
+			ScheduleTables t = (ScheduleTables) o;
+			return groups.equals(t.groups) && windows.equals(t.windows) && Arrays.equals(holidays, t.holidays);
+		}
+		
+		@Override
+		public int hashCode() {
+			return groups.hashCode();
+		}
+	}
+	
+	/**
+	 * Reads the group schedules, schedule windows and holidays.  If the 
+	 * tables don't exist every card uses the default schedule.  Any other 
+	 * error is thrown, so the reload is abandoned and the doors keep the 
+	 * caches and schedules they have, rather than falling back to the 
+	 * default schedule because of, say, a dropped connection.
+	 * 
+	 * @param con the database connection to use
+	 * @return the schedule tables
+	 * @throws SQLException if there was a database error other than a missing table
+	 */
+	private ScheduleTables readScheduleTables(PooledConnection con) throws SQLException {
+		ScheduleTables tables = new ScheduleTables();
+		ResultSet rs = null;
+		try {
+			PreparedStatement pstmt = con.prepareStatement("SELECT id, schedule_id "
+					+"FROM access_group "
+					+"WHERE schedule_id IS NOT NULL");
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				tables.groups.put(Integer.valueOf(rs.getInt(1)), Integer.valueOf(rs.getInt(2)));
+			}
+			rs.close();
+			
+			Map<Integer,WeeklySchedule.Builder> builders = new HashMap<Integer,WeeklySchedule.Builder>();
+			pstmt = con.prepareStatement("SELECT schedule_id, day_of_week, "
+					+"HOUR(start_time) * 60 + MINUTE(start_time), "
+					+"HOUR(end_time) * 60 + MINUTE(end_time) "
+					+"FROM schedule_window");
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				Integer id = Integer.valueOf(rs.getInt(1));
+				WeeklySchedule.Builder b = builders.get(id);
+				if (b == null) {
+					b = new WeeklySchedule.Builder();
+					builders.put(id, b);
+				}
+				try {
+					// day_of_week is 1 for Monday to 7 for Sunday
+					b.allow(rs.getInt(2) - 1, rs.getInt(3), rs.getInt(4));
+				} catch (IllegalArgumentException e) {
+					log.warn("ignoring schedule window for schedule "+id+": "+e.getMessage());
+				}
+			}
+			rs.close();
+			for (Map.Entry<Integer,WeeklySchedule.Builder> e : builders.entrySet()) {
+				tables.windows.put(e.getKey(), e.getValue().build());
+			}
+			
+			List<Integer> days = new ArrayList<Integer>();
+			pstmt = con.prepareStatement("SELECT holiday_date FROM holiday");
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				// local midnight, so the clock gives back the same day
+				days.add(Integer.valueOf(session.getScheduleClock().at(rs.getDate(1).getTime()).epochDay));
+			}
+			rs.close();
+			rs = null;
+			Set<Integer> sorted = new TreeSet<Integer>(days);
+			tables.holidays = new int[sorted.size()];
+			int i = 0;
+			for (Integer day : sorted) {
+				tables.holidays[i++] = day.intValue();
+			}
+			schedulesMissing = false;
+			return tables;
+		} catch (SQLException e) {
+			if (!TABLE_NOT_FOUND.equals(e.getSQLState())) {
+				con.markBroken();
+				throw e;
+			}
+			if (!schedulesMissing) {
+				log.warn("can't read schedule tables, using the default schedule for all cards: "+e.getMessage());
+				schedulesMissing = true;
+			}
+			return new ScheduleTables();
+		} finally {
+			// the statements belong to the connection, but the results are ours
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					// the connection is going anyways
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the current position of the change log.  
+	 * 
+	 * @param con the database connection to use
+	 * @return the newest change id, or -1 if there is no change log
+	 */
+	private long readChangeVersion(PooledConnection con) {
+		try {
+			PreparedStatement pstmt = con.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM access_change");
+			ResultSet rs = pstmt.executeQuery();
+			long version = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+			changeLogMissing = false;
+			return version;
+		} catch (SQLException e) {
+			if (!changeLogMissing) {
+				log.warn("can't read access_change table, using full cache reloads: "+e.getMessage());
+				changeLogMissing = true;
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * Finds the change log ids missing from the last {@link #CHANGE_WINDOW} 
+	 * before the given one, which may belong to transactions that haven't 
+	 * committed yet.
+	 * 
+	 * @param con the database connection to use
+	 * @param version the newest change id
+	 * @param gaps the map to add the missing ids to
+	 * @throws SQLException if there was a database error
+	 */
+	private void readChangeGaps(PooledConnection con, long version, Map<Long,Long> gaps) throws SQLException {
+		long expected = Math.max(1, version - CHANGE_WINDOW + 1);
+		Long now = Long.valueOf(System.currentTimeMillis());
+		PreparedStatement pstmt = con.prepareStatement("SELECT id FROM access_change "
+				+"WHERE id >= ? AND id <= ? "
+				+"ORDER BY id");
+		pstmt.setLong(1, expected);
+		pstmt.setLong(2, version);
+		ResultSet rs = pstmt.executeQuery();
+		try {
+			while (rs.next()) {
+				long id = rs.getLong(1);
+				for (; expected < id; expected++) {
+					gaps.put(Long.valueOf(expected), now);
+				}
+				expected = id + 1;
+			}
+		} finally {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * Reads whether each door is configured to be forced unlocked.
+	 * 
+	 * @return the forced unlock state for every door, by door name
+	 */
+	private Map<String,Boolean> readForceUnlocked(PooledConnection con) throws SQLException {
+		Map<String,Boolean> forced = new HashMap<String,Boolean>();
+		for (String doorName : verifiers.keySet()) {
+			forced.put(doorName, Boolean.FALSE);
+		}
+		if (forced.isEmpty()) {
+			return forced;
+		}
+		StringBuilder sql = new StringBuilder("SELECT name, default_unlocked "
+				+"FROM door "
+				+"WHERE door.name IN ");
+		appendPlaceholders(sql, verifiers.size());
+		PreparedStatement pstmt = con.prepareStatement(sql.toString());
+		int param = 1;
+		for (Iterator<String> i = verifiers.keySet().iterator(); i.hasNext(); ) {
+			pstmt.setString(param++, i.next());
+		}
+		ResultSet rs = pstmt.executeQuery();
+		while (rs.next()) {
+			forced.put(rs.getString(1), Boolean.valueOf("Y".equals(rs.getString(2))));
+		}
+		rs.close();
+		return forced;
+	}
+	
+	/**
+	 * Builds a UserCard from the current row of a {@link #CARD_SQL} query.
+	 */
+	private static UserCard readUserCard(ResultSet rs) throws SQLException {
+		Timestamp validFrom = rs.getTimestamp("valid_from");
+		Timestamp expires = rs.getTimestamp("expires");
+		return new UserCard(rs.getString("user"), 
+				rs.getString("nick"), 
+				"Y".equals(rs.getString("after_hours")),
+				"Y".equals(rs.getString("magic")),
+				validFrom == null ? 0 : validFrom.getTime(),
+				expires == null ? Long.MAX_VALUE : expires.getTime());
+	}
+	
+	/**
+	 * Appends "(?,?,...)" with the given number of placeholders.
+	 */
+	private static void appendPlaceholders(StringBuilder sql, int count) {
+		sql.append('(');
+		for (int i = 0; i < count; i++) {
+			sql.append(i == 0 ? "?" : ",?");
+		}
+		sql.append(')');
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes each door access event as a single line of key=value pairs to the 
+ * "AccessEvents" logger, for tools that parse the log later, e.g.:
+ * 
+ * <pre>
+ * time=2010-03-01T18:02:11.345Z door=front card=123-45678 result=allow user="Dan Fraser" nick=dan
+ * </pre>
+ * 
+ * The keys always come in this order.  Values containing spaces, quotes, 
+ * backslashes or '=' are quoted, with '"' and '\' escaped by a backslash; 
+ * user and nick are left out when the card is unknown.
+ * 
+ * Door state events are written the same way, with an event key instead of
+ * card and result:
+ * 
+ * <pre>
+ * time=2010-03-01T18:04:40.012Z door=front event=held_open
+ * </pre>
+ * 
+ * Access events come from this listener's event bus thread and state events 
+ * from the scheduler, so writing is synchronized to share one buffer and date format.
+ * 
+ * @author dfraser
+ *
+ */
+public class AccessEventLog implements DoorAccessListener, DoorStateListener {
+
+	private static Logger log = Logger.getLogger("AccessEvents");
+	
+	private final StringBuilder line = new StringBuilder(160);
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+	private final Date date = new Date();
+	
+	public AccessEventLog() {
+		timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+	
+	@Override
+	public synchronized void doorActionEvent(DoorAccessEvent event) {
+		if (!log.isInfoEnabled()) {
+			return;
+		}
+		line.setLength(0);
+		date.setTime(event.getTime());
+		line.append("time=").append(timeFormat.format(date));
+		append("door", event.getDoorName());
+		append("card", event.getCardId());
+		line.append(" result=").append(event.isAllowed() ? "allow" : "deny");
+		UserCard user = event.getUserCard();
+		if (user != null) {
+			append("user", user.getRealName());
+			append("nick", user.getNickName());
+		}
+		log.info(line.toString());
+	}
+	
+	@Override
+	public synchronized void doorStateEvent(DoorStateEvent event) {
+		if (!log.isInfoEnabled()) {
+			return;
+		}
+		line.setLength(0);
+		date.setTime(event.getTime());
+		line.append("time=").append(timeFormat.format(date));
+		append("door", event.getDoorName());
+		line.append(" event=").append(event.getType().getName());
+		log.info(line.toString());
+	}
+	
+	/**
+	 * Appends " key=value", quoting the value if necessary.
+	 */
+	private void append(String key, String value) {
+		line.append(' ').append(key).append('=');
+		if (value == null) {
+			return;
+		}
+		boolean quote = value.length() == 0;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '\\' || c == '=';
+		}
+		if (!quote) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				line.append('\\');
+			} else if (c == '\n') {
+				line.append("\\n");
+				continue;
+			} else if (c == '\r') {
+				line.append("\\r");
+				continue;
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+}
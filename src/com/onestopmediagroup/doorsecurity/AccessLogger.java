@@ -1,34 +1,105 @@
 package com.onestopmediagroup.doorsecurity;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.BatchUpdateException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Writes door access events to the access_log table.
+ * 
+ * Events are queued and written by a separate thread in batches, so the door 
+ * never waits on the database.  While the database is unreachable, batches are 
+ * appended to a local spool file instead, and replayed in order once it comes back.
+ * 
+ * The first denial of a card at a door is written straight away, and any 
+ * repeats within accessLogDenySeconds are counted and written as one row 
+ * when that time is up.  At most MAX_DENIED_CARDS cards are counted 
+ * separately; beyond that, denials are counted together for each door, so 
+ * someone trying card numbers can't flood the table.
+ */
 public class AccessLogger implements DoorAccessListener {
 
 	private static Logger log = Logger.getLogger(DoorController.class);
 	private static Logger logFriendly = Logger.getLogger("Friendly");
+	
+	private static final int MAX_DENIED_CARDS = 1000;
+	
+	private static final String INSERT_SQL = 
+		"insert into access_log (logged, card_id, action, door, detail) values (?,?,?,?,?)";
 
 	private final Session session;
+	private final BlockingQueue<LogEntry> queue;
+	private final File spoolFile;
+	private final WriterThread writer = new WriterThread();
+	
+	// statistics, mostly written only by the writer thread
+	private volatile int lastBatchSize = 0;
+	private volatile long lastFlushMillis = 0;
+	private volatile long maxFlushMillis = 0;
+	private volatile long batchesWritten = 0;
+	private volatile long entriesWritten = 0;
+	private volatile long entriesSpooled = 0;
+	private final AtomicLong entriesDropped = new AtomicLong();
 
 	public AccessLogger(Session session) {
 		this.session = session;
+		this.queue = new ArrayBlockingQueue<LogEntry>(session.getAccessLogQueueSize());
+		this.spoolFile = new File(session.getAccessLogSpoolFile());
+	}
+	
+	/**
+	 * Starts the thread which writes queued events to the database.
+	 */
+	public void start() {
+		writer.start();
+	}
+	
+	/**
+	 * Stops the writer thread, after it has written or spooled everything still queued.
+	 */
+	public void stop() {
+		writer.interrupt();
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			// we're on our way out anyways
+		}
 	}
 
 	@Override
 	public void doorActionEvent(DoorAccessEvent event) {
-		Connection con = null;
-		try {
-			String doorName = event.getDoorName();
-			boolean allowed = event.isAllowed();
-			UserCard user = event.getUserCard();
-			String cardId = event.getCardId();
-			String detail = "";
+		String doorName = event.getDoorName();
+		boolean allowed = event.isAllowed();
+		UserCard user = event.getUserCard();
+		String cardId = event.getCardId();
+		String detail = event.getDetail();
 
+		if (log.isInfoEnabled()) {
 			log.info(cardId+","+doorName+","+(allowed?"allowed":"denied")+","+detail);
+		}
+		if (logFriendly.isInfoEnabled()) {
 			if (allowed && user != null) {
 				String name;
 				if (session.isFriendlyLogRealName()) {
@@ -40,25 +111,409 @@ public class AccessLogger implements DoorAccessListener {
 			} else {
 				logFriendly.info("Unauthorized card: "+cardId);
 			}
-			con = DriverManager.getConnection(session.getDbUrl());
-			PreparedStatement pstmt = null;
-			pstmt = con.prepareStatement("insert into access_log (logged, card_id, action, door, detail) values (now(),?,?,?,?)");
-			pstmt.setString(1, cardId);
-			pstmt.setString(2, allowed ? "ALLOW" : "DENY");
-			pstmt.setString(3, doorName);
-			pstmt.setString(4, detail);
-			pstmt.execute();
-		} catch (SQLException e) {
-			log.error("database error adding log: "+e.getMessage(),e);
-		} finally {
+		}
+		LogEntry entry = new LogEntry(event.getTime(), cardId, allowed ? "ALLOW" : "DENY", doorName, detail);
+		try {
+			// the writer spools when the database is down, so this only waits 
+			// as long as a batch takes to write
+			queue.put(entry);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			entriesDropped.incrementAndGet();
+			log.error("interrupted while queueing, dropping entry: "+cardId+","+doorName);
+		}
+	}
+	
+	/**
+	 * Returns the number of events waiting to be written.
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+	
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+	
+	/**
+	 * Returns how long the last batch took to write to the database or spool.
+	 * @return the flush time in milliseconds
+	 */
+	public long getLastFlushMillis() {
+		return lastFlushMillis;
+	}
+	
+	public long getMaxFlushMillis() {
+		return maxFlushMillis;
+	}
+	
+	public long getBatchesWritten() {
+		return batchesWritten;
+	}
+	
+	public long getEntriesWritten() {
+		return entriesWritten;
+	}
+	
+	public long getEntriesSpooled() {
+		return entriesSpooled;
+	}
+	
+	public long getEntriesDropped() {
+		return entriesDropped.get();
+	}
+	
+	/**
+	 * A single row for the access_log table.
+	 */
+	private static class LogEntry {
+		final long logged;
+		final String cardId;
+		final String action;
+		final String door;
+		final String detail;
+		
+		LogEntry(long logged, String cardId, String action, String door, String detail) {
+			this.logged = logged;
+			this.cardId = cardId;
+			this.action = action;
+			this.door = door;
+			this.detail = detail;
+		}
+		
+		/**
+		 * Formats the entry as a single tab-separated spool file line.
+		 */
+		String toSpoolLine() {
+			return logged+"\t"+escape(cardId)+"\t"+action+"\t"+escape(door)+"\t"+escape(detail);
+		}
+		
+		static LogEntry fromSpoolLine(String line) {
+			String[] f = line.split("\t", -1);
+			if (f.length != 5) {
+				throw new IllegalArgumentException("bad spool line: "+line);
+			}
+			return new LogEntry(Long.parseLong(f[0]), unescape(f[1]), f[2], unescape(f[3]), unescape(f[4]));
+		}
+		
+		private static String escape(String s) {
+			if (s == null) {
+				return "\\N";
+			}
+			return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+		}
+		
+		private static String unescape(String s) {
+			if ("\\N".equals(s)) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '\\' && i + 1 < s.length()) {
+					char n = s.charAt(++i);
+					sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * Repeated denials of one card at one door, or of the cards at a door 
+	 * that aren't being counted separately.
+	 */
+	private static class Denials {
+		final long first;
+		final String cardId;
+		final String door;
+		long last;
+		int count = 0;
+		
+		Denials(long first, String cardId, String door) {
+			this.first = first;
+			this.cardId = cardId;
+			this.door = door;
+			this.last = first;
+		}
+	}
+	
+	/**
+	 * Takes batches off the queue and writes them to the database, 
+	 * falling back to the spool file.
+	 */
+	private class WriterThread extends Thread {
+		
+		/**
+		 * When the spool should next be replayed, if it has anything in it.
+		 */
+		private long nextReplay = 0;
+		
+		/**
+		 * Denials being counted, by door and card id, oldest first.
+		 */
+		private final Map<String,Denials> denials = new LinkedHashMap<String,Denials>();
+		
+		WriterThread() {
+			super("AccessLogger");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			File tmp = new File(spoolFile.getPath()+".tmp");
+			if (!spoolFile.exists() && tmp.exists() && tmp.renameTo(spoolFile)) {
+				// stopped between replaySpool removing the spool and renaming the rest into place
+				log.warn("recovered access log spool from "+tmp);
+			}
+			List<LogEntry> batch = new ArrayList<LogEntry>();
+			boolean running = true;
+			while (running || !queue.isEmpty() || !denials.isEmpty()) {
+				try {
+					LogEntry first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+					if (first != null) {
+						batch.add(first);
+						queue.drainTo(batch, session.getAccessLogBatchSize() - 1);
+					}
+				} catch (InterruptedException e) {
+					// finish off what's queued, then exit
+					running = false;
+					continue;
+				}
+				countDenials(batch);
+				flushDenials(batch, running ? System.currentTimeMillis() : Long.MAX_VALUE);
+				
+				if (spoolFile.exists() && System.currentTimeMillis() >= nextReplay) {
+					replaySpool();
+				}
+				if (batch.isEmpty()) {
+					continue;
+				}
+				long start = System.currentTimeMillis();
+				if (spoolFile.exists()) {
+					// keep everything in order behind what's already spooled
+					spool(batch);
+				} else {
+					List<LogEntry> failed = insert(batch);
+					if (!failed.isEmpty()) {
+						spool(failed);
+					}
+				}
+				long elapsed = System.currentTimeMillis() - start;
+				lastBatchSize = batch.size();
+				lastFlushMillis = elapsed;
+				if (elapsed > maxFlushMillis) {
+					maxFlushMillis = elapsed;
+				}
+				batchesWritten++;
+				batch.clear();
+			}
+		}
+		
+		/**
+		 * Takes the repeats of denials already being counted out of the batch, 
+		 * and starts counting the rest.
+		 */
+		private void countDenials(List<LogEntry> batch) {
+			for (Iterator<LogEntry> i = batch.iterator(); i.hasNext(); ) {
+				LogEntry e = i.next();
+				if (!"DENY".equals(e.action)) {
+					continue;
+				}
+				String key = e.door+"\t"+e.cardId;
+				Denials d = denials.get(key);
+				if (d == null && denials.size() >= MAX_DENIED_CARDS) {
+					// too many cards to count separately
+					key = e.door+"\t";
+					d = denials.get(key);
+					if (d == null) {
+						d = new Denials(e.logged, null, e.door);
+						denials.put(key, d);
+					}
+				}
+				if (d == null) {
+					denials.put(key, new Denials(e.logged, e.cardId, e.door));
+				} else {
+					d.count++;
+					d.last = e.logged;
+					i.remove();
+				}
+			}
+		}
+		
+		/**
+		 * Adds a row to the batch for each card whose denials have been counted 
+		 * for accessLogDenySeconds, and stops counting it.
+		 * 
+		 * @param now the current time, or Long.MAX_VALUE to write all the counts
+		 */
+		private void flushDenials(List<LogEntry> batch, long now) {
+			long window = session.getAccessLogDenySeconds() * 1000L;
+			for (Iterator<Denials> i = denials.values().iterator(); i.hasNext(); ) {
+				Denials d = i.next();
+				if (now != Long.MAX_VALUE && now - d.first < window) {
+					// the rest started later
+					break;
+				}
+				if (d.count > 0) {
+					String detail = d.cardId == null 
+							? "denied "+d.count+" times for other cards within "+session.getAccessLogDenySeconds()+"s"
+							: "denied "+d.count+" more times within "+session.getAccessLogDenySeconds()+"s";
+					batch.add(new LogEntry(d.last, d.cardId, "DENY", d.door, detail));
+				}
+				i.remove();
+			}
+		}
+		
+		/**
+		 * Writes a batch of entries to the database in a single round trip.
+		 * 
+		 * @return the entries which weren't written, in order: none if the 
+		 *         batch was written, all of them if the database couldn't be 
+		 *         reached, or the ones the driver reports as failed
+		 */
+		private List<LogEntry> insert(List<LogEntry> batch) {
+			PooledConnection con = null;
 			try {
-				if (con != null) {
-					con.close();
+				con = session.getConnectionPool().borrow();
+				PreparedStatement pstmt = con.prepareStatement(INSERT_SQL);
+				for (LogEntry e : batch) {
+					pstmt.setTimestamp(1, new Timestamp(e.logged));
+					pstmt.setString(2, e.cardId);
+					pstmt.setString(3, e.action);
+					pstmt.setString(4, e.door);
+					pstmt.setString(5, e.detail);
+					pstmt.addBatch();
+				}
+				pstmt.executeBatch();
+				entriesWritten += batch.size();
+				return Collections.emptyList();
+			} catch (BatchUpdateException e) {
+				con.markBroken();
+				// rows the driver got through shouldn't be written twice;
+				// the counts stop early if it gave up part way through
+				int[] counts = e.getUpdateCounts();
+				List<LogEntry> failed = new ArrayList<LogEntry>();
+				for (int i = 0; i < batch.size(); i++) {
+					if (counts == null || i >= counts.length || counts[i] == Statement.EXECUTE_FAILED) {
+						failed.add(batch.get(i));
+					}
 				}
+				entriesWritten += batch.size() - failed.size();
+				log.error("database error adding log, "+failed.size()+" of "+batch.size()+" entries not written: "+e.getMessage(),e);
+				nextReplay = System.currentTimeMillis() + session.getAccessLogRetrySeconds() * 1000L;
+				return failed;
 			} catch (SQLException e) {
-				// nothing to do
+				if (con != null) {
+					con.markBroken();
+				}
+				log.error("database error adding log: "+e.getMessage(),e);
+				nextReplay = System.currentTimeMillis() + session.getAccessLogRetrySeconds() * 1000L;
+				return batch;
+			} finally {
+				session.getConnectionPool().release(con);
+			}
+		}
+		
+		/**
+		 * Appends a batch of entries to the spool file, and syncs it to disk, 
+		 * since the database is most likely down because of a power cut.
+		 */
+		private void spool(List<LogEntry> batch) {
+			try {
+				write(new FileOutputStream(spoolFile, true), batch);
+				entriesSpooled += batch.size();
+			} catch (IOException e) {
+				entriesDropped.addAndGet(batch.size());
+				log.error("couldn't write to access log spool "+spoolFile+", "+batch.size()+" entries lost: "+e.getMessage(), e);
+			}
+		}
+		
+		/**
+		 * Writes everything in the spool file to the database, in order.  
+		 * If the database fails part way through, the entries not yet written 
+		 * are left in the spool.
+		 */
+		private void replaySpool() {
+			List<LogEntry> pending = new ArrayList<LogEntry>();
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(spoolFile), "UTF-8"));
+				try {
+					String line;
+					while ((line = r.readLine()) != null) {
+						try {
+							pending.add(LogEntry.fromSpoolLine(line));
+						} catch (IllegalArgumentException e) {
+							log.error("skipping unreadable spool entry: "+e.getMessage());
+						}
+					}
+				} finally {
+					r.close();
+				}
+			} catch (IOException e) {
+				log.error("couldn't read access log spool "+spoolFile+": "+e.getMessage(), e);
+				nextReplay = System.currentTimeMillis() + session.getAccessLogRetrySeconds() * 1000L;
+				return;
+			}
+			
+			int done = 0;
+			List<LogEntry> failed = Collections.emptyList();
+			int batchSize = session.getAccessLogBatchSize();
+			while (done < pending.size() && failed.isEmpty()) {
+				List<LogEntry> batch = pending.subList(done, Math.min(done + batchSize, pending.size()));
+				failed = insert(batch);
+				done += batch.size();
+			}
+			int written = done - failed.size();
+			if (written == 0) {
+				if (pending.isEmpty()) {
+					// left empty by a rewrite after the delete below failed
+					spoolFile.delete();
+				}
+				return;
+			}
+			log.info("replayed "+written+" of "+pending.size()+" spooled access log entries");
+			List<LogEntry> rest = new ArrayList<LogEntry>(failed);
+			rest.addAll(pending.subList(done, pending.size()));
+			if (rest.isEmpty() && spoolFile.delete()) {
+				return;
+			}
+			// the rest is written alongside and renamed into place, so the 
+			// spool never loses entries or keeps ones already written
+			File tmp = new File(spoolFile.getPath()+".tmp");
+			try {
+				write(new FileOutputStream(tmp), rest);
+				if (!tmp.renameTo(spoolFile)) {
+					// windows won't rename over an existing file
+					if (!spoolFile.delete() || !tmp.renameTo(spoolFile)) {
+						throw new IOException("can't rename "+tmp+" to "+spoolFile);
+					}
+				}
+			} catch (IOException e) {
+				log.error("couldn't rewrite access log spool "+spoolFile+", "+written
+						+" entries will be written again: "+e.getMessage(), e);
+			}
+		}
+		
+		/**
+		 * Writes entries to a spool file and syncs it to disk.
+		 */
+		private void write(FileOutputStream fos, List<LogEntry> entries) throws IOException {
+			try {
+				Writer w = new OutputStreamWriter(fos, "UTF-8");
+				for (LogEntry e : entries) {
+					w.write(e.toSpoolLine());
+					w.write('\n');
+				}
+				w.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
 			}
-		}	
+		}
 	}
 
 }
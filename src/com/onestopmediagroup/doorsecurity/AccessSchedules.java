@@ -0,0 +1,140 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.Arrays;
+
+/**
+ * The access schedules in force at a site: a numbered list of weekly 
+ * schedules ("profiles"), which each cached card refers to by index, and a 
+ * list of holidays on which no scheduled access is allowed.  Profile 0 is 
+ * the default schedule from the afterHoursStart and afterHoursEnd settings, 
+ * used by cards whose groups have no schedule of their own.
+ * 
+ * Cards allowed after hours bypass the schedules and holidays altogether.
+ * 
+ * Immutable; a new instance is built on every cache reload.
+ * 
+ * @author dfraser
+ *
+ */
+public final class AccessSchedules {
+
+	private final WeeklySchedule[] profiles;
+	
+	/**
+	 * The holidays as a bitmap of days, starting at firstHoliday.
+	 */
+	private final long[] holidays;
+	private final int firstHoliday;
+	
+	/**
+	 * Creates a set of schedules with no holidays.
+	 * 
+	 * @param profiles the schedule for each profile; profile 0 is the default
+	 */
+	public AccessSchedules(WeeklySchedule[] profiles) {
+		this(profiles, new int[0]);
+	}
+	
+	/**
+	 * Creates a set of schedules.
+	 * 
+	 * @param profiles the schedule for each profile; profile 0 is the default
+	 * @param holidayDays the holidays, as local days since 1 January 1970
+	 */
+	public AccessSchedules(WeeklySchedule[] profiles, int[] holidayDays) {
+		if (profiles.length == 0) {
+			throw new IllegalArgumentException("no default schedule");
+		}
+		this.profiles = profiles.clone();
+		int[] days = holidayDays.clone();
+		Arrays.sort(days);
+		if (days.length == 0) {
+			firstHoliday = 0;
+			holidays = new long[0];
+		} else {
+			firstHoliday = days[0];
+			holidays = new long[(days[days.length - 1] - firstHoliday) / 64 + 1];
+			for (int day : days) {
+				int bit = day - firstHoliday;
+				holidays[bit >>> 6] |= 1L << bit;
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether a profile allows access at a given minute.
+	 * 
+	 * @param profile the profile index, from the card cache
+	 * @param minute the local minute, from a {@link ScheduleClock}
+	 * @return true if access is allowed
+	 */
+	public boolean allows(int profile, ScheduleClock.Minute minute) {
+		return !isHoliday(minute.epochDay) && profiles[profile].allows(minute.minuteOfWeek);
+	}
+	
+	/**
+	 * Checks whether a day is a holiday.
+	 * 
+	 * @param epochDay local days since 1 January 1970
+	 * @return true if the day is a holiday
+	 */
+	public boolean isHoliday(int epochDay) {
+		int bit = epochDay - firstHoliday;
+		return bit >= 0 && (bit >>> 6) < holidays.length && (holidays[bit >>> 6] & (1L << bit)) != 0;
+	}
+	
+	/**
+	 * Returns the number of profiles.
+	 */
+	public int getProfileCount() {
+		return profiles.length;
+	}
+	
+	/**
+	 * Returns the schedule of a profile.
+	 * 
+	 * @param profile the profile index
+	 * @return the schedule
+	 */
+	public WeeklySchedule getProfile(int profile) {
+		return profiles[profile];
+	}
+	
+	/**
+	 * Returns the holidays, as local days since 1 January 1970.
+	 */
+	public int[] getHolidays() {
+		int count = 0;
+		for (long word : holidays) {
+			count += Long.bitCount(word);
+		}
+		int[] days = new int[count];
+		int n = 0;
+		for (int bit = 0; bit < holidays.length * 64; bit++) {
+			if ((holidays[bit >>> 6] & (1L << bit)) != 0) {
+				days[n++] = firstHoliday + bit;
+			}
+		}
+		return days;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+/**
+ * Everything an {@link AccessVerifier} needs to make an access decision, 
+ * published as a single immutable unit so that lookups never take a lock
+ * and never see a cache from one reload paired with settings from another.
+ * 
+ * The CardCache must not be modified once it has been put in a snapshot.
+ * 
+ * @author dfraser
+ *
+ */
+public final class AccessSnapshot {
+
+	private final CardCache cache;
+	private final boolean forceUnlocked;
+	private final AccessSchedules schedules;
+	
+	/**
+	 * Creates a new snapshot.
+	 * 
+	 * @param cache the door access cache
+	 * @param forceUnlocked whether the door is being forced unlocked by database configuration
+	 * @param schedules the schedules referred to by the cache's profile indexes
+	 */
+	public AccessSnapshot(CardCache cache, boolean forceUnlocked, AccessSchedules schedules) {
+		this.cache = cache;
+		this.forceUnlocked = forceUnlocked;
+		this.schedules = schedules;
+	}
+	
+	/**
+	 * Returns a copy of this snapshot with a different cache, force-unlock state and schedules.
+	 */
+	public AccessSnapshot withCache(CardCache newCache, boolean newForceUnlocked, AccessSchedules newSchedules) {
+		return new AccessSnapshot(newCache, newForceUnlocked, newSchedules);
+	}
+	
+	/**
+	 * Returns a copy of this snapshot with a different force-unlock state.
+	 */
+	public AccessSnapshot withForceUnlocked(boolean newForceUnlocked) {
+		return new AccessSnapshot(cache, newForceUnlocked, schedules);
+	}
+
+	public CardCache getCache() {
+		return cache;
+	}
+
+	public boolean isForceUnlocked() {
+		return forceUnlocked;
+	}
+
+	public AccessSchedules getSchedules() {
+		return schedules;
+	}
+}
@@ -20,14 +20,11 @@
 
 package com.onestopmediagroup.doorsecurity;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Calendar;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
@@ -36,6 +33,11 @@ import org.apache.log4j.Logger;
  * current access database, and verification of a specific credential against 
  * a specific door.
  * 
+ * If readThroughMillis is set, a card missing from the cache is looked up in 
+ * the database before it is denied.  Cards which still aren't found are 
+ * remembered for readThroughMissSeconds and denied straight away, so unknown 
+ * cards presented over and over don't each cost a query.
+ * 
  * @author dfraser
  *
  */
@@ -51,164 +53,186 @@ public class AccessVerifier {
 	private final String doorName;
 	
 	/**
-	 * Data storage for the access control database cache.
+	 * The access control database cache, together with the forced unlock state 
+	 * and the access schedules.  A new snapshot is built off to the side and 
+	 * swapped in whole, so readers never need a lock.
 	 */
-	private Map<String,UserCard> doorCache = new HashMap<String,UserCard>();
+	private final AtomicReference<AccessSnapshot> snapshot;
+
+
+	private final Session session;
+	
+	private final ScheduleClock clock;
 	
 	/**
-	 * "Double-buffer" so we can load a new cache without throwing out the old one.
+	 * Looks up cards missing from the cache, or null if they are just denied.
 	 */
-	private Map<String,UserCard> newCache;
+	private final AccessCacheService readThrough;
+	private final long missMillis;
 	
 	/**
-	 * Whether or not the current door is being forced unlocked by 
-	 * database configuration.
-	 */ 
-	boolean forceUnlocked = false;
+	 * The most cards remembered as missing.
+	 */
+	private static final int MAX_MISSES = 1024;
 	
 	/**
-	 * "Double-buffer" so we can load state without throwing out the old one.
+	 * How long saving the forced unlock state waits for a database connection 
+	 * when the pool is busy.
 	 */
-	boolean newForceUnlocked = false;
-
-
-	private final Session session;
+	private static final long SWIPE_BORROW_MILLIS = 250;
+	
+	/**
+	 * The forced unlock state set by {@link #setDefaultUnlocked(boolean)} and 
+	 * not yet saved, or null.
+	 */
+	private final AtomicReference<Boolean> unsavedForceUnlocked = new AtomicReference<Boolean>();
+	
+	/**
+	 * Held while saving the forced unlock state, so saves are written in order.
+	 */
+	private final Object saveLock = new Object();
 	
 	/**
-	 * Creates a new AccessVerifier object for a specific door, and loads its cache.
+	 * Cards recently looked up and not found, with when to forget them, 
+	 * oldest first.  Guarded by itself.
+	 */
+	private final Map<String,Long> misses = new LinkedHashMap<String,Long>() {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+			return size() > MAX_MISSES;
+		}
+	};
+	
+	/**
+	 * Creates a new AccessVerifier object for a specific door, with an empty cache.
+	 * The cache is loaded and kept up to date by the {@link AccessCacheService}.
 	 * 
 	 * @param doorName the door identifier that we are controlling access for  
-	 * @param dbUrl the JDBC user for our SQL database
-	 * @param dbDriver the JDBC driver classname for our SQL database
+	 * @param session the session holding the database configuration
+	 * @param accessCache the service loading the cache, which also looks up 
+	 *        missing cards if readThroughMillis is set
 	 */
-	public AccessVerifier(String doorName, Session session) {
+	AccessVerifier(String doorName, Session session, AccessCacheService accessCache) {
 		this.doorName = doorName;
 		this.session = session;
-		log.debug("currently after hours: "+isAfterHours(session.getAfterHoursStart(), session.getAfterHoursEnd()));
-		try {
-			Class.forName(session.getDbDriver()).newInstance();
-		} catch (Exception e) {
-			System.out.println("couldn't load class: "+e.getMessage());
+		this.clock = session.getScheduleClock();
+		this.readThrough = session.getReadThroughMillis() > 0 ? accessCache : null;
+		this.missMillis = session.getReadThroughMissSeconds() * 1000L;
+		this.snapshot = new AtomicReference<AccessSnapshot>(new AccessSnapshot(new CardCache(), false, 
+				new AccessSchedules(new WeeklySchedule[] { session.getDefaultSchedule() })));
+		if (log.isDebugEnabled()) {
+			log.debug("currently after hours: "+isAfterHours());
 		}
-		updateCache();
-		Thread crt = new CacheReloadThread();
-		crt.start();
 	}
 	
 	/**
 	 * Sets whether or not this door should default to an unlocked state. 
 	 * If this is set to true, the door will unlock and remain unlocked until 
-	 * the state is changed.
+	 * the state is changed.  
+	 * 
+	 * Only the cached state is changed, so this can be called while holding 
+	 * the door's lock; {@link #saveDefaultUnlocked()} writes it to the database.
 	 * 
 	 * @param state whether or not the door should default to an unlocked state.
 	 */
 	public void setDefaultUnlocked(boolean state) {
-		// replace newcache with a fresh hashmap so we don't overwrite the old one
-		newCache = new HashMap<String,UserCard>();
-		Connection con = null;
-		try {
-			con = DriverManager.getConnection(session.getDbUrl());
-			PreparedStatement pstmt = null;
-			pstmt = con.prepareStatement("update door "
-					+"set default_unlocked = ? "
-					+"WHERE door.name = ? ");
-			pstmt.setString(1, state ? "Y" : "N");
-			pstmt.setString(2, doorName);
-			pstmt.execute();
-			forceUnlocked = state;
-		} catch (SQLException e) {
-			log.error("database error updating cache for door "+doorName+": "+e.getMessage(),e);
-		} finally {
-			try {
-				if (con != null) {
-					con.close();
-				}
-			} catch (SQLException e) {
-				// nothing to do
-			}
-		}
-		
+		unsavedForceUnlocked.set(Boolean.valueOf(state));
+		setForceUnlocked(state);
 	}
 	
 	/**
-	 * Updates newCache with data from our SQL database.
+	 * Writes the state last set by {@link #setDefaultUnlocked(boolean)} to the 
+	 * database, if it hasn't been already.  If the database can't be updated 
+	 * the cached state still stands until the next reload.
 	 */
-	private void updateCache() {
-		// replace newcache with a fresh hashmap so we don't overwrite the old one
-		newCache = new HashMap<String,UserCard>();
-		Connection con = null;
-		try {
-			log.trace("loading cache for door: "+doorName);
-			con = DriverManager.getConnection(session.getDbUrl());
-			PreparedStatement pstmt = null;
-    		String sql = "SELECT "+
-                            "	card.card_id, "+
-                            "	card.user, "+
-                            "	card.nick, "+
-                            "	card.after_hours, "+
-                            "	card.magic "+
-                            "FROM "+
-                            "	card, "+
-                            "	card_group, "+
-                            "	door_access, "+
-                            "	door "+
-                            "WHERE "+
-                            "	card_group.card_id = card.card_id "+
-                            "AND "+
-                            "	card_group.access_group_id = door_access.access_group_id "+
-                            "AND "+
-                            "	door_access.door_id = door.id "+
-                            "AND "+
-                            "	door.name = ? "+
-                            "AND "+
-                            "	(card.expires is null or card.expires > now( )) "+
-                            "AND "+
-                            "	(card.valid_from is null or card.valid_from < now()) "+
-                            "AND "+
-                            "	card.disabled = 'N'";
-                pstmt = con.prepareStatement(sql);
-    		pstmt.setString(1, doorName);
-    		ResultSet rs = pstmt.executeQuery();
-    		while (rs.next()) {
-    			newCache.put(rs.getString("card_id"),
-    					new UserCard(rs.getString("user"), 
-    							rs.getString("nick"), 
-    							"Y".equals(rs.getString("after_hours")),
-    							"Y".equals(rs.getString("magic")
-    					)));
-    		}
-    		rs.close();
-    		pstmt.close();
-    		pstmt = con.prepareStatement("SELECT default_unlocked "
-    				+"FROM door "
-    				+"WHERE door.name = ? ");
-    		pstmt.setString(1, doorName);
-    		rs = pstmt.executeQuery();
-    		while (rs.next()) {
-    			newForceUnlocked = "Y".equals(rs.getString(1)) ? true : false;
-    		}
-    		swapCache();
-    		
-		} catch (SQLException e) {
-			log.error("database error updating cache for door "+doorName+": "+e.getMessage(),e);
-		} finally {
+	public void saveDefaultUnlocked() {
+		synchronized (saveLock) {
+			Boolean state = unsavedForceUnlocked.getAndSet(null);
+			if (state == null) {
+				return;
+			}
+			PooledConnection con = null;
 			try {
-				if (con != null) {
-					con.close();
+				con = session.getConnectionPool().borrow(SWIPE_BORROW_MILLIS);
+				PreparedStatement pstmt = null;
+				pstmt = con.prepareStatement("update door "
+						+"set default_unlocked = ? "
+						+"WHERE door.name = ? ");
+				pstmt.setString(1, state.booleanValue() ? "Y" : "N");
+				pstmt.setString(2, doorName);
+				pstmt.execute();
+				if (unsavedForceUnlocked.get() == null) {
+					// a reload may have published the old state while we waited
+					setForceUnlocked(state.booleanValue());
 				}
 			} catch (SQLException e) {
-				// nothing to do
+				if (con != null) {
+					con.markBroken();
+				}
+				log.error("database error saving forced unlock state for door "+doorName
+						+", it will be lost at the next reload: "+e.getMessage(),e);
+			} finally {
+				session.getConnectionPool().release(con);
 			}
 		}
 	}
 	
+	private void setForceUnlocked(boolean state) {
+		AccessSnapshot current;
+		do {
+			current = snapshot.get();
+		} while (!snapshot.compareAndSet(current, current.withForceUnlocked(state)));
+	}
+	
 	/**
-	 * Swaps the buffers in our double-buffered cache.  This is intended to be instanenous, 
+	 * Whether or not the current door is being forced unlocked by 
+	 * database configuration.
+	 * 
+	 * @return true if the door should be held unlocked
+	 */
+	public boolean isForceUnlocked() {
+		return snapshot.get().isForceUnlocked();
+	}
+	
+	/**
+	 * Returns the name of the door this verifier checks access for.
+	 * @return the door name
+	 */
+	public String getDoorName() {
+		return doorName;
+	}
+	
+	/**
+	 * Returns the current door access cache.  It must not be modified.
+	 * @return the cache
+	 */
+	CardCache getCache() {
+		return snapshot.get().getCache();
+	}
+	
+	/**
+	 * Returns the schedules the current cache's profile indexes refer to.
+	 * @return the schedules
+	 */
+	AccessSchedules getSchedules() {
+		return snapshot.get().getSchedules();
+	}
+	
+	/**
+	 * Publishes a newly loaded cache.  This is intended to be instanenous, 
 	 * so we don't have to block for database access at any time.
+	 * 
+	 * @param newCache the new cache, which must not be modified afterwards
+	 * @param newForceUnlocked whether the door is being forced unlocked
+	 * @param newSchedules the schedules the new cache's profile indexes refer to
 	 */
-	private synchronized void swapCache() {
-		doorCache = newCache;
-		forceUnlocked = newForceUnlocked;
+	void publish(CardCache newCache, boolean newForceUnlocked, AccessSchedules newSchedules) {
+		AccessSnapshot current;
+		do {
+			current = snapshot.get();
+		} while (!snapshot.compareAndSet(current, current.withCache(newCache, newForceUnlocked, newSchedules)));
 	}
 	
 	
@@ -218,11 +242,23 @@ public class AccessVerifier {
 	 * @param cardId the card id to check
 	 * @return a UserCard object representing the user, or null if access was denied.
 	 */
-	public synchronized UserCard checkAccess(String cardId) {
-		UserCard user = doorCache.get(cardId);
+	public UserCard checkAccess(String cardId) {
+		int key = HIDCard.parseCardKey(cardId);
+		if (key != -1) {
+			return checkAccess(key, true);
+		}
+		AccessSnapshot current = snapshot.get();
+		UserCard user = current.getCache().get(cardId);
+		if (user == null && readThrough != null && lookUp(cardId)) {
+			current = snapshot.get();
+			user = current.getCache().get(cardId);
+		}
 		if (user != null) {
-			boolean currentlyAfterHours = isAfterHours(session.getAfterHoursStart(), session.getAfterHoursEnd());
-			if (currentlyAfterHours == true && user.isAfterHoursAllowed() == false) { 
+			if (!user.isValidAt(System.currentTimeMillis())) {
+				return null;
+			}
+			if (!user.isAfterHoursAllowed() 
+					&& !current.getSchedules().allows(current.getCache().getProfile(cardId), clock.now())) { 
 				return null;
 			}
 		}
@@ -230,24 +266,114 @@ public class AccessVerifier {
 	}
 	
 	/**
-	 * Class to handle automatic reloading of the door access cache.
+	 * Checks the access to this door for a given card.
 	 * 
-	 * @author dfraser
-	 *
+	 * @param facility the facility code of the card to check
+	 * @param cardNumber the card number of the card to check
+	 * @return a UserCard object representing the user, or null if access was denied.
 	 */
-	public class CacheReloadThread extends Thread {
-		
-		@Override
-		public void run() {
-			while (!this.isInterrupted()) {
-				try { 
-					Thread.sleep(session.getCacheReloadSeconds()*1000); // every 5 minutes
-					updateCache();
-				} catch (InterruptedException e) {
-					return;
-				}		
+	public UserCard checkAccess(int facility, int cardNumber) {
+		return checkAccess(HIDCard.packCardKey(facility, cardNumber), true);
+	}
+	
+	/**
+	 * Checks the access to this door for a given card, without looking it up 
+	 * in the database if it isn't cached, so this never waits.
+	 * 
+	 * @param facility the facility code of the card to check
+	 * @param cardNumber the card number of the card to check
+	 * @return a UserCard object representing the user, or null if access was denied.
+	 */
+	public UserCard checkCached(int facility, int cardNumber) {
+		return checkAccess(HIDCard.packCardKey(facility, cardNumber), false);
+	}
+	
+	/**
+	 * Returns whether {@link #checkAccess(int, int)} would look the card up in 
+	 * the database, and so might wait up to readThroughMillis.
+	 * 
+	 * @param facility the facility code of the card
+	 * @param cardNumber the card number of the card
+	 * @return true if the card isn't cached and isn't known to be missing
+	 */
+	public boolean needsLookup(int facility, int cardNumber) {
+		int key = HIDCard.packCardKey(facility, cardNumber);
+		if (readThrough == null || snapshot.get().getCache().find(key) != -1) {
+			return false;
+		}
+		synchronized (misses) {
+			Long until = misses.get(HIDCard.formatCardKey(key));
+			return until == null || until.longValue() <= System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Checks the access to this door for a packed card key.
+	 * 
+	 * @param lookUp whether to look the card up if it isn't cached
+	 */
+	private UserCard checkAccess(int key, boolean lookUp) {
+		AccessSnapshot current = snapshot.get();
+		CardCache cache = current.getCache();
+		int slot = cache.find(key);
+		if (slot == -1) {
+			if (!lookUp || readThrough == null || !lookUp(HIDCard.formatCardKey(key))) {
+				return null;
 			}
+			current = snapshot.get();
+			cache = current.getCache();
+			slot = cache.find(key);
+		}
+		int flags = cache.flagsAt(slot);
+		if ((flags & CardCache.FLAG_VALIDITY) != 0 && !cache.userAt(slot).isValidAt(System.currentTimeMillis())) {
+			return null;
+		}
+		if ((flags & CardCache.FLAG_AFTER_HOURS) == 0 
+				&& !current.getSchedules().allows(cache.profileAt(slot), clock.now())) {
+			return null;
 		}
+		return cache.userAt(slot);
+	}
+	
+	/**
+	 * Looks up a card missing from the cache, unless it was looked up and not 
+	 * found recently.
+	 * 
+	 * @param cardId the card id
+	 * @return true if the card is now in the cache
+	 */
+	private boolean lookUp(String cardId) {
+		Metrics metrics = session.getMetrics();
+		long now = System.currentTimeMillis();
+		synchronized (misses) {
+			Long until = misses.get(cardId);
+			if (until != null) {
+				if (until.longValue() > now) {
+					metrics.cardLookupSkipped.incrementAndGet();
+					return false;
+				}
+				misses.remove(cardId);
+			}
+		}
+		long start = System.nanoTime();
+		boolean finished = readThrough.lookupCard(cardId);
+		if (finished && getCache().getProfile(cardId) >= 0) {
+			metrics.cardLookupFound.incrementAndGet();
+			metrics.cardLookup.recordSince(start);
+			if (log.isInfoEnabled()) {
+				log.info("card "+cardId+" wasn't cached for door "+doorName+", found in database");
+			}
+			return true;
+		}
+		if (finished) {
+			// only a card the database doesn't have is remembered; one which 
+			// timed out or was skipped is looked up again next time
+			metrics.cardLookupNotFound.incrementAndGet();
+			synchronized (misses) {
+				misses.put(cardId, Long.valueOf(now + missMillis));
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -258,10 +384,12 @@ public class AccessVerifier {
 	 * @param detail a detail message regarding the log entry
 	 */
 	public void logAccess(String cardId, boolean allowed, UserCard user, String detail) {
-		Connection con = null;
+		PooledConnection con = null;
 		try {
-			log.info(cardId+","+doorName+","+(allowed?"allowed":"denied")+","+detail);
-			if (allowed && user != null) {
+			if (log.isInfoEnabled()) {
+				log.info(cardId+","+doorName+","+(allowed?"allowed":"denied")+","+detail);
+			}
+			if (allowed && user != null && logFriendly.isInfoEnabled()) {
 				String name;
 				if (session.isFriendlyLogRealName()) {
 					name = user.getRealName();
@@ -270,7 +398,7 @@ public class AccessVerifier {
 				}
 				logFriendly.info(name+" has entered.");
 			}
-			con = DriverManager.getConnection(session.getDbUrl());
+			con = session.getConnectionPool().borrow();
 			PreparedStatement pstmt = null;
     		pstmt = con.prepareStatement("insert into access_log (logged, card_id, action, door, detail) values (now(),?,?,?,?)");
     		pstmt.setString(1, cardId);
@@ -279,59 +407,22 @@ public class AccessVerifier {
     		pstmt.setString(4, detail);
     		pstmt.execute();
 		} catch (SQLException e) {
+			if (con != null) {
+				con.markBroken();
+			}
 			log.error("database error adding log: "+e.getMessage(),e);
 		} finally {
-			try {
-				if (con != null) {
-					con.close();
-				}
-			} catch (SQLException e) {
-				// nothing to do
-			}
+			session.getConnectionPool().release(con);
 		}	
 	}
 	
-	/** 
-	 * Checks if it's after hours or not.  Assumes Saturday and Sunday are after hours.
-	 * If "after hours" has not been configured or is disabled, this will always return false.
- 	 *
-	 * @param startTime the time at which after hours starts.  Times are an integer representing 24-hour time as HHmm.
-	 * @param endTime the time at which after hours ends.
-	 * @return true if current time falls within any TimePairs.  false otherwise.
+	/**
+	 * Returns whether it is currently after hours at this door, that is, 
+	 * whether the default schedule denies access right now.
+	 * 
+	 * @return true if after hours access rules apply
 	 */
-	private boolean isAfterHours(int startTime, int endTime) {
-		if (!session.isAfterHoursEnabled()) {
-			log.debug("after hours is disabled, returning false");
-			return false;
-		}
-		
-		Calendar cal = Calendar.getInstance();
-		
-		if (cal.get(Calendar.DAY_OF_WEEK) == Calendar.SATURDAY || cal.get(Calendar.DAY_OF_WEEK) == Calendar.SUNDAY) {
-			log.debug("weekend, after hours is true");
-			return true;
-		}
-		
-		int currentTime = cal.get(Calendar.HOUR_OF_DAY) * 100 + cal.get(Calendar.MINUTE);
-		log.debug("after hours test: startime is "+startTime+" endtime is: "+endTime+" current time is: "+currentTime);
-							
-	  	if (startTime > endTime) {
-			// crossing midnight, special test
-			if ( (startTime <= currentTime && currentTime <= 2359) ||
-				 (0 <= currentTime && currentTime < endTime)) {
-				 	return true;
-			}
-		} else {
-			// simple case, not crossing midnight
-			if (currentTime >= startTime && currentTime < endTime) {
-				return true;
-			}
-		}
-	  	
-	  	return false;
+	boolean isAfterHours() {
+		return !snapshot.get().getSchedules().allows(0, clock.now());
 	}
-	
-	
 }
-
-
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Category;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * A log4j appender which hands events to other appenders on a background 
+ * thread, through a bounded {@link EventRing}, so that a door thread never 
+ * waits for a slow disk.  If the ring is full the event is dropped, and a 
+ * warning giving the number dropped is logged once the ring drains.
+ * 
+ * log4j 1.2 can't configure appender references from a properties file, so 
+ * {@link #wrapAll(int)} moves the appenders configured in log4j.properties 
+ * behind one of these for each logger.  Appender filters are not applied to 
+ * this appender; the wrapped appenders still apply their own.
+ * 
+ * @author dfraser
+ *
+ */
+public class AsyncLogAppender extends AppenderSkeleton {
+
+	private static final AtomicLong totalDropped = new AtomicLong();
+	
+	private final EventRing<LoggingEvent> ring;
+	private final List<Appender> appenders = new CopyOnWriteArrayList<Appender>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Dispatcher dispatcher = new Dispatcher();
+	
+	/**
+	 * Creates a new AsyncLogAppender and starts its dispatcher thread.
+	 * 
+	 * @param bufferSize the number of events which can be waiting; rounded up to a power of two
+	 */
+	public AsyncLogAppender(int bufferSize) {
+		this.ring = new EventRing<LoggingEvent>(bufferSize);
+		dispatcher.start();
+	}
+	
+	/**
+	 * Moves the appenders of the root logger and every other logger which has 
+	 * its own behind an AsyncLogAppender.
+	 * 
+	 * @param bufferSize the ring size for each AsyncLogAppender
+	 */
+	@SuppressWarnings("unchecked")
+	public static void wrapAll(int bufferSize) {
+		List<Category> loggers = new ArrayList<Category>();
+		loggers.add(LogManager.getRootLogger());
+		for (Enumeration<Category> e = LogManager.getCurrentLoggers(); e.hasMoreElements(); ) {
+			loggers.add(e.nextElement());
+		}
+		for (Category logger : loggers) {
+			List<Appender> existing = new ArrayList<Appender>();
+			for (Enumeration<Appender> e = logger.getAllAppenders(); e.hasMoreElements(); ) {
+				existing.add(e.nextElement());
+			}
+			if (existing.isEmpty()) {
+				continue;
+			}
+			AsyncLogAppender async = new AsyncLogAppender(bufferSize);
+			async.setName("Async"+logger.getName());
+			for (Appender a : existing) {
+				logger.removeAppender(a);
+				async.addAppender(a);
+			}
+			logger.addAppender(async);
+		}
+	}
+	
+	/**
+	 * Adds an appender to pass events on to.
+	 * 
+	 * @param appender the appender
+	 */
+	public void addAppender(Appender appender) {
+		appenders.add(appender);
+	}
+	
+	/**
+	 * Returns the number of events dropped by this appender because its ring was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Returns the number of events dropped by all AsyncLogAppenders.
+	 */
+	public static long getTotalDropped() {
+		return totalDropped.get();
+	}
+	
+	/**
+	 * Queues an event without AppenderSkeleton's lock, so threads logging at
+	 * the same time don't wait for each other.
+	 */
+	@Override
+	public void doAppend(LoggingEvent event) {
+		if (!closed && isAsSevereAsThreshold(event.getLevel())) {
+			append(event);
+		}
+	}
+	
+	@Override
+	protected void append(LoggingEvent event) {
+		// these are filled in lazily from the current thread, so must be
+		// fetched before the event is handed over
+		event.getThreadName();
+		event.getNDC();
+		event.getMDCCopy();
+		event.getRenderedMessage();
+		event.getThrowableStrRep();
+		if (ring.offer(event)) {
+			dispatcher.wake();
+		} else {
+			dropped.incrementAndGet();
+			totalDropped.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stops the dispatcher once everything queued has been written, then 
+	 * closes the wrapped appenders.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		dispatcher.running = false;
+		LockSupport.unpark(dispatcher);
+		try {
+			dispatcher.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Appender a : appenders) {
+			a.close();
+		}
+	}
+	
+	public boolean requiresLayout() {
+		return false;
+	}
+	
+	private void dispatch(LoggingEvent event) {
+		for (Appender a : appenders) {
+			a.doAppend(event);
+		}
+	}
+	
+	/**
+	 * Passes queued events on to the wrapped appenders.
+	 */
+	private class Dispatcher extends Thread {
+		volatile boolean running = true;
+		volatile boolean parked = false;
+		private long reported = 0;
+		
+		Dispatcher() {
+			super("AsyncLogAppender");
+			setDaemon(true);
+		}
+		
+		void wake() {
+			if (parked) {
+				parked = false;
+				LockSupport.unpark(this);
+			}
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				LoggingEvent event = ring.poll();
+				if (event == null) {
+					long d = dropped.get();
+					if (d != reported) {
+						dispatch(new LoggingEvent(AsyncLogAppender.class.getName(), 
+								Logger.getLogger(AsyncLogAppender.class), Level.WARN, 
+								"dropped "+(d - reported)+" log events, logging can't keep up", null));
+						reported = d;
+					}
+					if (!running) {
+						return;
+					}
+					parked = true;
+					// check again, in case an event was queued before we set the flag
+					if (ring.size() == 0 && running) {
+						LockSupport.park(this);
+					}
+					parked = false;
+					continue;
+				}
+				try {
+					dispatch(event);
+				} catch (RuntimeException e) {
+					// an appender failing mustn't stop the dispatcher
+					LogLog.error("async appender "+AsyncLogAppender.this.getName()+" failed: "+e.getMessage(), e);
+				}
+			}
+		}
+	}
+}
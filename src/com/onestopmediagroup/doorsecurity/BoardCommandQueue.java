@@ -0,0 +1,311 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The commands waiting to go to one Cerberus-Prox board.
+ * 
+ * The board has three outputs (strike, green LED and beeper), each set by a 
+ * two-byte command and a newline, and answers "??" with its output states.
+ * Each output, and the status request, has one slot here holding the latest 
+ * command for it, so a newer command replaces an unsent older one, and a 
+ * latched state ('L' or '0') which the board already has isn't sent again.
+ * 
+ * Commands are written at no more than the 9600 baud line rate, highest 
+ * priority first (strike, then LED, beeper and status), so the strike never 
+ * waits behind more than the one command already going out.  When the link 
+ * is idle a command is written straight away on the calling thread; 
+ * otherwise the next one is written by the scheduler once the line is free.
+ * The strike doesn't wait for the scheduler, whose threads may be busy with 
+ * other doors: the calling thread waits out the command on the line, about 
+ * 3ms at most, and writes it itself.
+ * 
+ * Status replies are compared with the latched states sent before the 
+ * request, and a latched command which the board doesn't reflect is sent again.
+ * 
+ * @author dfraser
+ *
+ */
+public class BoardCommandQueue {
+
+	private static Logger log = Logger.getLogger(BoardCommandQueue.class);
+	
+	/** The output channels, in priority order. */
+	public static final int STRIKE = 0;
+	public static final int GREEN = 1;
+	public static final int BEEP = 2;
+	public static final int STATUS = 3;
+	
+	private static final byte[] COMMANDS = { 'S', 'G', 'B', '?' };
+	
+	/**
+	 * Time to send one byte at 9600 baud, 8N1.
+	 */
+	private static final long BYTE_NANOS = 10 * 1000000000L / 9600;
+	
+	/**
+	 * A status reply older than this can't be for a request still waiting.
+	 */
+	private static final long STATUS_TIMEOUT_NANOS = 1000000000L;
+	
+	private final DoorTransport port;
+	private final ScheduledExecutorService scheduler;
+	private final Metrics.DoorMetrics metrics;
+	private final String name;
+	
+	// all guarded by this
+	
+	/**
+	 * The parameter of the command waiting in each channel, or 0 for none.
+	 */
+	private final byte[] pending = new byte[4];
+	
+	/**
+	 * The latched state last sent on each output ('L' or '0'), or 0 if a timed 
+	 * command was sent last or nothing has been sent.
+	 */
+	private final byte[] latched = new byte[3];
+	
+	/**
+	 * The expected output states for each status request sent and not yet answered.
+	 */
+	private final LinkedList<Expected> expected = new LinkedList<Expected>();
+	
+	/**
+	 * When the last command written will have gone out on the line.
+	 */
+	private long lineFreeAt = System.nanoTime();
+	private boolean drainScheduled = false;
+	
+	private final byte[] out = new byte[3];
+	
+	/**
+	 * Creates a new BoardCommandQueue.
+	 * 
+	 * @param port the connection to the board
+	 * @param scheduler used to write queued commands once the line is free
+	 * @param metrics where to count the commands sent, coalesced and resent
+	 */
+	public BoardCommandQueue(DoorTransport port, ScheduledExecutorService scheduler, Metrics.DoorMetrics metrics) {
+		this.port = port;
+		this.scheduler = scheduler;
+		this.metrics = metrics;
+		this.name = metrics.doorName;
+	}
+	
+	/**
+	 * Sets an output to a latched state.  Nothing is sent if the board has 
+	 * already been sent that state.
+	 * 
+	 * @param channel STRIKE, GREEN or BEEP
+	 * @param on true to latch the output on, false to turn it off
+	 * @throws IOException if the command couldn't be written
+	 */
+	public synchronized void latch(int channel, boolean on) throws IOException {
+		byte param = on ? (byte) 'L' : (byte) '0';
+		if (pending[channel] == 0 && latched[channel] == param) {
+			metrics.commandsSuppressed.incrementAndGet();
+			return;
+		}
+		queue(channel, param);
+	}
+	
+	/**
+	 * Turns an output on for a number of seconds.  Always sent.
+	 * 
+	 * @param channel STRIKE, GREEN or BEEP
+	 * @param seconds from 1 to 9
+	 * @throws IOException if the command couldn't be written
+	 */
+	public synchronized void pulse(int channel, int seconds) throws IOException {
+		if (seconds < 1 || seconds > 9) {
+			throw new IllegalArgumentException("bad pulse length "+seconds);
+		}
+		queue(channel, (byte) ('0' + seconds));
+	}
+	
+	/**
+	 * Asks the board for its output states.
+	 * 
+	 * @throws IOException if the command couldn't be written
+	 */
+	public synchronized void requestStatus() throws IOException {
+		queue(STATUS, (byte) '?');
+	}
+	
+	/**
+	 * Handles a '?' status frame from the board: "?bgs" with a '0' or '1' for 
+	 * the beeper, green LED and strike.  Latched outputs which don't match 
+	 * what was sent before the request are sent again.
+	 * 
+	 * @param buf the frame
+	 * @param length the length of the frame
+	 * @throws IOException if a command couldn't be resent
+	 */
+	public synchronized void statusReceived(byte[] buf, int length) throws IOException {
+		if (length < 4) {
+			return;
+		}
+		long now = System.nanoTime();
+		Expected e;
+		do {
+			e = expected.poll();
+		} while (e != null && now - e.sent > STATUS_TIMEOUT_NANOS);
+		if (e == null) {
+			// not ours, or too late to tell what it refers to
+			return;
+		}
+		// the reply is in beeper, green, strike order
+		check(e, BEEP, buf[1]);
+		check(e, GREEN, buf[2]);
+		check(e, STRIKE, buf[3]);
+	}
+	
+	private void check(Expected e, int channel, byte actual) throws IOException {
+		byte want = e.latched[channel];
+		if (want == 0) {
+			// unknown, or timed and possibly just run out
+			return;
+		}
+		boolean on = actual == '1';
+		if (on != (want == 'L')) {
+			metrics.commandRetransmits.incrementAndGet();
+			log.warn("door "+name+": board has "+(char) COMMANDS[channel]+" "+(on ? "on" : "off")
+					+", expected "+(want == 'L' ? "on" : "off")+"; resending");
+			if (pending[channel] == 0) {
+				queue(channel, want);
+			}
+		}
+	}
+	
+	/**
+	 * Forgets what the board has been sent, so the next latch commands are 
+	 * sent whatever they are, e.g. after reconnecting to a board which may 
+	 * have been reset.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < latched.length; i++) {
+			latched[i] = 0;
+		}
+		expected.clear();
+	}
+	
+	/**
+	 * Puts a command in its channel's slot and writes whatever can be written now.
+	 */
+	private void queue(int channel, byte param) throws IOException {
+		if (pending[channel] != 0) {
+			metrics.commandsCoalesced.incrementAndGet();
+		}
+		pending[channel] = param;
+		if (channel == STRIKE) {
+			long wait;
+			while ((wait = lineFreeAt - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		drain();
+	}
+	
+	/**
+	 * Writes the highest priority waiting command if the line is free, and 
+	 * arranges to be called again when it will be.
+	 */
+	private void drain() throws IOException {
+		long now = System.nanoTime();
+		if (now - lineFreeAt >= 0) {
+			for (int channel = 0; channel < pending.length; channel++) {
+				if (pending[channel] != 0) {
+					write(channel, now);
+					break;
+				}
+			}
+		}
+		if (!drainScheduled && hasPending()) {
+			drainScheduled = true;
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					synchronized (BoardCommandQueue.this) {
+						drainScheduled = false;
+						try {
+							drain();
+						} catch (IOException e) {
+							log.error("door "+name+": error writing command: "+e.getMessage());
+						}
+					}
+				}
+			}, Math.max(0, lineFreeAt - now), TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	private void write(int channel, long now) throws IOException {
+		byte param = pending[channel];
+		pending[channel] = 0;
+		out[0] = COMMANDS[channel];
+		out[1] = param;
+		out[2] = '\n';
+		lineFreeAt = now + out.length * BYTE_NANOS;
+		if (channel == STATUS) {
+			// the reply will reflect everything sent before the request
+			expected.add(new Expected(now, latched.clone()));
+			if (expected.size() > 4) {
+				expected.removeFirst();
+			}
+		} else if (param == 'L' || param == '0') {
+			latched[channel] = param;
+		} else {
+			// timed, so the state depends on when the board is asked
+			latched[channel] = 0;
+		}
+		metrics.commandsSent.incrementAndGet();
+		port.send(out, out.length);
+	}
+	
+	private boolean hasPending() {
+		for (byte p : pending) {
+			if (p != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * The latched output states when a status request was sent.
+	 */
+	private static class Expected {
+		final long sent;
+		final byte[] latched;
+		
+		Expected(long sent, byte[] latched) {
+			this.sent = sent;
+			this.latched = latched;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reloads cards in the access caches on demand, so a revoked badge stops 
+ * working straight away rather than at the next reload.  POST one or more 
+ * card and group parameters, e.g.:
+ * 
+ * <pre>
+ * curl -d card=10-1234 -d group=7 http://doorhost:8080/invalidate
+ * </pre>
+ * 
+ * Each is answered with a line giving the number of doors the card now 
+ * opens, or the number of cards in the group which were reloaded.  If the 
+ * database can't be reached the status is 503; the cards are dropped from 
+ * the caches anyways.  If a reload already running keeps the caches busy 
+ * for more than a few seconds the status is also 503, with a Retry-After 
+ * header, and the request should be sent again.
+ * 
+ * @author dfraser
+ *
+ */
+public class CacheInvalidationServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+	
+	private final AccessCacheService accessCache;
+	
+	public CacheInvalidationServlet(AccessCacheService accessCache) {
+		this.accessCache = accessCache;
+	}
+	
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		String[] cards = req.getParameterValues("card");
+		String[] groups = req.getParameterValues("group");
+		if (cards == null && groups == null) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "expected card or group parameters");
+			return;
+		}
+		int[] groupIds = new int[groups == null ? 0 : groups.length];
+		for (int i = 0; i < groupIds.length; i++) {
+			try {
+				groupIds[i] = Integer.parseInt(groups[i].trim());
+			} catch (NumberFormatException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid group id: "+groups[i]);
+				return;
+			}
+		}
+		
+		StringBuilder body = new StringBuilder();
+		boolean failed = false;
+		boolean busy = false;
+		if (cards != null) {
+			for (String card : cards) {
+				int doors = accessCache.invalidateCard(card.trim());
+				failed |= doors < 0;
+				busy |= doors == AccessCacheService.BUSY;
+				body.append("card ").append(card.trim()).append(doors < 0 ? error(doors) : " doors="+doors).append('\n');
+			}
+		}
+		for (int groupId : groupIds) {
+			int count = accessCache.invalidateGroup(groupId);
+			failed |= count < 0;
+			busy |= count == AccessCacheService.BUSY;
+			body.append("group ").append(groupId).append(count < 0 ? error(count) : " cards="+count).append('\n');
+		}
+		
+		resp.setContentType("text/plain");
+		resp.setStatus(failed ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_OK);
+		if (busy) {
+			resp.setHeader("Retry-After", String.valueOf(AccessCacheService.INVALIDATE_WAIT_SECONDS));
+		}
+		PrintWriter out = resp.getWriter();
+		out.print(body);
+		out.flush();
+	}
+	
+	private static String error(int code) {
+		return code == AccessCacheService.BUSY ? " error=busy" : " error=database";
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Saves the door access caches to a compact binary file after each successful
+ * reload, and loads them back at startup so doors can admit people before 
+ * the database is reachable.
+ * 
+ * The file is a fixed header (magic, format version, time saved, payload 
+ * length and CRC-32 of the payload) followed by the payload: a table of every 
+ * distinct card, a table of the distinct {@link AccessSchedules}, then for 
+ * each door its forced unlock state, schedules table index and a list of 
+ * (card key, card table index, schedule profile) entries.  Files with a bad 
+ * header or checksum, from an older format version, or saved longer ago than
+ * the maximum age, are ignored.
+ * 
+ * The file is memory-mapped while it is loaded and unmapped straight after, 
+ * since Windows won't replace a file which is still mapped.
+ * 
+ * @author dfraser
+ *
+ */
+public class CacheSnapshotFile {
+
+	private static Logger log = Logger.getLogger(CacheSnapshotFile.class);
+	
+	private static final int MAGIC = 0x43505831; // "CPX1"
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 8;
+	
+	private final File file;
+	
+	/**
+	 * Where the previous snapshot is kept while a new one replaces it, on 
+	 * systems which can't rename over an existing file.
+	 */
+	private final File oldFile;
+	
+	private final long maxAgeMillis;
+	
+	/**
+	 * Creates a new CacheSnapshotFile.
+	 * 
+	 * @param file the file to save to and load from
+	 * @param maxAgeMillis how old a snapshot may be and still be loaded, or 0 for any age
+	 */
+	public CacheSnapshotFile(File file, long maxAgeMillis) {
+		this.file = file;
+		this.oldFile = new File(file.getPath()+".old");
+		this.maxAgeMillis = maxAgeMillis;
+	}
+	
+	/**
+	 * The cache, forced unlock state and schedules of a single door.
+	 */
+	public static class DoorSnapshot {
+		public final CardCache cache;
+		public final boolean forceUnlocked;
+		public final AccessSchedules schedules;
+		
+		public DoorSnapshot(CardCache cache, boolean forceUnlocked, AccessSchedules schedules) {
+			this.cache = cache;
+			this.forceUnlocked = forceUnlocked;
+			this.schedules = schedules;
+		}
+	}
+	
+	/**
+	 * Saves the caches.  The file is written alongside and renamed into place, 
+	 * so a power cut during a save leaves the previous snapshot intact.
+	 * 
+	 * @param doors the state of each door, by door name
+	 * @throws IOException if the file couldn't be written
+	 */
+	public void save(Map<String,DoorSnapshot> doors) throws IOException {
+		// number the distinct cards; doors share UserCard objects
+		final Map<UserCard,Integer> index = new IdentityHashMap<UserCard,Integer>();
+		ByteArrayOutputStream cardBytes = new ByteArrayOutputStream();
+		final DataOutputStream cards = new DataOutputStream(cardBytes);
+		// doors normally all share one AccessSchedules
+		Map<AccessSchedules,Integer> scheduleIndex = new IdentityHashMap<AccessSchedules,Integer>();
+		ByteArrayOutputStream scheduleBytes = new ByteArrayOutputStream();
+		DataOutputStream scheduleOut = new DataOutputStream(scheduleBytes);
+		ByteArrayOutputStream doorBytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(doorBytes);
+		
+		out.writeInt(doors.size());
+		for (Map.Entry<String,DoorSnapshot> door : doors.entrySet()) {
+			writeString(out, door.getKey());
+			out.writeBoolean(door.getValue().forceUnlocked);
+			Integer s = scheduleIndex.get(door.getValue().schedules);
+			if (s == null) {
+				s = Integer.valueOf(scheduleIndex.size());
+				scheduleIndex.put(door.getValue().schedules, s);
+				writeSchedules(scheduleOut, door.getValue().schedules);
+			}
+			out.writeInt(s.intValue());
+			out.writeInt(door.getValue().cache.size());
+			final IOException[] failure = new IOException[1];
+			door.getValue().cache.visit(new CardCache.Visitor() {
+				public void card(int key, String cardId, UserCard user, int profile) {
+					try {
+						Integer i = index.get(user);
+						if (i == null) {
+							i = Integer.valueOf(index.size());
+							index.put(user, i);
+							writeUser(cards, user);
+						}
+						out.writeInt(key);
+						if (key == -1) {
+							writeString(out, cardId);
+						}
+						out.writeInt(i.intValue());
+						out.writeShort(profile);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		cards.flush();
+		scheduleOut.flush();
+		out.flush();
+		
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(8 + cardBytes.size() 
+				+ scheduleBytes.size() + doorBytes.size());
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeInt(index.size());
+		cardBytes.writeTo(payload);
+		payload.writeInt(scheduleIndex.size());
+		scheduleBytes.writeTo(payload);
+		doorBytes.writeTo(payload);
+		payload.flush();
+		byte[] data = payloadBytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("can't create directory "+parent);
+		}
+		File tmp = new File(file.getPath()+".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream header = new DataOutputStream(fos);
+			header.writeInt(MAGIC);
+			header.writeInt(FORMAT_VERSION);
+			header.writeLong(System.currentTimeMillis());
+			header.writeInt(data.length);
+			header.writeLong(crc.getValue());
+			header.write(data);
+			header.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// windows won't rename over an existing file, so move the old one 
+			// aside first; load() falls back to it if we stop in between
+			oldFile.delete();
+			if (file.exists() && !file.renameTo(oldFile)) {
+				throw new IOException("can't rename "+file+" to "+oldFile);
+			}
+			if (!tmp.renameTo(file)) {
+				oldFile.renameTo(file);
+				throw new IOException("can't rename "+tmp+" to "+file);
+			}
+			oldFile.delete();
+		}
+	}
+	
+	/**
+	 * Loads the caches saved by {@link #save(Map)}.
+	 * 
+	 * @return the state of each door, by door name, or null if there is no usable snapshot
+	 */
+	public Map<String,DoorSnapshot> load() {
+		// only there if a save was cut short while replacing the file
+		File file = this.file.isFile() ? this.file : oldFile;
+		if (!file.isFile()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		MappedByteBuffer buf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.remaining() < HEADER_LENGTH || buf.getInt() != MAGIC) {
+				log.warn("ignoring cache snapshot "+file+": not a snapshot file");
+				return null;
+			}
+			if (buf.getInt() != FORMAT_VERSION) {
+				log.warn("ignoring cache snapshot "+file+": saved by a different version");
+				return null;
+			}
+			long saved = buf.getLong();
+			long age = System.currentTimeMillis() - saved;
+			if (maxAgeMillis > 0 && age > maxAgeMillis) {
+				log.warn("ignoring cache snapshot "+file+": saved "+(age / 1000)+"s ago, more than snapshotMaxAgeSeconds");
+				return null;
+			}
+			int length = buf.getInt();
+			long expectedCrc = buf.getLong();
+			if (length != buf.remaining()) {
+				log.warn("ignoring cache snapshot "+file+": truncated");
+				return null;
+			}
+			if (checksum(buf.duplicate()) != expectedCrc) {
+				log.warn("ignoring cache snapshot "+file+": bad checksum");
+				return null;
+			}
+			
+			UserCard[] users = new UserCard[buf.getInt()];
+			for (int i = 0; i < users.length; i++) {
+				users[i] = readUser(buf);
+			}
+			AccessSchedules[] schedules = new AccessSchedules[buf.getInt()];
+			for (int i = 0; i < schedules.length; i++) {
+				schedules[i] = readSchedules(buf);
+			}
+			int doorCount = buf.getInt();
+			Map<String,DoorSnapshot> doors = new LinkedHashMap<String,DoorSnapshot>();
+			for (int d = 0; d < doorCount; d++) {
+				String name = readString(buf);
+				boolean forced = buf.get() != 0;
+				AccessSchedules doorSchedules = schedules[buf.getInt()];
+				int count = buf.getInt();
+				CardCache cache = new CardCache(count);
+				for (int c = 0; c < count; c++) {
+					int key = buf.getInt();
+					if (key == -1) {
+						String cardId = readString(buf);
+						UserCard user = users[buf.getInt()];
+						cache.put(cardId, user, checkProfile(buf.getShort(), doorSchedules));
+					} else {
+						UserCard user = users[buf.getInt()];
+						cache.put(key, user, checkProfile(buf.getShort(), doorSchedules));
+					}
+				}
+				doors.put(name, new DoorSnapshot(cache, forced, doorSchedules));
+			}
+			log.info("loaded cache snapshot of "+users.length+" cards for "+doorCount
+					+" doors, saved "+(age / 1000)+"s ago");
+			return doors;
+		} catch (Exception e) {
+			// a corrupt file could throw almost anything out of the buffer
+			log.warn("ignoring cache snapshot "+file+": "+e.getMessage());
+			return null;
+		} finally {
+			// everything loaded has been copied out of the buffer
+			if (buf != null) {
+				unmap(buf);
+			}
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+	
+	/**
+	 * Unmaps a buffer now rather than when it is garbage collected.  There's 
+	 * no public API for this, so it uses Unsafe.invokeCleaner on Java 9 and 
+	 * later and the buffer's cleaner before that.  The buffer must not be 
+	 * used afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buf) {
+		try {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buf);
+			} catch (NoSuchMethodException e) {
+				Method cleanerMethod = buf.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buf);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (Exception e) {
+			// it'll be unmapped when it is collected; only Windows minds
+			log.debug("couldn't unmap cache snapshot: "+e);
+		}
+	}
+	
+	private static long checksum(ByteBuffer buf) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		while (buf.hasRemaining()) {
+			int n = Math.min(chunk.length, buf.remaining());
+			buf.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+	
+	private static int checkProfile(int profile, AccessSchedules schedules) throws IOException {
+		if (profile < 0 || profile >= schedules.getProfileCount()) {
+			throw new IOException("bad schedule profile "+profile);
+		}
+		return profile;
+	}
+	
+	private static void writeSchedules(DataOutputStream out, AccessSchedules schedules) throws IOException {
+		out.writeInt(schedules.getProfileCount());
+		for (int p = 0; p < schedules.getProfileCount(); p++) {
+			long[] bits = schedules.getProfile(p).getBits();
+			out.writeInt(bits.length);
+			for (long word : bits) {
+				out.writeLong(word);
+			}
+		}
+		int[] holidays = schedules.getHolidays();
+		out.writeInt(holidays.length);
+		for (int day : holidays) {
+			out.writeInt(day);
+		}
+	}
+	
+	private static AccessSchedules readSchedules(ByteBuffer buf) throws IOException {
+		WeeklySchedule[] profiles = new WeeklySchedule[buf.getInt()];
+		for (int p = 0; p < profiles.length; p++) {
+			long[] bits = new long[buf.getInt()];
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = buf.getLong();
+			}
+			profiles[p] = WeeklySchedule.fromBits(bits);
+		}
+		int[] holidays = new int[buf.getInt()];
+		for (int i = 0; i < holidays.length; i++) {
+			holidays[i] = buf.getInt();
+		}
+		return new AccessSchedules(profiles, holidays);
+	}
+	
+	private static void writeUser(DataOutputStream out, UserCard user) throws IOException {
+		writeString(out, user.getRealName());
+		writeString(out, user.getNickName());
+		out.writeByte(CardCache.flagsOf(user));
+		out.writeLong(user.getValidFrom());
+		out.writeLong(user.getExpires());
+	}
+	
+	private static UserCard readUser(ByteBuffer buf) throws IOException {
+		String realName = readString(buf);
+		String nickName = readString(buf);
+		int flags = buf.get();
+		long validFrom = buf.getLong();
+		long expires = buf.getLong();
+		return new UserCard(realName, nickName, 
+				(flags & CardCache.FLAG_AFTER_HOURS) != 0, 
+				(flags & CardCache.FLAG_MAGIC) != 0, 
+				validFrom, expires);
+	}
+	
+	/**
+	 * Writes a possibly-null string as a length (-1 for null) and UTF-8 bytes.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+	
+	private static String readString(ByteBuffer buf) throws IOException {
+		int length = buf.getInt();
+		if (length == -1) {
+			return null;
+		}
+		byte[] b = new byte[length];
+		buf.get(b);
+		return new String(b, "UTF-8");
+	}
+}
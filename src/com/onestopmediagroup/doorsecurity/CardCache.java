@@ -0,0 +1,417 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The access cache for a single door, keyed on packed card keys 
+ * (see {@link HIDCard#packCardKey(int, int)}).
+ * 
+ * Entries live in an open-addressing table with linear probing: the keys, 
+ * the UserCard objects, the UserCard flags bit-packed into a byte, and the 
+ * index of the card's schedule in the door's {@link AccessSchedules} are 
+ * held in parallel arrays, so a lookup never boxes or hashes a String.
+ * Card ids in the database which aren't of the "facility-card" form are 
+ * kept in a small ordinary map on the side.
+ * 
+ * Not thread-safe; a cache is filled by one thread and then handed over.
+ * 
+ * @author dfraser
+ *
+ */
+public class CardCache {
+
+	public static final int FLAG_AFTER_HOURS = 0x01;
+	public static final int FLAG_MAGIC = 0x02;
+	public static final int FLAG_VALIDITY = 0x04;
+	
+	private static final int EMPTY = -1;
+	
+	private int[] keys;
+	private UserCard[] users;
+	private byte[] flags;
+	private short[] profiles;
+	private int size = 0;
+	private int mask;
+	
+	/**
+	 * Cards whose id couldn't be packed into a key.
+	 */
+	private Map<String,Other> others;
+	
+	private static class Other {
+		final UserCard user;
+		final short profile;
+		
+		Other(UserCard user, short profile) {
+			this.user = user;
+			this.profile = profile;
+		}
+	}
+	
+	/**
+	 * Creates an empty cache.
+	 */
+	public CardCache() {
+		this(16);
+	}
+	
+	/**
+	 * Creates an empty cache sized to hold the given number of cards without growing.
+	 * 
+	 * @param expected the expected number of cards
+	 */
+	public CardCache(int expected) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < expected) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	/**
+	 * Adds or replaces a card using the default schedule, by its database card id.
+	 * 
+	 * @param cardId the card id from the database
+	 * @param user the card's details
+	 */
+	public void put(String cardId, UserCard user) {
+		put(cardId, user, 0);
+	}
+	
+	/**
+	 * Adds or replaces a card, by its database card id.
+	 * 
+	 * @param cardId the card id from the database
+	 * @param user the card's details
+	 * @param profile the index of the card's schedule in the door's AccessSchedules
+	 * @throws IllegalArgumentException if the profile index is over 32767
+	 */
+	public void put(String cardId, UserCard user, int profile) {
+		int key = HIDCard.parseCardKey(cardId);
+		if (key == EMPTY) {
+			if (others == null) {
+				others = new HashMap<String,Other>();
+			}
+			others.put(cardId, new Other(user, checkProfile(profile)));
+		} else {
+			put(key, user, profile);
+		}
+	}
+	
+	/**
+	 * Adds or replaces a card using the default schedule.
+	 * 
+	 * @param key the packed card key
+	 * @param user the card's details
+	 */
+	public void put(int key, UserCard user) {
+		put(key, user, 0);
+	}
+	
+	/**
+	 * Adds or replaces a card.
+	 * 
+	 * @param key the packed card key
+	 * @param user the card's details
+	 * @param profile the index of the card's schedule in the door's AccessSchedules
+	 * @throws IllegalArgumentException if the profile index is over 32767
+	 */
+	public void put(int key, UserCard user, int profile) {
+		short checked = checkProfile(profile);
+		if ((size + 1) * 4 > keys.length * 3) {
+			resize(keys.length << 1);
+		}
+		int slot = probe(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+		}
+		users[slot] = user;
+		flags[slot] = flagsOf(user);
+		profiles[slot] = checked;
+	}
+	
+	/**
+	 * Profiles are stored as shorts to keep the cache small.
+	 */
+	private static short checkProfile(int profile) {
+		if (profile < 0 || profile > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("schedule profile "+profile+" out of range");
+		}
+		return (short) profile;
+	}
+	
+	/**
+	 * Removes a card, by its database card id.
+	 * 
+	 * @param cardId the card id from the database
+	 */
+	public void remove(String cardId) {
+		int key = HIDCard.parseCardKey(cardId);
+		if (key == EMPTY) {
+			if (others != null) {
+				others.remove(cardId);
+			}
+		} else {
+			remove(key);
+		}
+	}
+	
+	/**
+	 * Removes a card.  Later entries in the same probe run are shifted back 
+	 * into the gap, so no tombstones are needed.
+	 * 
+	 * @param key the packed card key
+	 */
+	public void remove(int key) {
+		int slot = probe(key);
+		if (keys[slot] == EMPTY) {
+			return;
+		}
+		size--;
+		int next = slot;
+		while (true) {
+			keys[slot] = EMPTY;
+			users[slot] = null;
+			flags[slot] = 0;
+			profiles[slot] = 0;
+			int home;
+			do {
+				next = (next + 1) & mask;
+				if (keys[next] == EMPTY) {
+					return;
+				}
+				home = hash(keys[next]) & mask;
+				// keep looking while the entry at next belongs between slot and next
+			} while (slot <= next ? (slot < home && home <= next) : (slot < home || home <= next));
+			keys[slot] = keys[next];
+			users[slot] = users[next];
+			flags[slot] = flags[next];
+			profiles[slot] = profiles[next];
+			slot = next;
+		}
+	}
+	
+	/**
+	 * Returns a copy of this cache which can be changed without affecting this one.
+	 * The UserCard objects themselves are shared.
+	 * 
+	 * @return the copy
+	 */
+	public CardCache copy() {
+		CardCache c = new CardCache();
+		c.keys = keys.clone();
+		c.users = users.clone();
+		c.flags = flags.clone();
+		c.profiles = profiles.clone();
+		c.size = size;
+		c.mask = mask;
+		if (others != null) {
+			c.others = new HashMap<String,Other>(others);
+		}
+		return c;
+	}
+	
+	/**
+	 * Finds the table slot holding the given key.
+	 * 
+	 * @param key the packed card key
+	 * @return the slot, or -1 if the card isn't in the cache
+	 */
+	public int find(int key) {
+		int slot = probe(key);
+		return keys[slot] == EMPTY ? -1 : slot;
+	}
+	
+	/**
+	 * Returns the card stored in a slot returned by {@link #find(int)}.
+	 * @param slot the slot
+	 * @return the card's details
+	 */
+	public UserCard userAt(int slot) {
+		return users[slot];
+	}
+	
+	/**
+	 * Returns the flags of the card stored in a slot returned by {@link #find(int)}.
+	 * @param slot the slot
+	 * @return a combination of the FLAG_ constants
+	 */
+	public int flagsAt(int slot) {
+		return flags[slot];
+	}
+	
+	/**
+	 * Returns the schedule profile of the card stored in a slot returned by {@link #find(int)}.
+	 * @param slot the slot
+	 * @return the index of the card's schedule in the door's AccessSchedules
+	 */
+	public int profileAt(int slot) {
+		return profiles[slot];
+	}
+	
+	/**
+	 * Looks up a card by its packed key.
+	 * @param key the packed card key
+	 * @return the card's details, or null if it isn't in the cache
+	 */
+	public UserCard get(int key) {
+		int slot = find(key);
+		return slot == -1 ? null : users[slot];
+	}
+	
+	/**
+	 * Looks up a card by its database card id.
+	 * @param cardId the card id
+	 * @return the card's details, or null if it isn't in the cache
+	 */
+	public UserCard get(String cardId) {
+		int key = HIDCard.parseCardKey(cardId);
+		if (key == EMPTY) {
+			Other other = others == null ? null : others.get(cardId);
+			return other == null ? null : other.user;
+		}
+		return get(key);
+	}
+	
+	/**
+	 * Returns the schedule profile of a card, by its database card id.
+	 * @param cardId the card id
+	 * @return the index of the card's schedule in the door's AccessSchedules, 
+	 *         or -1 if it isn't in the cache
+	 */
+	public int getProfile(String cardId) {
+		int key = HIDCard.parseCardKey(cardId);
+		if (key == EMPTY) {
+			Other other = others == null ? null : others.get(cardId);
+			return other == null ? -1 : other.profile;
+		}
+		int slot = find(key);
+		return slot == -1 ? -1 : profiles[slot];
+	}
+	
+	/**
+	 * Returns the number of cards in the cache.
+	 * @return the number of cards
+	 */
+	public int size() {
+		return size + (others == null ? 0 : others.size());
+	}
+	
+	/**
+	 * Calls the visitor once for every card in the cache.
+	 * 
+	 * @param visitor the visitor
+	 */
+	public void visit(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				visitor.card(keys[i], null, users[i], profiles[i]);
+			}
+		}
+		if (others != null) {
+			for (Map.Entry<String,Other> e : others.entrySet()) {
+				visitor.card(EMPTY, e.getKey(), e.getValue().user, e.getValue().profile);
+			}
+		}
+	}
+	
+	/**
+	 * Callback for {@link CardCache#visit(Visitor)}.
+	 */
+	public interface Visitor {
+		/**
+		 * Called for each card in the cache.
+		 * 
+		 * @param key the packed card key, or -1 if the card id couldn't be packed
+		 * @param cardId the card id if it couldn't be packed, otherwise null
+		 * @param user the card's details
+		 * @param profile the index of the card's schedule in the door's AccessSchedules
+		 */
+		void card(int key, String cardId, UserCard user, int profile);
+	}
+	
+	/**
+	 * Returns the flags describing a card.
+	 * @param user the card's details
+	 * @return a combination of the FLAG_ constants
+	 */
+	static byte flagsOf(UserCard user) {
+		int f = 0;
+		if (user.isAfterHoursAllowed()) {
+			f |= FLAG_AFTER_HOURS;
+		}
+		if (user.isMagic()) {
+			f |= FLAG_MAGIC;
+		}
+		if (user.isTimeLimited()) {
+			f |= FLAG_VALIDITY;
+		}
+		return (byte)f;
+	}
+	
+	/**
+	 * Returns the slot holding key, or the empty slot where it would go.
+	 */
+	private int probe(int key) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		users = new UserCard[capacity];
+		flags = new byte[capacity];
+		profiles = new short[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < capacity; i++) {
+			keys[i] = EMPTY;
+		}
+	}
+	
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		UserCard[] oldUsers = users;
+		byte[] oldFlags = flags;
+		short[] oldProfiles = profiles;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = probe(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				users[slot] = oldUsers[i];
+				flags[slot] = oldFlags[i];
+				profiles[slot] = oldProfiles[i];
+			}
+		}
+	}
+}
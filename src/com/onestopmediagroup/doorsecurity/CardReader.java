@@ -21,126 +21,230 @@
 package com.onestopmediagroup.doorsecurity;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
 
 
 /**
  * A class to handle interfacing with a card reader and door strike, 
  * via a Cerberus-Prox RS-232 interface board.
  * 
+ * Commands go through a {@link BoardCommandQueue}, so strike commands go 
+ * ahead of LED, beeper and status commands, and latched states are only 
+ * sent when they change or the board's status shows it doesn't have them.
+ * Status and input frames from the board update the door's {@link DoorState}.
+ * 
  * @author dfraser
  *
  */
 public class CardReader {
 	
-	// private static Logger log = Logger.getLogger(CardReader.class);
+	private static Logger log = Logger.getLogger(CardReader.class);
 
 	/**
-	 * The serial port used to communicate with the Cerberus-Prox board.
+	 * The connection to the Cerberus-Prox board.
+	 */
+	private final DoorTransport port;
+	
+	/**
+	 * Used to time multi-step signals without holding up the caller.
 	 */
-	private final RS232SerialPort port;
+	private final ScheduledExecutorService scheduler;
 	
 	/**
-	 * Creates a new CardReader object.
-	 * @param port the serial port used to communicate with the Cerberus-Prox board.
+	 * The commands waiting to be written to the board.
 	 */
-	public CardReader(RS232SerialPort port) {
+	private final BoardCommandQueue commands;
+	
+	/**
+	 * The state of the door, as reported by the board.
+	 */
+	private final DoorState state;
+	
+	/**
+	 * Receive buffer, reused for every frame.  A frame is about 20 bytes.
+	 */
+	private final byte[] frame = new byte[64];
+	
+	/**
+	 * Creates a new CardReader object, and switches the port to event-driven
+	 * reception of newline-terminated frames.
+	 * @param port the connection to the Cerberus-Prox board.
+	 * @param scheduler used to time multi-step signals such as {@link #notifyBeep()}, 
+	 *        and to pace commands to the board.
+	 * @param metrics where to count the commands sent to the board
+	 * @param state updated from the board's status and input frames
+	 * @throws IOException if the port could not be set up for frame events.
+	 */
+	public CardReader(DoorTransport port, ScheduledExecutorService scheduler, Metrics.DoorMetrics metrics, 
+			DoorState state) throws IOException {
 		this.port = port;
+		this.scheduler = scheduler;
+		this.commands = new BoardCommandQueue(port, scheduler, metrics);
+		this.state = state;
+		port.enableFrameEvents(0x0a);
 	}
 	
 	/**
-	 * Reads any available data from the Cerberus-Prox board.
-	 * If the data included a card read, the card data is returned.
+	 * Waits up to the port's receive timeout for a frame from the Cerberus-Prox board.
+	 * If the frame was a card read, the card data is returned.
+	 * 
+	 * This is not synchronized: it only consumes the port's frame queue, so 
+	 * commands may be sent to the board while a read is waiting.  It must 
+	 * only be called from a single thread, since the receive buffer is reused.
+	 * 
 	 * @return a {@link HIDCard} object if a card was read, null otherwise.
 	 * @throws IOException if there was an error reading from the serial port.
 	 */
-	public synchronized HIDCard read() throws IOException {
-		HIDCard hid = null;
-		byte[] buf = new byte[1024];
-		int rc = port.receive(buf, buf.length, 0x0a);
+	public HIDCard read() throws IOException {
+		int rc = port.receiveFrame(frame);
 		if (rc == 0) {
 			return null;
 		}
-		if (rc != -1) {
-				try {
-					if (buf[0] == 'H') {
-						hid = new HIDCard(buf);
-					}
-					else if (buf[0] == '?') {
-						// got status
-						// use it as a heartbeat or something for monitoring
-					}
-				} catch(Exception e) {
-					throw new IOException("can't parse card data", e);
-				}
-		} else {
-			throw new IOException("error reading from serial port: "+rc);
+		return parse(frame, rc);
+	}	
+	
+	/**
+	 * Waits up to the port's receive timeout for a frame from the Cerberus-Prox
+	 * board, without parsing it.
+	 * 
+	 * @param buf buffer to read into
+	 * @return the length of the frame, or 0 if none arrived in time
+	 * @throws IOException if there was an error reading from the port.
+	 */
+	public int receive(byte[] buf) throws IOException {
+		return port.receiveFrame(buf);
+	}
+	
+	/**
+	 * Returns when the frame last returned by {@link #receive(byte[])} or 
+	 * {@link #read()} arrived.
+	 * 
+	 * @return the time, from {@link System#nanoTime()}
+	 */
+	public long getLastFrameTime() {
+		return port.getLastFrameTime();
+	}
+	
+	/**
+	 * Handles a frame received from the Cerberus-Prox board.  This is used 
+	 * directly when frames are pushed to us, rather than waited for in {@link #read()}.
+	 * Any frame counts as a heartbeat; status and input frames update the door state.
+	 * 
+	 * @param buf the frame
+	 * @param length the length of the frame
+	 * @return a {@link HIDCard} object if the frame was a card read, null otherwise.
+	 * @throws IOException if the card or input data couldn't be parsed.
+	 */
+	public HIDCard parse(byte[] buf, int length) throws IOException {
+		HIDCard hid = null;
+		long now = System.currentTimeMillis();
+		state.frameReceived(now);
+		try {
+			if (buf[0] == 'H') {
+				hid = new HIDCard(buf, 0, length);
+			}
+			else if (buf[0] == '?') {
+				state.statusReceived(buf, length);
+				commands.statusReceived(buf, length);
+			}
+			else if (buf[0] == 'i') {
+				state.inputsReceived(buf, length, now);
+			}
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException("can't parse card data", e);
 		}
 		return hid;
-	}	
+	}
 	
 	/**
 	 * Indicates an error by sounding the beeper for 2 seconds.
-	 * @throws IOException if there was an error reading from the serial port.
+	 * @throws IOException if there was an error writing to the serial port.
 	 */
-	public synchronized void errorBeep() throws IOException {
-		byte[] beep = { 'B','2', '\n'};
-		port.send(beep, beep.length);
-	
+	public void errorBeep() throws IOException {
+		commands.pulse(BoardCommandQueue.BEEP, 2);
 	}
 
 
 	/**
-	 * Indicates an error by sounding the beeper for 2 seconds.
-	 * @throws IOException if there was an error reading from the serial port.
+	 * Sounds two short beeps.  Returns straight away; the beeper is switched 
+	 * on and off by the scheduler.
+	 * @throws IOException if there was an error writing to the serial port.
 	 */
-	public synchronized void notifyBeep() throws IOException {
-		try {
-			byte[] beepOn = { 'B','L', '\n'};
-			port.send(beepOn, beepOn.length);
-			Thread.sleep(500);
-			byte[] beepOff = { 'B','0', '\n'};
-			port.send(beepOff, beepOff.length);
-			Thread.sleep(500);
-			port.send(beepOn, beepOn.length);
-			Thread.sleep(500);
-			port.send(beepOff, beepOff.length);
-		} catch (InterruptedException e) {
-			// don't worry about it... no big deal!
-		}
-		
+	public void notifyBeep() throws IOException {
+		commands.latch(BoardCommandQueue.BEEP, true);
+		scheduleBeep(false, 500);
+		scheduleBeep(true, 1000);
+		scheduleBeep(false, 1500);
 	}
 
 	/** 
-	 * Opens the door by opening the strike and turning the led green for 4 seconds.
+	 * Opens the door by opening the strike and turning the led green, until
+	 * {@link #lockDoor()} is called.
 	 * 
-	 * @param seconds how long to hold the door open
-	 * @throws IOException if there was an error reading from the serial port.
+	 * @throws IOException if there was an error writing to the serial port.
 	 */
-	public synchronized void openDoor(int seconds) throws IOException {
-
-		byte[] buf = { 'S','L', '\n', 'G', 'L', '\n'};
-		port.send(buf, buf.length);
-		try {
-			Thread.sleep(seconds*1000);
-		} catch (InterruptedException e) {
-			// it's ok if we're interrupted, just lock the door
-		}
-		byte[] buf2 = { 'S','0', '\n', 'G', '0', '\n'};
-		port.send(buf2, buf2.length);
-		
+	public void unlockDoor() throws IOException {
+		commands.latch(BoardCommandQueue.STRIKE, true);
+		commands.latch(BoardCommandQueue.GREEN, true);
+	}
+	
+	/** 
+	 * Closes the strike and turns the led back to red.
+	 * 
+	 * @throws IOException if there was an error writing to the serial port.
+	 */
+	public void lockDoor() throws IOException {
+		commands.latch(BoardCommandQueue.STRIKE, false);
+		commands.latch(BoardCommandQueue.GREEN, false);
+	}
+	
+	/**
+	 * Latches the beeper on or off after a delay.
+	 */
+	private void scheduleBeep(final boolean on, long delayMillis) {
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				try {
+					commands.latch(BoardCommandQueue.BEEP, on);
+				} catch (IOException e) {
+					log.error("error writing to serial port: "+e.getMessage());
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
 	}
 	
 	/** 
-	 * Sets the absolute state of the latches in the door controller and returns the current 
-	 * communication status.
+	 * Sets the absolute state of the latches in the door controller and asks 
+	 * for its status.  The latches are only written if they have changed, or 
+	 * the last status showed the board doesn't have them.
 	 * 
 	 * @param unlocked whether or not the door should be unlocked
-	 * @throws IOException if there was an error reading from the serial port.
+	 * @throws IOException if there was an error writing to the serial port.
+	 */
+	public void setDoorLatches(boolean unlocked) throws IOException {
+		commands.latch(BoardCommandQueue.STRIKE, unlocked);
+		commands.latch(BoardCommandQueue.GREEN, unlocked);
+		commands.requestStatus();
+	}
+	
+	/**
+	 * Returns the queue of commands for the board.
+	 * @return the command queue
+	 */
+	public BoardCommandQueue getCommands() {
+		return commands;
+	}
+	
+	/**
+	 * Returns the state of the door, as reported by the board.
+	 * @return the door state
 	 */
-	public synchronized void setDoorLatches(boolean unlocked) throws IOException {
-		byte strike = unlocked ? (byte)'L' : (byte)'0';
-		byte led = unlocked ? (byte)'L' : (byte)'0';
-		byte[] buf = { 'G',led, '\n', 'B','0', '\n', 'S', strike,'\n','?','?','\n' };
-		port.send(buf, buf.length);
+	public DoorState getState() {
+		return state;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small JDBC connection pool, so that the swipe path doesn't pay for a TCP 
+ * connection and MySQL login on every database access.
+ * 
+ * Connections are borrowed with {@link #borrow()}, or {@link #borrow(long)} 
+ * on the swipe path where waiting long is worse than failing, and must always be handed 
+ * back with {@link #release(PooledConnection)}, normally in a finally block.  
+ * If a connection saw an error, call {@link PooledConnection#markBroken()} 
+ * first and it will be closed rather than reused.  Connections idle for a while 
+ * are checked with the validation query before being handed out again, and 
+ * those idle too long are closed down to the minimum pool size.
+ * 
+ * @author dfraser
+ *
+ */
+public class ConnectionPool {
+
+	private static Logger log = Logger.getLogger(ConnectionPool.class);
+	
+	/**
+	 * Connections idle for less than this aren't validated before reuse.
+	 */
+	private static final long VALIDATE_AFTER_MILLIS = 10000;
+	
+	/**
+	 * How long {@link #borrow()} waits for a connection when the pool is exhausted.
+	 */
+	private static final long BORROW_TIMEOUT_MILLIS = 5000;
+	
+	private volatile boolean closed = false;
+	
+	private final String dbUrl;
+	private final int minSize;
+	private final int maxSize;
+	private final String validationQuery;
+	private final long idleTimeoutMillis;
+	private final int statementCacheSize;
+	
+	/**
+	 * Idle connections, most recently used first.
+	 */
+	private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	private int active = 0;
+	
+	// statistics
+	private long created = 0;
+	private long borrowed = 0;
+	private long waits = 0;
+	private long timeouts = 0;
+	private long validationFailures = 0;
+	private long evicted = 0;
+	private long broken = 0;
+	private long connectFailures = 0;
+	
+	/**
+	 * Creates a new ConnectionPool.  Up to minSize connections are opened in 
+	 * the background, so a database which is down or slow to answer doesn't 
+	 * hold up startup; failure to open them is logged but not fatal, since 
+	 * the database may come up later.
+	 * 
+	 * @param dbUrl the JDBC url of the database
+	 * @param minSize the number of idle connections to keep open
+	 * @param maxSize the maximum number of connections open at once
+	 * @param validationQuery query used to check an idle connection still works
+	 * @param idleTimeoutSeconds idle connections beyond minSize are closed after this long
+	 * @param statementCacheSize the number of prepared statements cached per connection
+	 */
+	public ConnectionPool(String dbUrl, int minSize, int maxSize, String validationQuery,
+			int idleTimeoutSeconds, int statementCacheSize) {
+		if (maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("invalid pool size: min "+minSize+" max "+maxSize);
+		}
+		this.dbUrl = dbUrl;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.validationQuery = validationQuery;
+		this.idleTimeoutMillis = idleTimeoutSeconds * 1000L;
+		this.statementCacheSize = statementCacheSize;
+		if (minSize > 0) {
+			Thread warmup = new Thread("ConnectionPoolWarmup") {
+				@Override
+				public void run() {
+					warmUp();
+				}
+			};
+			warmup.setDaemon(true);
+			warmup.start();
+		}
+	}
+	
+	/**
+	 * Opens connections until there are minSize idle ones.
+	 */
+	private void warmUp() {
+		try {
+			for (int i = 0; i < minSize && !closed; i++) {
+				PooledConnection pc = open();
+				synchronized (this) {
+					if (closed || active + idle.size() >= maxSize) {
+						pc.close();
+						return;
+					}
+					idle.addFirst(pc);
+					notifyAll();
+				}
+			}
+		} catch (SQLException e) {
+			log.warn("couldn't open initial database connections: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Borrows a connection, opening a new one if none are idle.  Waits for a 
+	 * connection to be released if the pool is at its maximum size.
+	 * 
+	 * @return a connection, which must be handed back with {@link #release(PooledConnection)}
+	 * @throws SQLException if no connection could be opened or none became free in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		return borrow(BORROW_TIMEOUT_MILLIS);
+	}
+	
+	/**
+	 * Borrows a connection, waiting at most the given time for one to be 
+	 * released if the pool is at its maximum size.  Opening a new connection 
+	 * isn't limited by the timeout; that's up to the driver's connect timeout.
+	 * 
+	 * @param timeoutMillis how long to wait for a free connection
+	 * @return a connection, which must be handed back with {@link #release(PooledConnection)}
+	 * @throws SQLException if no connection could be opened or none became free in time
+	 */
+	public PooledConnection borrow(long timeoutMillis) throws SQLException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			PooledConnection pc = null;
+			synchronized (this) {
+				evictIdle();
+				while (idle.isEmpty() && active >= maxSize) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						timeouts++;
+						throw new SQLException("timed out waiting for a database connection");
+					}
+					waits++;
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("interrupted waiting for a database connection");
+					}
+				}
+				active++;
+				borrowed++;
+				if (!idle.isEmpty()) {
+					pc = idle.removeFirst();
+				}
+			}
+			if (pc == null) {
+				try {
+					return open();
+				} catch (SQLException e) {
+					synchronized (this) {
+						active--;
+						notifyAll();
+					}
+					throw e;
+				}
+			}
+			if (System.currentTimeMillis() - pc.getLastUsed() < VALIDATE_AFTER_MILLIS || validate(pc)) {
+				return pc;
+			}
+			// stale; throw it away and try again
+			pc.close();
+			synchronized (this) {
+				active--;
+				validationFailures++;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Hands a connection back to the pool.  Does nothing if pc is null, so it 
+	 * can be called unconditionally from a finally block.
+	 * 
+	 * @param pc the connection returned by {@link #borrow()}, or null
+	 */
+	public void release(PooledConnection pc) {
+		if (pc == null) {
+			return;
+		}
+		boolean discard = pc.isBroken();
+		if (!discard) {
+			try {
+				if (!pc.getConnection().getAutoCommit()) {
+					pc.getConnection().rollback();
+					pc.getConnection().setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				discard = true;
+			}
+		}
+		if (discard) {
+			pc.close();
+		} else {
+			pc.touch();
+		}
+		synchronized (this) {
+			active--;
+			if (discard) {
+				broken++;
+			} else {
+				idle.addFirst(pc);
+			}
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Closes all idle connections.  Connections currently borrowed are closed 
+	 * when they are released.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (PooledConnection pc : idle) {
+			pc.close();
+		}
+		idle.clear();
+	}
+	
+	/**
+	 * Returns a one-line summary of the pool statistics, suitable for logging.
+	 * @return the statistics
+	 */
+	public synchronized String getStatistics() {
+		return "active="+active+" idle="+idle.size()+" created="+created+" borrowed="+borrowed
+			+" waits="+waits+" timeouts="+timeouts+" validationFailures="+validationFailures
+			+" evicted="+evicted+" broken="+broken+" connectFailures="+connectFailures;
+	}
+	
+	public synchronized int getActive() {
+		return active;
+	}
+	
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+	
+	public synchronized long getCreated() {
+		return created;
+	}
+	
+	public synchronized long getBorrowed() {
+		return borrowed;
+	}
+	
+	public synchronized long getWaits() {
+		return waits;
+	}
+	
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+	
+	/**
+	 * Returns the number of connections thrown away after an error.
+	 * @return the number of connections
+	 */
+	public synchronized long getBroken() {
+		return broken;
+	}
+	
+	public synchronized long getConnectFailures() {
+		return connectFailures;
+	}
+	
+	/**
+	 * Closes connections beyond the minimum that have been idle too long.
+	 * Must be called with the lock held.
+	 */
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		// the least recently used are at the end
+		for (Iterator<PooledConnection> i = idle.descendingIterator(); i.hasNext() && idle.size() > minSize; ) {
+			PooledConnection pc = i.next();
+			if (pc.getLastUsed() >= cutoff) {
+				break;
+			}
+			i.remove();
+			pc.close();
+			evicted++;
+		}
+	}
+	
+	private PooledConnection open() throws SQLException {
+		Connection con;
+		try {
+			con = DriverManager.getConnection(dbUrl);
+		} catch (SQLException e) {
+			synchronized (this) {
+				connectFailures++;
+			}
+			throw e;
+		}
+		synchronized (this) {
+			created++;
+		}
+		return new PooledConnection(con, statementCacheSize);
+	}
+	
+	private boolean validate(PooledConnection pc) {
+		try {
+			Statement stmt = pc.getConnection().createStatement();
+			try {
+				stmt.execute(validationQuery);
+			} finally {
+				stmt.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			log.debug("pooled connection failed validation: "+e.getMessage());
+			return false;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.Arrays;
+
+/**
+ * Counts the denied swipes at a door over a sliding window, per card and in 
+ * total, in a fixed amount of memory however many different cards are tried.
+ * 
+ * The window is split into a ring of buckets, each a count-min sketch 
+ * (DEPTH rows of WIDTH saturating 16-bit counters, with conservative 
+ * updates); a bucket is cleared when the window moves past it.  A card's 
+ * count is the sum over the live buckets of its smallest counter, which 
+ * may be too high if other cards collide with it but is never too low.  
+ * The door total is counted exactly.
+ * 
+ * Not thread-safe; the {@link DoorController} calls it with its lock held.
+ * 
+ * @author dfraser
+ *
+ */
+public class DenialTracker {
+
+	private static final int BUCKETS = 6;
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 256;
+	
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+	
+	private final long bucketMillis;
+	
+	/**
+	 * The sketch for each bucket, allocated on the first denial.
+	 */
+	private short[][] sketches;
+	private final int[] totals = new int[BUCKETS];
+	private final int[] slots = new int[DEPTH];
+	
+	/**
+	 * The number of the bucket period the newest bucket covers.
+	 */
+	private long current = Long.MIN_VALUE;
+	
+	/**
+	 * Creates a new tracker.
+	 * 
+	 * @param windowMillis how far back denials are counted
+	 */
+	public DenialTracker(long windowMillis) {
+		this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+	}
+	
+	/**
+	 * Counts a denied swipe.
+	 * 
+	 * @param key the packed card key
+	 * @param now the current time, in milliseconds
+	 * @return the number of times the card has been denied within the window, including this one
+	 */
+	public int record(int key, long now) {
+		if (sketches == null) {
+			sketches = new short[BUCKETS][DEPTH * WIDTH];
+		}
+		advance(now);
+		int b = (int) (current % BUCKETS);
+		short[] sketch = sketches[b];
+		totals[b]++;
+		
+		// conservative update: only raise the counters at the minimum
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			slots[row] = row * WIDTH + slot(key, row);
+			min = Math.min(min, sketch[slots[row]]);
+		}
+		if (min < Short.MAX_VALUE) {
+			for (int row = 0; row < DEPTH; row++) {
+				if (sketch[slots[row]] == min) {
+					sketch[slots[row]]++;
+				}
+			}
+		}
+		return count(key, now);
+	}
+	
+	/**
+	 * Returns the number of times a card has been denied within the window.
+	 * 
+	 * @param key the packed card key
+	 * @param now the current time, in milliseconds
+	 * @return the estimated count, which may be too high but is never too low
+	 */
+	public int count(int key, long now) {
+		if (sketches == null) {
+			return 0;
+		}
+		advance(now);
+		int total = 0;
+		for (short[] sketch : sketches) {
+			int min = Integer.MAX_VALUE;
+			for (int row = 0; row < DEPTH; row++) {
+				min = Math.min(min, sketch[row * WIDTH + slot(key, row)]);
+			}
+			total += min;
+		}
+		return total;
+	}
+	
+	/**
+	 * Returns the number of denied swipes at the door within the window.
+	 * 
+	 * @param now the current time, in milliseconds
+	 * @return the number of denials
+	 */
+	public int getDoorCount(long now) {
+		if (sketches == null) {
+			return 0;
+		}
+		advance(now);
+		int total = 0;
+		for (int t : totals) {
+			total += t;
+		}
+		return total;
+	}
+	
+	/**
+	 * Clears the buckets which have fallen out of the window.
+	 */
+	private void advance(long now) {
+		long period = now / bucketMillis;
+		if (period <= current) {
+			return;
+		}
+		long expired = current == Long.MIN_VALUE ? BUCKETS : Math.min(BUCKETS, period - current);
+		for (long p = period - expired + 1; p <= period; p++) {
+			int b = (int) (p % BUCKETS);
+			Arrays.fill(sketches[b], (short) 0);
+			totals[b] = 0;
+		}
+		current = period;
+	}
+	
+	private static int slot(int key, int row) {
+		int h = key * SEEDS[row];
+		h ^= h >>> 15;
+		h *= 0x2C1B3C6D;
+		h ^= h >>> 13;
+		return h & (WIDTH - 1);
+	}
+}
@@ -9,13 +9,25 @@ public class DoorAccessEvent extends EventObject {
 	private final boolean allowed;
 	private final String doorName;
 	private final String cardId;
+	private final String detail;
+	private final long time = System.currentTimeMillis();
 			
 	public DoorAccessEvent(Object source, String cardId, UserCard userCard, boolean allowed, String doorName) {
+		this(source, cardId, userCard, allowed, doorName, "");
+	}
+	
+	/**
+	 * @param detail why the card was denied when it wasn't checked, e.g. 
+	 *        because the door was locked out; logged with the event
+	 */
+	public DoorAccessEvent(Object source, String cardId, UserCard userCard, boolean allowed, String doorName, 
+			String detail) {
 		super(source);
 		this.cardId = cardId;
 		this.userCard = userCard;
 		this.allowed = allowed;
 		this.doorName = doorName;
+		this.detail = detail;
 	}
 
 	public UserCard getUserCard() {
@@ -33,4 +45,20 @@ public class DoorAccessEvent extends EventObject {
 	public String getCardId() {
 		return cardId;
 	}
+	
+	/**
+	 * Returns anything to log with the event beyond the card and door.
+	 * @return the detail, or an empty string
+	 */
+	public String getDetail() {
+		return detail;
+	}
+	
+	/**
+	 * Returns when the card was checked.
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
 }
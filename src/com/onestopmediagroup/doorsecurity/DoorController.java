@@ -21,59 +21,265 @@
 package com.onestopmediagroup.doorsecurity;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 
 /**
- * Thread to handle continuous control over a door.
+ * Handles continuous control over a door.
  * 
- * It periodically updates the state of the related door controller.
+ * The door's loop reads from the card reader, on a thread from the session's 
+ * door thread factory (a platform or virtual thread, as threadModel says), 
+ * or, for a door connected through a {@link DoorIoEngine}, frames are pushed 
+ * to it by the engine and it has no thread of its own.  Everything time-based 
+ * (relocking the strike after an entry, the pause after a denied card) is a 
+ * timer event on the session's door scheduler, so card reading never stops: swipes 
+ * that arrive during the pause after a denial are queued and handled when it 
+ * ends, and a swipe while the door is already open just keeps it open longer.
+ * 
+ * Denials are counted by a {@link DenialTracker}.  Each repeat of the same 
+ * card within denyWindowSeconds doubles the pause, up to denyLockoutMaxSeconds,
+ * and bruteForceDenials denials of any cards lock the reader out for the 
+ * longest pause.  The pause is only for cards the door would deny: one it 
+ * allows is let straight through.  Swipes that waited through a long lockout 
+ * are dropped rather than opening the door long after the person has gone, 
+ * as is the oldest when too many are waiting, and each is sent to the 
+ * listeners as a denial with the reason it was dropped.
+ * 
+ * The latch refresh every pollInterval also asks the board for its status, 
+ * and the reply keeps the door's {@link DoorState} alive; a board which 
+ * misses a reply is reported lost at the next refresh.  If the port is a 
+ * {@link SupervisedDoorTransport} it is then reopened, and whenever it has 
+ * been reopened the board is sent the latch state again.
  * 
  * @author dfraser
  *
  */
-public class DoorController extends Thread {
+public class DoorController implements Runnable {
 
 	private static Logger log = Logger.getLogger(DoorController.class);
 	private final AccessVerifier av;
 	private final String doorName;
 	private final CardReader cr;
+	private final ScheduledExecutorService scheduler;
+	
+	/**
+	 * For database writes, which must never hold up a door timer.
+	 */
+	private final ScheduledExecutorService background;
 	
 	private final int pollInterval = 5000; // millis
-	private long lastPollTime;
-	private boolean triggerOpen;
-	private List<DoorAccessListener> listeners = new ArrayList<DoorAccessListener>();
+	private final int linkSlackMillis = 1000;
+	private final int unlockSeconds = 4;
+	private final int denyPauseMillis;
+	private final long maxLockoutMillis;
+	private final int bruteForceDenials;
+	private final int maxPendingSwipes = 8;
+	private final DoorEventBus eventBus;
+	private final DoorTransport port;
+	
+	/**
+	 * The thread reading cards, or null if frames are pushed to us by the 
+	 * transport, as by a {@link DoorIoEngine}.  Set by {@link #start()}.
+	 */
+	private volatile Thread thread;
+	private final ThreadFactory threadFactory;
+	private final DoorIoEngine ioEngine;
+	private ScheduledFuture<?> pollTask;
+	private volatile boolean running = false;
+	
+	// door state, guarded by this
+	private boolean strikeOpen = false;
+	private ScheduledFuture<?> relockTask;
+	
+	/**
+	 * Counts unlocks, so a relock scheduled by an earlier one which couldn't 
+	 * be cancelled in time knows to do nothing.
+	 */
+	private int relockGeneration = 0;
+	private boolean denyPause = false;
+	private final LinkedList<Swipe> pendingSwipes = new LinkedList<Swipe>();
+	private final DenialTracker denials;
+	
+	private final Metrics.DoorMetrics metrics;
+	private final DoorState state;
+	
+	/**
+	 * Receive buffer for the door thread.
+	 */
+	private final byte[] frame = new byte[64];
 
 	/**
-	 * Creates a new DoorController thread.
+	 * Creates a new DoorController.  Its thread comes from the session's door 
+	 * thread factory, and is either a platform or a virtual thread.  Doors 
+	 * whose transport pushes frames to us, like those connected through a 
+	 * {@link DoorIoEngine}, have no thread of their own.
 	 * 
-	 * @param port the RS232SerialPort this thread is to use
+	 * @param port the connection to the door's controller board
 	 * @param name the name of the door to control (from database door table)
 	 * @param dbUrl the JDBC url used to connect to the database.
+	 * @throws IOException if the connection to the board could not be set up.
 	 */
-	public DoorController(RS232SerialPort port, String name, Session session) {
+	public DoorController(DoorTransport port, String name, Session session) throws IOException {
 		this.doorName = name;
-		this.cr = new CardReader(port);
-		this.av = new AccessVerifier(name, session);
+		this.port = port;
+		this.scheduler = session.getDoorScheduler();
+		this.background = session.getScheduler();
+		this.metrics = session.getMetrics().door(name);
+		this.state = new DoorState(name, pollInterval + linkSlackMillis, session, metrics);
+		this.cr = new CardReader(port, scheduler, metrics, state);
+		this.av = session.getAccessCache().addDoor(name);
+		this.eventBus = session.getEventBus();
+		this.denyPauseMillis = session.getDenyPauseMillis();
+		this.maxLockoutMillis = Math.max(denyPauseMillis, session.getDenyLockoutMaxSeconds() * 1000L);
+		this.bruteForceDenials = session.getBruteForceDenials();
+		this.denials = new DenialTracker(session.getDenyWindowSeconds() * 1000L);
+		this.threadFactory = session.getDoorThreadFactory();
+		this.ioEngine = session.getIoEngine();
 		port.setRxTimeout(1000);
+		if (port instanceof SupervisedDoorTransport) {
+			((SupervisedDoorTransport) port).setListener(new SupervisedDoorTransport.Listener() {
+				public void reconnected() {
+					resendLatches();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Starts reading cards, and refreshing the door latches every pollInterval.
+	 */
+	public void start() {
+		running = true;
+		boolean pushed = port.setFrameHandler(new DoorIoEngine.FrameHandler() {
+			public void frame(byte[] frame, int length, long received) {
+				try {
+					handleFrame(frame, length, received);
+				} catch (IOException e) {
+					metrics.errors.incrementAndGet();
+					log.error("door "+doorName+": "+e.getMessage());
+				}
+			}
+			
+			public void closed(IOException cause) {
+				log.error("lost connection to door "+doorName+": "+cause.getMessage());
+			}
+		});
+		if (!pushed) {
+			Thread t = threadFactory.newThread(this);
+			t.setName("DoorController-"+doorName);
+			thread = t;
+			t.start();
+		}
+		pollTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					checkLink();
+					synchronized (DoorController.this) {
+						boolean unlocked = av.isForceUnlocked() || strikeOpen;
+						state.setUnlocked(unlocked);
+						cr.setDoorLatches(unlocked);
+					}
+				} catch (IOException e) {
+					log.error("error updating door "+doorName+": "+e.getMessage());
+				}
+			}
+		}, 0, pollInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Reopens a supervised port if the board has missed a status request, and 
+	 * has had the chance to answer one since the port was last opened.
+	 */
+	private void checkLink() {
+		long now = System.currentTimeMillis();
+		if (state.checkLink(now) || !(port instanceof SupervisedDoorTransport)) {
+			return;
+		}
+		SupervisedDoorTransport supervised = (SupervisedDoorTransport) port;
+		if (supervised.isConnected() && now - supervised.getConnectedAt() > pollInterval + linkSlackMillis) {
+			supervised.linkFailed("no reply from the board for "+(now - state.getLastHeartbeat())+"ms");
+		}
+	}
+	
+	/**
+	 * Sends the board the latch state again after its port has been reopened, 
+	 * since the board may have been reset, and commands may have been lost.
+	 */
+	private synchronized void resendLatches() {
+		cr.getCommands().reset();
+		try {
+			cr.setDoorLatches(av.isForceUnlocked() || strikeOpen);
+		} catch (IOException e) {
+			log.error("error updating door "+doorName+" after reconnecting: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Asks the door to stop.  The door is locked as the thread exits.
+	 */
+	public void interrupt() {
+		if (pollTask != null) {
+			pollTask.cancel(false);
+		}
+		Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+		} else {
+			port.setFrameHandler(null);
+			shutdown();
+		}
 	}
 	
-	public void addDoorAccessListener(DoorAccessListener listener) {
-		if (listener != null) {
-			listeners.add(listener);
+	/**
+	 * Waits for the door's thread to exit.
+	 * 
+	 * @param millis the longest to wait, or 0 to wait forever
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void join(long millis) throws InterruptedException {
+		Thread t = thread;
+		if (t != null) {
+			t.join(millis);
 		}
 	}
 	
-	public void removeDoorAccessListener(DoorAccessListener listener) {
-		listeners.remove(listener);
+	/**
+	 * Returns the state of the door, as reported by its board.
+	 * @return the door state
+	 */
+	public DoorState getDoorState() {
+		return state;
+	}
+	
+	/**
+	 * Returns the connection to the door's board.
+	 * @return the transport
+	 */
+	public DoorTransport getTransport() {
+		return port;
 	}
 	
-	public List<DoorAccessListener> getListeners() {
-		return Collections.unmodifiableList(listeners);
+	/**
+	 * Returns whether the door is still handling cards: its thread is 
+	 * running, or for a door without one, it hasn't been stopped and the 
+	 * selector loops are running.  A door whose link is down and being 
+	 * reopened is still alive.
+	 * 
+	 * @return true if the door is alive
+	 */
+	public boolean isAlive() {
+		Thread t = thread;
+		if (t != null) {
+			return t.isAlive();
+		}
+		return running && (ioEngine == null || ioEngine.isRunning());
 	}
 	
 	/**
@@ -81,76 +287,33 @@ public class DoorController extends Thread {
 	 */
 	@Override
 	public void run() {
-		super.run();
 		log.debug("Controller for door '"+doorName+"' starting.");
-		while (!isInterrupted()) {
-			HIDCard card;
+		while (!Thread.currentThread().isInterrupted()) {
 			try {
-				card = cr.read();
-				if (card != null) {
-					boolean allowed = false;
-					UserCard userCard = av.checkAccess(card.getCardId());
-					if (userCard != null && userCard.isMagic()) {
-						// this is a magic card.  switch the door state.
-						boolean oldState = av.forceUnlocked;
-						av.setDefaultUnlocked(!oldState);
-						cr.notifyBeep();
-						allowed = true;
-					} else {
-						if (userCard != null) {
-							if (!av.forceUnlocked) {
-								cr.openDoor(4);
-							}
-							allowed = true;
-						} else {
-							cr.errorBeep();
-							try {
-								Thread.sleep(2000);
-							} catch (InterruptedException e) {
-								// we should exit if interrupted
-								return;
-							}
-							log.info(card.getCardId()+","+doorName+",access denied");
-							allowed = false;
-						}
-					}
-					for (Iterator<DoorAccessListener> iterator = listeners.iterator(); iterator.hasNext();) {
-						DoorAccessListener listener = iterator.next();
-						 try {							 
-							 listener.doorActionEvent(new DoorAccessEvent(this,card.getCardId(),userCard,allowed,doorName)); 
-						 } catch (RuntimeException e) {
-						     iterator.remove();
-						 }
-
-					}
-				} else {
-					// unlock the door if we got a trigger
-					if (triggerOpen) {
-						synchronized (this) {
-							triggerOpen = false;						
-						}
-						if (!av.forceUnlocked) {
-							cr.openDoor(4);
-							try {
-								Thread.sleep(4000);
-							} catch (InterruptedException e) {
-								// it's okay not to sleep
-							}
-						}
-					}
-					
-					// update the door state
-					if (lastPollTime + pollInterval < System.currentTimeMillis()) {
-						lastPollTime = System.currentTimeMillis();
-						cr.setDoorLatches(av.forceUnlocked);
-					}
+				int rc = cr.receive(frame);
+				if (rc > 0) {
+					handleFrame(frame, rc, cr.getLastFrameTime());
 				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				metrics.errors.incrementAndGet();
+				log.error("door "+doorName+": "+e.getMessage());
 			}
 		}
-		
-		// we're exiting, lock the door
+		shutdown();
+	}
+	
+	/**
+	 * Locks the door as we stop.
+	 */
+	private void shutdown() {
+		running = false;
+		synchronized (this) {
+			if (relockTask != null) {
+				relockTask.cancel(false);
+			}
+			relockGeneration++;
+			pendingSwipes.clear();
+		}
 		try {
 			cr.setDoorLatches(false);
 		} catch (IOException e) {
@@ -158,10 +321,313 @@ public class DoorController extends Thread {
 		}
 	}
 
-	public synchronized void triggerOpen() {
-		triggerOpen = true;
+	/**
+	 * Opens the door as if a valid card had been presented.  Returns straight 
+	 * away; the door is opened by the scheduler.
+	 */
+	public void triggerOpen() {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				try {
+					unlock();
+				} catch (IOException e) {
+					log.error("error opening door "+doorName+": "+e.getMessage());
+				}
+			}
+		});
 	}
 	
+	/**
+	 * Handles a frame from the board.
+	 * 
+	 * @param buf the frame
+	 * @param length the length of the frame
+	 * @param received when the frame arrived, from {@link System#nanoTime()}
+	 */
+	private void handleFrame(byte[] buf, int length, long received) throws IOException {
+		long start = System.nanoTime();
+		HIDCard card = cr.parse(buf, length);
+		if (card != null) {
+			metrics.receive.record((start - received) / 1000);
+			metrics.parse.recordSince(start);
+			swipe(new Swipe(card, received));
+		}
+	}
 	
+	/**
+	 * Handles a card presented to the reader.  During the pause after a 
+	 * denied card, a card the door allows is let straight through, and any 
+	 * other is queued until the pause ends.
+	 * 
+	 * The card is checked before taking the lock, since a card missing from 
+	 * the cache may be looked up in the database, which can take up to 
+	 * readThroughMillis.  A door with its own thread waits for that there; 
+	 * a door whose frames come from a selector loop hands the lookup to the 
+	 * background scheduler, rather than holding up the other doors on the loop.
+	 * During a pause only the cache is checked.
+	 */
+	private void swipe(final Swipe swipe) throws IOException {
+		HIDCard card = swipe.card;
+		boolean paused;
+		synchronized (this) {
+			paused = denyPause;
+		}
+		if (paused) {
+			// no lookups while paused, so someone trying cards can't flood the 
+			// database or keep the door waiting on it
+			swipe(swipe, check(card, false));
+			return;
+		}
+		if (thread == null && av.needsLookup(card.getFacility(), card.getCardNumber())) {
+			background.execute(new Runnable() {
+				public void run() {
+					try {
+						swipe(swipe, check(swipe.card, true));
+					} catch (IOException e) {
+						metrics.errors.incrementAndGet();
+						log.error("door "+doorName+": "+e.getMessage());
+					}
+				}
+			});
+			return;
+		}
+		swipe(swipe, check(card, true));
+	}
+	
+	/**
+	 * Acts on a checked card, or queues it if we're pausing after a denied card.
+	 * 
+	 * @param userCard the card's user, or null if the card is denied
+	 */
+	private void swipe(Swipe swipe, UserCard userCard) throws IOException {
+		DoorAccessEvent event = null;
+		synchronized (this) {
+			if (!denyPause || userCard != null) {
+				event = process(swipe, userCard);
+			} else {
+				if (pendingSwipes.size() == maxPendingSwipes) {
+					event = drop(pendingSwipes.removeFirst(), "dropped, too many swipes waiting");
+				}
+				pendingSwipes.addLast(swipe);
+			}
+		}
+		if (event != null) {
+			fireEvent(event);
+		}
+	}
+	
+	/**
+	 * Checks a card against the door's cache.
+	 * 
+	 * @param lookUp whether a card missing from the cache may be looked up 
+	 *        in the database, which can take up to readThroughMillis
+	 * @return the card's user, or null if the card is denied
+	 */
+	private UserCard check(HIDCard card, boolean lookUp) {
+		long start = System.nanoTime();
+		UserCard userCard = lookUp 
+				? av.checkAccess(card.getFacility(), card.getCardNumber()) 
+				: av.checkCached(card.getFacility(), card.getCardNumber());
+		metrics.check.recordSince(start);
+		return userCard;
+	}
+	
+	/**
+	 * Acts on a checked card.  Must be called with the lock held.
+	 * 
+	 * @param userCard the card's user, or null if the card is denied
+	 * @return the event to send to the listeners
+	 */
+	private DoorAccessEvent process(Swipe swipe, UserCard userCard) throws IOException {
+		HIDCard card = swipe.card;
+		boolean allowed = false;
+		long start;
+		if (userCard != null && userCard.isMagic()) {
+			// this is a magic card.  switch the door state, and save it to 
+			// the database without holding up the door
+			boolean oldState = av.isForceUnlocked();
+			av.setDefaultUnlocked(!oldState);
+			background.execute(new Runnable() {
+				public void run() {
+					av.saveDefaultUnlocked();
+				}
+			});
+			state.setUnlocked(!oldState || strikeOpen);
+			cr.notifyBeep();
+			allowed = true;
+		} else {
+			if (userCard != null) {
+				start = System.nanoTime();
+				unlock();
+				metrics.strike.recordSince(start);
+				metrics.swipeToUnlock.recordSince(swipe.received);
+				allowed = true;
+			} else {
+				cr.errorBeep();
+				startDenyPause(lockoutMillis(card));
+				if (log.isInfoEnabled()) {
+					log.info(card.getCardId()+","+doorName+",access denied");
+				}
+				allowed = false;
+			}
+		}
+		if (allowed) {
+			metrics.allowed.incrementAndGet();
+		} else {
+			metrics.denied.incrementAndGet();
+		}
+		return new DoorAccessEvent(this,card.getCardId(),userCard,allowed,doorName);
+	}
+	
+	/**
+	 * Denies a queued swipe without checking it.  Must be called with the 
+	 * lock held.
+	 * 
+	 * @param reason why the swipe was dropped, for the event log
+	 * @return the event to send to the listeners
+	 */
+	private DoorAccessEvent drop(Swipe swipe, String reason) {
+		metrics.denied.incrementAndGet();
+		if (log.isInfoEnabled()) {
+			log.info(swipe.card.getCardId()+","+doorName+","+reason);
+		}
+		return new DoorAccessEvent(this, swipe.card.getCardId(), null, false, doorName, reason);
+	}
+	
+	/**
+	 * Opens the strike, or keeps it open if it already is, and schedules it to relock.
+	 */
+	private synchronized void unlock() throws IOException {
+		if (av.isForceUnlocked()) {
+			return;
+		}
+		if (!strikeOpen) {
+			state.setUnlocked(true);
+			cr.unlockDoor();
+			strikeOpen = true;
+		}
+		if (relockTask != null) {
+			relockTask.cancel(false);
+		}
+		final int generation = ++relockGeneration;
+		relockTask = scheduler.schedule(new Runnable() {
+			public void run() {
+				relock(generation);
+			}
+		}, unlockSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Timer event: closes the strike after an entry, unless the door has been 
+	 * unlocked again since this relock was scheduled.
+	 * 
+	 * @param generation the unlock which scheduled this relock
+	 */
+	private synchronized void relock(int generation) {
+		if (generation != relockGeneration) {
+			// already running or waiting for the lock when it was cancelled
+			return;
+		}
+		strikeOpen = false;
+		relockTask = null;
+		if (av.isForceUnlocked()) {
+			return;
+		}
+		state.setUnlocked(false);
+		try {
+			cr.lockDoor();
+		} catch (IOException e) {
+			log.error("error locking door "+doorName+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Counts a denied card and works out how long to pause for.  Must be called 
+	 * with the lock held.
+	 * 
+	 * @return the pause, in milliseconds
+	 */
+	private long lockoutMillis(HIDCard card) {
+		long now = System.currentTimeMillis();
+		int cardDenials = denials.record(HIDCard.packCardKey(card.getFacility(), card.getCardNumber()), now);
+		int doorDenials = denials.getDoorCount(now);
+		long pause;
+		if (doorDenials >= bruteForceDenials) {
+			pause = maxLockoutMillis;
+		} else {
+			pause = Math.min(maxLockoutMillis, (long) denyPauseMillis << Math.min(cardDenials - 1, 20));
+		}
+		if (pause > denyPauseMillis) {
+			metrics.lockouts.incrementAndGet();
+			log.warn("door "+doorName+" locked out for "+pause+"ms: card "+card.getCardId()+" denied "
+					+cardDenials+" times, "+doorDenials+" denials in all");
+		}
+		return pause;
+	}
+	
+	/**
+	 * Starts the pause after a denied card.  Must be called with the lock held.
+	 * 
+	 * @param pauseMillis how long to pause for
+	 */
+	private void startDenyPause(long pauseMillis) {
+		denyPause = true;
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				endDenyPause();
+			}
+		}, pauseMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Timer event: ends the pause after a denied card, and handles any swipes 
+	 * queued up during it.
+	 */
+	private void endDenyPause() {
+		List<DoorAccessEvent> events = new ArrayList<DoorAccessEvent>();
+		synchronized (this) {
+			denyPause = false;
+			long now = System.nanoTime();
+			while (!denyPause && !pendingSwipes.isEmpty()) {
+				Swipe swipe = pendingSwipes.removeFirst();
+				if (now - swipe.received > denyPauseMillis * 2000000L) {
+					// waited through a lockout; the person has probably given up
+					events.add(drop(swipe, "dropped, door locked out"));
+					continue;
+				}
+				try {
+					// already looked up when it was swiped, and this is a timer thread
+					events.add(process(swipe, check(swipe.card, false)));
+				} catch (IOException e) {
+					log.error("error handling queued swipe at door "+doorName+": "+e.getMessage());
+				}
+			}
+		}
+		for (DoorAccessEvent event : events) {
+			fireEvent(event);
+		}
+	}
+	
+	/**
+	 * Sends an event to the listeners.  This doesn't wait for them.
+	 */
+	private void fireEvent(DoorAccessEvent event) {
+		long start = System.nanoTime();
+		eventBus.publish(event);
+		metrics.dispatch.recordSince(start);
+	}
+	
+	/**
+	 * A card presented to the reader, with when its frame arrived.
+	 */
+	private static class Swipe {
+		final HIDCard card;
+		final long received;
+		
+		Swipe(HIDCard card, long received) {
+			this.card = card;
+			this.received = received;
+		}
+	}
 	
-}
+}
\ No newline at end of file
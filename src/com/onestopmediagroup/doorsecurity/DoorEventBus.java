@@ -0,0 +1,328 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers {@link DoorAccessEvent}s from all doors to the subscribed listeners.
+ * 
+ * Each subscriber gets its own lock-free {@link EventRing} and consumer thread, 
+ * so a slow listener only ever delays itself.  What happens when a subscriber's
+ * ring is full is chosen per subscriber with a {@link BackpressurePolicy}.  
+ * A listener that throws is counted and logged but stays subscribed.  Events 
+ * are never thrown away for being old; a listener which only wants recent 
+ * ones, like the {@link LedSignWriter}, checks their age itself.
+ * 
+ * {@link DoorStateEvent}s go to the state listeners instead.  They are rare, 
+ * so they are delivered on the publishing thread, which for a 
+ * {@link DoorState} is the scheduler.
+ * 
+ * @author dfraser
+ *
+ */
+public class DoorEventBus {
+
+	private static Logger log = Logger.getLogger(DoorEventBus.class);
+	
+	/**
+	 * What to do with a new event when a subscriber's ring is full.
+	 */
+	public enum BackpressurePolicy {
+		/** wait for the subscriber to make room; for listeners which must see every event */
+		BLOCK,
+		/** throw away the subscriber's oldest event to make room */
+		DROP_OLDEST,
+		/** throw away the new event */
+		DROP_NEWEST;
+		
+		/**
+		 * Parses a policy name as used in doorsystem.properties, e.g. "drop-oldest".
+		 * 
+		 * @param name the policy name
+		 * @return the policy
+		 */
+		public static BackpressurePolicy parse(String name) {
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+	
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final List<DoorStateListener> stateListeners = new CopyOnWriteArrayList<DoorStateListener>();
+	
+	/**
+	 * Subscribes a listener to the events of every door.
+	 * 
+	 * @param listener the listener
+	 * @param policy what to do when the listener falls behind
+	 * @param capacity the number of events which may be waiting for the listener
+	 * @return the subscription
+	 */
+	public Subscription subscribe(DoorAccessListener listener, BackpressurePolicy policy, int capacity) {
+		Subscription s = new Subscription(listener, policy, capacity);
+		subscriptions.add(s);
+		s.consumer.start();
+		return s;
+	}
+	
+	/**
+	 * Removes a subscription.  Events already waiting for it are delivered first.
+	 * 
+	 * @param s the subscription
+	 */
+	public void unsubscribe(Subscription s) {
+		subscriptions.remove(s);
+		s.stop();
+	}
+	
+	/**
+	 * Stops all subscriptions, after delivering the events already waiting.
+	 */
+	public void shutdown() {
+		for (Subscription s : subscriptions) {
+			unsubscribe(s);
+		}
+	}
+	
+	/**
+	 * Publishes an event to every subscriber.  Only blocks if a subscriber with 
+	 * the BLOCK policy is full.
+	 * 
+	 * @param event the event
+	 */
+	public void publish(DoorAccessEvent event) {
+		for (Subscription s : subscriptions) {
+			s.offer(event);
+		}
+	}
+	
+	/**
+	 * Adds a listener for door state events from every door.
+	 * 
+	 * @param listener the listener
+	 */
+	public void addStateListener(DoorStateListener listener) {
+		stateListeners.add(listener);
+	}
+	
+	public void removeStateListener(DoorStateListener listener) {
+		stateListeners.remove(listener);
+	}
+	
+	/**
+	 * Delivers a door state event to each state listener in turn.
+	 * 
+	 * @param event the event
+	 */
+	public void publishState(DoorStateEvent event) {
+		for (DoorStateListener listener : stateListeners) {
+			try {
+				listener.doorStateEvent(event);
+			} catch (RuntimeException e) {
+				log.error("door state listener "+listener.getClass().getSimpleName()+" failed: "+e.getMessage(), e);
+			}
+		}
+	}
+	
+	public List<Subscription> getSubscriptions() {
+		return Collections.unmodifiableList(subscriptions);
+	}
+	
+	/**
+	 * A listener's subscription to the bus, with its delivery statistics.
+	 */
+	public static class Subscription {
+		private final DoorAccessListener listener;
+		private final BackpressurePolicy policy;
+		private final EventRing<DoorAccessEvent> ring;
+		private final Consumer consumer;
+		
+		/**
+		 * BLOCK publishers wait on this for the consumer to make room.
+		 */
+		private final Object space = new Object();
+		private volatile int waiting = 0;
+		
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile long delivered = 0;
+		private volatile long errors = 0;
+		private volatile long maxLag = 0;
+		
+		Subscription(DoorAccessListener listener, BackpressurePolicy policy, int capacity) {
+			this.listener = listener;
+			this.policy = policy;
+			this.ring = new EventRing<DoorAccessEvent>(capacity);
+			this.consumer = new Consumer();
+		}
+		
+		void offer(DoorAccessEvent event) {
+			while (!ring.offer(event)) {
+				switch (policy) {
+				case DROP_NEWEST:
+					dropped.incrementAndGet();
+					return;
+				case DROP_OLDEST:
+					if (ring.dropOldest()) {
+						dropped.incrementAndGet();
+					}
+					break;
+				case BLOCK:
+					if (!awaitSpace()) {
+						dropped.incrementAndGet();
+						log.error("interrupted waiting for "+listener.getClass().getSimpleName()+", dropping event");
+						return;
+					}
+					break;
+				}
+			}
+			int lag = ring.size();
+			if (lag > maxLag) {
+				maxLag = lag;
+			}
+			consumer.wake();
+		}
+		
+		/**
+		 * Waits until the ring has room.  The consumer notifies after taking an 
+		 * event whenever a publisher is waiting; the timeout is only a safety net.
+		 * 
+		 * @return false if the thread was interrupted
+		 */
+		private boolean awaitSpace() {
+			synchronized (space) {
+				waiting++;
+				try {
+					// checked after counting ourselves in, so the consumer can't miss us
+					if (ring.size() >= ring.capacity()) {
+						consumer.wake();
+						space.wait(100);
+					}
+					return true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					waiting--;
+				}
+			}
+		}
+		
+		void stop() {
+			consumer.running = false;
+			consumer.wake();
+			try {
+				consumer.join(2000);
+			} catch (InterruptedException e) {
+				// we're on our way out anyways
+			}
+		}
+		
+		public DoorAccessListener getListener() {
+			return listener;
+		}
+		
+		public BackpressurePolicy getPolicy() {
+			return policy;
+		}
+		
+		/**
+		 * Returns the number of events waiting for the listener.
+		 * @return the lag, in events
+		 */
+		public int getLag() {
+			return ring.size();
+		}
+		
+		public long getMaxLag() {
+			return maxLag;
+		}
+		
+		public long getDelivered() {
+			return delivered;
+		}
+		
+		public long getDropped() {
+			return dropped.get();
+		}
+		
+		public long getErrors() {
+			return errors;
+		}
+		
+		/**
+		 * Takes events off the ring and calls the listener.  Parks when there's 
+		 * nothing to do, and is unparked by the next publisher.
+		 */
+		private class Consumer extends Thread {
+			volatile boolean running = true;
+			volatile boolean parked = false;
+			
+			Consumer() {
+				super("EventBus-"+listener.getClass().getSimpleName());
+				setDaemon(true);
+			}
+			
+			void wake() {
+				if (parked) {
+					parked = false;
+					LockSupport.unpark(this);
+				}
+			}
+			
+			@Override
+			public void run() {
+				while (true) {
+					DoorAccessEvent event = ring.poll();
+					if (event == null) {
+						if (!running) {
+							return;
+						}
+						parked = true;
+						// check again, in case an event was published before we set the flag
+						if (ring.size() == 0 && running) {
+							LockSupport.park(this);
+						}
+						parked = false;
+						continue;
+					}
+					if (waiting > 0) {
+						synchronized (space) {
+							space.notifyAll();
+						}
+					}
+					try {
+						listener.doorActionEvent(event);
+					} catch (RuntimeException e) {
+						errors++;
+						log.error("listener "+listener.getClass().getSimpleName()+" failed: "+e.getMessage(), e);
+					}
+					delivered++;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Multiplexes the TCP connections to many door controller boards over a few
+ * selector threads, instead of a blocking thread per door.
+ * 
+ * Each connection belongs to one selector loop, which reads it into a direct
+ * buffer and splits out newline-terminated frames.  Frames are handed to a 
+ * small pool of single-threaded workers, which parse the cards and check 
+ * access; a door always uses the same worker, so its frames are handled in
+ * the order they arrived.
+ * 
+ * The engine doesn't reconnect by itself: a connection which fails is closed 
+ * and its handler told, and Session wraps each one in a 
+ * {@link SupervisedDoorTransport} which connects again.  If a selector loop 
+ * dies, its connections fail the same way, and new connections go to the 
+ * loops still running.
+ * 
+ * @author dfraser
+ *
+ */
+public class DoorIoEngine {
+
+	private static Logger log = Logger.getLogger(DoorIoEngine.class);
+	
+	/**
+	 * Receives the frames from one connection, on that connection's worker thread.
+	 */
+	public interface FrameHandler {
+		/**
+		 * Called for each frame received.
+		 * 
+		 * @param frame the frame, including the terminating newline
+		 * @param length the length of the frame
+		 * @param received when the frame arrived, from {@link System#nanoTime()}
+		 */
+		public void frame(byte[] frame, int length, long received);
+		
+		/**
+		 * Called once if the connection fails or is closed by the other end.
+		 * 
+		 * @param cause the error
+		 */
+		public void closed(IOException cause);
+	}
+	
+	private final IoLoop[] loops;
+	private final ExecutorService[] workers;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	final AtomicInteger connections = new AtomicInteger();
+	
+	final AtomicLong framesReceived = new AtomicLong();
+	final AtomicLong bytesReceived = new AtomicLong();
+	final AtomicLong framesDiscarded = new AtomicLong();
+	
+	/**
+	 * Creates and starts a new engine.
+	 * 
+	 * @param ioThreads the number of selector threads
+	 * @param workerThreads the number of threads handling frames
+	 * @throws IOException if a selector could not be opened
+	 */
+	public DoorIoEngine(int ioThreads, int workerThreads) throws IOException {
+		loops = new IoLoop[Math.max(1, ioThreads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new IoLoop(i);
+		}
+		workers = new ExecutorService[Math.max(1, workerThreads)];
+		for (int i = 0; i < workers.length; i++) {
+			final String name = "DoorWorker-"+i;
+			workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		for (IoLoop loop : loops) {
+			loop.start();
+		}
+	}
+	
+	/**
+	 * Connects to a serial-to-Ethernet converter, and adds the connection to 
+	 * one of the selector loops.
+	 * 
+	 * @param host the converter's host name or address
+	 * @param port the TCP port the converter listens on
+	 * @param timeout the connect and receive timeout, in ms
+	 * @return the transport for the connection
+	 * @throws IOException if the connection could not be made, or no selector loop is running
+	 */
+	public SelectorDoorTransport connect(String host, int port, int timeout) throws IOException {
+		String address = host+":"+port;
+		int n = nextLoop.getAndIncrement();
+		IoLoop loop = null;
+		for (int i = 0; i < loops.length && loop == null; i++) {
+			IoLoop l = loops[(n + i) % loops.length];
+			if (l.isRunning()) {
+				loop = l;
+			}
+		}
+		if (loop == null) {
+			throw new IOException("couldn't connect to "+address+": no selector loop running");
+		}
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			channel.socket().connect(new InetSocketAddress(host, port), timeout);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw new IOException("couldn't connect to "+address+": "+e.getMessage());
+		}
+		SelectorDoorTransport transport = new SelectorDoorTransport(this, loop, channel, 
+				workers[n % workers.length], address, timeout);
+		connections.incrementAndGet();
+		loop.register(transport);
+		log.debug("connected to "+address+" on "+loop.getName());
+		return transport;
+	}
+	
+	/**
+	 * Stops the selector loops and workers, closing every connection.
+	 */
+	public void stop() {
+		for (IoLoop loop : loops) {
+			loop.shutdown();
+		}
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+	}
+	
+	/**
+	 * Returns whether every selector loop is still running.
+	 * @return false if the engine has been stopped or a loop has died
+	 */
+	public boolean isRunning() {
+		for (IoLoop loop : loops) {
+			if (!loop.isRunning()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of connections open.
+	 * @return the number of connections
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+	
+	public long getFramesReceived() {
+		return framesReceived.get();
+	}
+	
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+	
+	/**
+	 * Returns the number of frames thrown away because they were too long to be valid.
+	 * @return the number of frames
+	 */
+	public long getFramesDiscarded() {
+		return framesDiscarded.get();
+	}
+	
+	/**
+	 * A selector thread.  Channels are registered, and write interest is 
+	 * changed, on this thread only; other threads queue the change and wake
+	 * the selector.
+	 */
+	class IoLoop extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SelectorDoorTransport> pendingRegistrations = new ConcurrentLinkedQueue<SelectorDoorTransport>();
+		private final ConcurrentLinkedQueue<SelectorDoorTransport> pendingWrites = new ConcurrentLinkedQueue<SelectorDoorTransport>();
+		private volatile boolean running = true;
+		
+		IoLoop(int index) throws IOException {
+			super("DoorIo-"+index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+		
+		void register(SelectorDoorTransport transport) {
+			pendingRegistrations.add(transport);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Asks for a transport's pending output to be written when the socket has room.
+		 */
+		void requestWrite(SelectorDoorTransport transport) {
+			pendingWrites.add(transport);
+			selector.wakeup();
+		}
+		
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+		
+		boolean isRunning() {
+			return running && isAlive();
+		}
+		
+		@Override
+		public void run() {
+			IOException fatal = null;
+			try {
+				while (running) {
+					selector.select();
+					processPending();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						SelectorDoorTransport transport = (SelectorDoorTransport) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								transport.readReady();
+							}
+							if (key.isValid() && key.isWritable()) {
+								if (transport.writeReady()) {
+									key.interestOps(SelectionKey.OP_READ);
+								}
+							}
+						} catch (IOException e) {
+							key.cancel();
+							transport.failed(e);
+						}
+					}
+				}
+			} catch (IOException e) {
+				log.error(getName()+" failed: "+e.getMessage(), e);
+				fatal = e;
+			} catch (ClosedSelectorException e) {
+				// we're stopping
+			}
+			running = false;
+			for (SelectionKey key : selector.keys()) {
+				SelectorDoorTransport transport = (SelectorDoorTransport) key.attachment();
+				if (fatal != null) {
+					// so it is reconnected on another loop
+					transport.failed(new IOException(getName()+" failed: "+fatal.getMessage()));
+				} else {
+					transport.close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// we're on our way out anyways
+			}
+		}
+		
+		private void processPending() {
+			SelectorDoorTransport transport;
+			while ((transport = pendingRegistrations.poll()) != null) {
+				try {
+					transport.getChannel().register(selector, SelectionKey.OP_READ, transport);
+				} catch (IOException e) {
+					transport.failed(e);
+				}
+			}
+			while ((transport = pendingWrites.poll()) != null) {
+				SelectionKey key = transport.getChannel().keyFor(selector);
+				if (key != null && key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+	}
+}
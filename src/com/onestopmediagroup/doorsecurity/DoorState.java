@@ -0,0 +1,357 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The last known state of a door and its Cerberus-Prox board, kept up to 
+ * date from the frames the board sends: its outputs from "?" status replies,
+ * and its five inputs from "i" frames, which the board sends whenever an 
+ * input changes as well as after each status reply.
+ * 
+ * If one of the inputs is wired to a door contact (contactN in 
+ * doorsystem.properties), the door is reported forced when it opens while 
+ * locked, and held open when it stays open for heldOpenSeconds.  The held 
+ * open check is a timer, so it needs nothing from the board.  The board is 
+ * reported lost when nothing has been heard from it since before the last 
+ * status request, which the door's latch refresh sends anyways, so there is 
+ * no extra traffic on the line.
+ * 
+ * The held open timer runs on the session's door scheduler.  Events are 
+ * published to the {@link DoorEventBus}'s state listeners from the shared 
+ * scheduler, so a listener can't hold up the door or its timers.
+ * 
+ * @author dfraser
+ *
+ */
+public class DoorState {
+
+	private static Logger log = Logger.getLogger(DoorState.class);
+	
+	/**
+	 * The number of inputs on the board, GPIO_0 to GPIO_4.
+	 */
+	public static final int INPUT_COUNT = 5;
+	
+	private final String doorName;
+	private final int contactPin;
+	private final boolean contactInverted;
+	private final long heldOpenMillis;
+	private final long forcedGraceMillis;
+	private final long linkTimeoutMillis;
+	private final ScheduledExecutorService timers;
+	private final ScheduledExecutorService scheduler;
+	private final DoorEventBus eventBus;
+	private final Metrics.DoorMetrics metrics;
+	
+	// all guarded by this
+	private boolean statusKnown = false;
+	private boolean beeping = false;
+	private boolean green = false;
+	private boolean strikeOpen = false;
+	private int inputs = -1;
+	private long lastHeartbeat = System.currentTimeMillis();
+	private boolean linkUp = true;
+	
+	/**
+	 * The door contact: -1 if not known yet, 0 closed, 1 open.
+	 */
+	private int contact = -1;
+	private boolean unlocked = false;
+	private long lockedAt = 0;
+	private long openedAt = 0;
+	private boolean alarmed = false;
+	private ScheduledFuture<?> heldOpenTask;
+	
+	/**
+	 * Creates the state of a door, with the door contact and timings from the session.
+	 * 
+	 * @param doorName the name of the door
+	 * @param linkTimeoutMillis the board is lost if nothing is heard from it for this long
+	 * @param session the session
+	 * @param metrics where to count alarms
+	 */
+	public DoorState(String doorName, long linkTimeoutMillis, Session session, Metrics.DoorMetrics metrics) {
+		this.doorName = doorName;
+		this.contactPin = session.getDoorContactPin(doorName);
+		this.contactInverted = session.isDoorContactInverted(doorName);
+		this.heldOpenMillis = session.getHeldOpenSeconds() * 1000L;
+		this.forcedGraceMillis = session.getForcedGraceMillis();
+		this.linkTimeoutMillis = linkTimeoutMillis;
+		this.timers = session.getDoorScheduler();
+		this.scheduler = session.getScheduler();
+		this.eventBus = session.getEventBus();
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Notes that a frame, of any kind, has arrived from the board.
+	 * 
+	 * @param now the time, in milliseconds since the epoch
+	 */
+	public void frameReceived(long now) {
+		synchronized (this) {
+			lastHeartbeat = now;
+			if (linkUp) {
+				return;
+			}
+			linkUp = true;
+		}
+		fire(DoorStateEvent.Type.LINK_RESTORED);
+	}
+	
+	/**
+	 * Updates the outputs from a status reply, "?" followed by the beeper, 
+	 * green LED and strike states as '0' or '1'.
+	 * 
+	 * @param buf the frame
+	 * @param length the length of the frame
+	 */
+	public synchronized void statusReceived(byte[] buf, int length) {
+		if (length < 4) {
+			return;
+		}
+		beeping = buf[1] == '1';
+		green = buf[2] == '1';
+		strikeOpen = buf[3] == '1';
+		statusKnown = true;
+	}
+	
+	/**
+	 * Updates the inputs from an "i" frame: the pins as B'001d dddd', then 
+	 * the same with the pin bits inverted.
+	 * 
+	 * @param buf the frame
+	 * @param length the length of the frame
+	 * @param now when it arrived, in milliseconds since the epoch
+	 * @throws IOException if the frame is garbled
+	 */
+	public void inputsReceived(byte[] buf, int length, long now) throws IOException {
+		if (length < 3 || (buf[1] & 0xe0) != 0x20 || buf[2] != (byte) (buf[1] ^ 0x1f)) {
+			throw new IOException("bad input frame from door "+doorName);
+		}
+		DoorStateEvent.Type event = null;
+		synchronized (this) {
+			inputs = buf[1] & 0x1f;
+			if (contactPin < 0) {
+				return;
+			}
+			boolean open = (((inputs >> contactPin) & 1) == 1) != contactInverted;
+			int was = contact;
+			contact = open ? 1 : 0;
+			if (was == contact) {
+				return;
+			}
+			if (open) {
+				openedAt = now;
+				if (was == 0 && !unlocked && now - lockedAt > forcedGraceMillis) {
+					alarmed = true;
+					event = DoorStateEvent.Type.FORCED;
+				}
+				scheduleHeldOpenCheck();
+			} else {
+				if (heldOpenTask != null) {
+					heldOpenTask.cancel(false);
+					heldOpenTask = null;
+				}
+				if (alarmed) {
+					alarmed = false;
+					event = DoorStateEvent.Type.CLOSED;
+				}
+			}
+		}
+		if (event != null) {
+			fire(event);
+		}
+	}
+	
+	/**
+	 * Tells us whether the strike is meant to be open, so a door opening 
+	 * can be told apart from a door being forced.
+	 * 
+	 * @param unlocked true if the strike has been opened, by a card or otherwise
+	 */
+	public synchronized void setUnlocked(boolean unlocked) {
+		if (this.unlocked && !unlocked) {
+			lockedAt = System.currentTimeMillis();
+		}
+		this.unlocked = unlocked;
+	}
+	
+	/**
+	 * Reports the board lost if nothing has been heard from it for too long.
+	 * Called before each status request.
+	 * 
+	 * @param now the time, in milliseconds since the epoch
+	 * @return true if the link is up
+	 */
+	public boolean checkLink(long now) {
+		synchronized (this) {
+			if (!linkUp) {
+				return false;
+			}
+			if (now - lastHeartbeat <= linkTimeoutMillis) {
+				return true;
+			}
+			linkUp = false;
+		}
+		fire(DoorStateEvent.Type.LINK_LOST);
+		return false;
+	}
+	
+	/**
+	 * Starts the held open timer.  Must be called with the lock held.
+	 */
+	private void scheduleHeldOpenCheck() {
+		heldOpenTask = timers.schedule(new Runnable() {
+			public void run() {
+				heldOpenCheck();
+			}
+		}, heldOpenMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Timer event: the door has been open for heldOpenMillis.
+	 */
+	private void heldOpenCheck() {
+		synchronized (this) {
+			heldOpenTask = null;
+			if (contact != 1) {
+				return;
+			}
+			if (unlocked) {
+				// propped open while unlocked is fine; check again later
+				scheduleHeldOpenCheck();
+				return;
+			}
+			alarmed = true;
+		}
+		fire(DoorStateEvent.Type.HELD_OPEN);
+	}
+	
+	/**
+	 * Counts, logs and publishes an event.  Must not be called with the lock held.
+	 */
+	private void fire(DoorStateEvent.Type type) {
+		switch (type) {
+		case HELD_OPEN:
+			metrics.heldOpen.incrementAndGet();
+			log.warn("door "+doorName+" held open for "+(System.currentTimeMillis() - getOpenedAt())/1000+"s");
+			break;
+		case FORCED:
+			metrics.forced.incrementAndGet();
+			log.warn("door "+doorName+" forced open");
+			break;
+		case LINK_LOST:
+			metrics.linkLost.incrementAndGet();
+			log.warn("lost contact with the board for door "+doorName+": nothing heard for "
+					+(System.currentTimeMillis() - getLastHeartbeat())+"ms");
+			break;
+		default:
+			if (log.isInfoEnabled()) {
+				log.info("door "+doorName+": "+type.getName());
+			}
+		}
+		final DoorStateEvent event = new DoorStateEvent(this, type, doorName);
+		scheduler.execute(new Runnable() {
+			public void run() {
+				eventBus.publishState(event);
+			}
+		});
+	}
+	
+	public String getDoorName() {
+		return doorName;
+	}
+	
+	/**
+	 * Returns whether the board has answered since the last status request 
+	 * but one.
+	 * @return true if the link is up
+	 */
+	public synchronized boolean isLinkUp() {
+		return linkUp;
+	}
+	
+	/**
+	 * Returns when a frame last arrived from the board.
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public synchronized long getLastHeartbeat() {
+		return lastHeartbeat;
+	}
+	
+	/**
+	 * Returns whether a status reply has been seen, i.e. whether 
+	 * {@link #isStrikeOpen()}, {@link #isGreen()} and {@link #isBeeping()} mean anything.
+	 * @return true if the outputs are known
+	 */
+	public synchronized boolean isStatusKnown() {
+		return statusKnown;
+	}
+	
+	public synchronized boolean isStrikeOpen() {
+		return strikeOpen;
+	}
+	
+	public synchronized boolean isGreen() {
+		return green;
+	}
+	
+	public synchronized boolean isBeeping() {
+		return beeping;
+	}
+	
+	/**
+	 * Returns the board's inputs, GPIO_0 in bit 0.
+	 * @return the inputs, or -1 if no input frame has been seen
+	 */
+	public synchronized int getInputs() {
+		return inputs;
+	}
+	
+	/**
+	 * Returns whether the door contact's state is known: there is one, and 
+	 * an input frame has been seen.
+	 * @return true if {@link #isDoorOpen()} means anything
+	 */
+	public synchronized boolean isDoorContactKnown() {
+		return contact >= 0;
+	}
+	
+	public synchronized boolean isDoorOpen() {
+		return contact == 1;
+	}
+	
+	/**
+	 * Returns when the door last opened.
+	 * @return the time, in milliseconds since the epoch, or 0 if it hasn't
+	 */
+	public synchronized long getOpenedAt() {
+		return openedAt;
+	}
+}
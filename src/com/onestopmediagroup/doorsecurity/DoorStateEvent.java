@@ -0,0 +1,81 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.EventObject;
+
+/**
+ * A change in the physical state of a door, or of the link to its board, 
+ * as seen by its {@link DoorState}.
+ * 
+ * @author dfraser
+ *
+ */
+@SuppressWarnings("serial")
+public class DoorStateEvent extends EventObject {
+
+	public enum Type {
+		/** the door has been open for longer than heldOpenSeconds */
+		HELD_OPEN,
+		/** the door was opened while locked */
+		FORCED,
+		/** the door has closed after being held or forced open */
+		CLOSED,
+		/** the board has not answered a status request */
+		LINK_LOST,
+		/** the board is answering again */
+		LINK_RESTORED;
+		
+		/**
+		 * Returns the name used in logs and metrics, e.g. "held_open".
+		 * @return the name
+		 */
+		public String getName() {
+			return name().toLowerCase();
+		}
+	}
+	
+	private final Type type;
+	private final String doorName;
+	private final long time = System.currentTimeMillis();
+	
+	public DoorStateEvent(Object source, Type type, String doorName) {
+		super(source);
+		this.type = type;
+		this.doorName = doorName;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	public String getDoorName() {
+		return doorName;
+	}
+	
+	/**
+	 * Returns when the change was seen.
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+}
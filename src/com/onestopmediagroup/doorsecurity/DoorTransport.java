@@ -0,0 +1,101 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+
+/**
+ * A connection to a Cerberus-Prox door controller board, which speaks the 
+ * newline-terminated protocol described in hardware/HID_control.c.  
+ * 
+ * The board may be on a local serial port ({@link RS232SerialPort}), behind a 
+ * serial-to-Ethernet converter ({@link TcpDoorTransport}), or simulated in 
+ * memory ({@link SimulatedDoorTransport}).
+ * 
+ * @author dfraser
+ *
+ */
+public interface DoorTransport {
+
+	/**
+	 * Starts splitting received data into frames for {@link #receiveFrame(byte[])}.
+	 * 
+	 * @param eotChar the byte which terminates a frame
+	 * @throws IOException if the transport could not be set up for framing
+	 */
+	public void enableFrameEvents(int eotChar) throws IOException;
+	
+	/**
+	 * Has received frames pushed to a handler as they arrive, instead of 
+	 * waiting to be read with {@link #receiveFrame(byte[])}, if the transport 
+	 * can do that.
+	 * 
+	 * @param handler the handler, or null to queue frames for receiveFrame again
+	 * @return true if frames will be pushed to the handler, false if the 
+	 *         transport needs a thread calling receiveFrame
+	 */
+	public boolean setFrameHandler(DoorIoEngine.FrameHandler handler);
+	
+	/**
+	 * Waits up to the receive timeout for the next complete frame and copies it into rxBuf.
+	 * 
+	 * @param rxBuf buffer to read into
+	 * @return the number of bytes received, including the terminator, or 0 if no frame arrived in time
+	 * @throws IOException if there was an error receiving
+	 */
+	public int receiveFrame(byte[] rxBuf) throws IOException;
+	
+	/**
+	 * Returns when the frame last returned by {@link #receiveFrame(byte[])} 
+	 * arrived.  Only meaningful to the thread which called receiveFrame.
+	 * 
+	 * @return the time, from {@link System#nanoTime()}
+	 */
+	public long getLastFrameTime();
+	
+	/**
+	 * Sends a message.
+	 * 
+	 * @param txBuf buffer to send
+	 * @param txLen number of bytes to send
+	 * @return the number of bytes sent
+	 * @throws IOException if there was an error sending
+	 */
+	public int send(byte[] txBuf, int txLen) throws IOException;
+	
+	/**
+	 * Throws away anything received but not yet read.
+	 * 
+	 * @throws IOException if there was an error receiving
+	 */
+	public void flushReceiver() throws IOException;
+	
+	/**
+	 * Sets the receive timeout.
+	 * 
+	 * @param rxTimeout the receive timeout in ms
+	 */
+	public void setRxTimeout(int rxTimeout);
+	
+	/**
+	 * Closes the connection.
+	 */
+	public void close();
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer for many producers and a single consumer.
+ * 
+ * As in the Disruptor, producers claim a sequence number with a CAS on the 
+ * tail and then publish the slot by recording its sequence number, so a 
+ * consumer never sees a slot that is still being written.  The head is also 
+ * advanced with a CAS, which lets a producer discard the oldest entry 
+ * ({@link #dropOldest()}) to make room without any lock.
+ * 
+ * @author dfraser
+ *
+ * @param <E> the type of entry held in the ring
+ */
+public class EventRing<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray published;
+	private final int mask;
+	
+	/**
+	 * The sequence number of the next entry to be consumed.
+	 */
+	private final AtomicLong head = new AtomicLong(0);
+	
+	/**
+	 * The sequence number the next producer will claim.
+	 */
+	private final AtomicLong tail = new AtomicLong(0);
+	
+	/**
+	 * Creates a new ring.
+	 * 
+	 * @param capacity the number of entries; rounded up to a power of two
+	 */
+	public EventRing(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		slots = new AtomicReferenceArray<E>(size);
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+		mask = size - 1;
+	}
+	
+	/**
+	 * Adds an entry if there is room.
+	 * 
+	 * @param e the entry
+	 * @return true if it was added, false if the ring is full
+	 */
+	public boolean offer(E e) {
+		while (true) {
+			long t = tail.get();
+			if (t - head.get() > mask) {
+				return false;
+			}
+			if (tail.compareAndSet(t, t + 1)) {
+				int slot = (int) t & mask;
+				slots.set(slot, e);
+				published.set(slot, t);
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Takes the oldest entry, if one has been published.  Must only be 
+	 * called by the single consumer.
+	 * 
+	 * @return the entry, or null if there is none
+	 */
+	public E poll() {
+		while (true) {
+			long h = head.get();
+			int slot = (int) h & mask;
+			if (published.get(slot) != h) {
+				return null;
+			}
+			E e = slots.get(slot);
+			if (head.compareAndSet(h, h + 1)) {
+				return e;
+			}
+			// a producer dropped it out from under us; try the next one
+		}
+	}
+	
+	/**
+	 * Discards the oldest entry, if one has been published.  May be called by producers.
+	 * 
+	 * @return true if an entry was discarded
+	 */
+	public boolean dropOldest() {
+		long h = head.get();
+		if (published.get((int) h & mask) != h) {
+			return false;
+		}
+		return head.compareAndSet(h, h + 1);
+	}
+	
+	/**
+	 * Returns the number of entries claimed but not yet consumed.
+	 * @return the number of entries
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+	
+	/**
+	 * Returns the number of entries the ring can hold.
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
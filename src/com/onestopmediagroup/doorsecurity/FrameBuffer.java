@@ -0,0 +1,226 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed-size ring buffer of received bytes, split into frames by a terminating byte.
+ * One thread writes raw bytes as they arrive from the port and another takes 
+ * complete frames out; nothing is allocated after construction.
+ * 
+ * If the buffer fills, or 64 frames are already waiting, the oldest complete
+ * frame is thrown away to make room.
+ * 
+ * @author dfraser
+ *
+ */
+public class FrameBuffer {
+
+	private final byte[] buf;
+	private final int eotChar;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition frameReady = lock.newCondition();
+	
+	/**
+	 * Position of the first unread byte.
+	 */
+	private int head = 0;
+	
+	/**
+	 * Number of bytes currently held, including any partial frame.
+	 */
+	private int size = 0;
+	
+	/**
+	 * Number of complete frames currently held.
+	 */
+	private int frames = 0;
+	
+	/**
+	 * Number of bytes thrown away because the buffer was full.
+	 */
+	private long dropped = 0;
+	
+	/**
+	 * When each complete frame was received, from {@link System#nanoTime()}.  
+	 * At most this many frames are held; beyond that the oldest is dropped.
+	 */
+	private final long[] stamps = new long[64];
+	private int stampHead = 0;
+	
+	/**
+	 * When the frame last returned by {@link #take(byte[], long)} was received.
+	 */
+	private long lastTakenStamp = 0;
+	
+	/**
+	 * Creates a new FrameBuffer.
+	 * 
+	 * @param capacity the number of bytes the buffer can hold
+	 * @param eotChar the byte which terminates a frame
+	 */
+	public FrameBuffer(int capacity, int eotChar) {
+		this.buf = new byte[capacity];
+		this.eotChar = eotChar;
+	}
+	
+	/**
+	 * Appends received bytes, waking up a waiting reader for each completed frame.
+	 * 
+	 * @param src the bytes received
+	 * @param off offset of the first byte in src
+	 * @param len number of bytes to append
+	 */
+	public void write(byte[] src, int off, int len) {
+		lock.lock();
+		try {
+			boolean completed = false;
+			for (int i = off; i < off + len; i++) {
+				if (size == buf.length) {
+					makeRoom();
+				}
+				buf[(head + size) % buf.length] = src[i];
+				size++;
+				if (src[i] == eotChar) {
+					if (frames == stamps.length) {
+						makeRoom();
+					}
+					stamps[(stampHead + frames) % stamps.length] = System.nanoTime();
+					frames++;
+					completed = true;
+				}
+			}
+			if (completed) {
+				frameReady.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for the next complete frame and copies it into dst, including the 
+	 * terminating byte.  A frame longer than dst is consumed but truncated.
+	 * 
+	 * @param dst buffer to copy the frame into
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return the number of bytes copied, or 0 if no frame arrived in time
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public int take(byte[] dst, long timeout) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			while (frames == 0) {
+				if (nanos <= 0) {
+					return 0;
+				}
+				nanos = frameReady.awaitNanos(nanos);
+			}
+			int count = 0;
+			boolean done = false;
+			while (!done) {
+				byte b = buf[head];
+				head = (head + 1) % buf.length;
+				size--;
+				if (count < dst.length) {
+					dst[count++] = b;
+				}
+				done = (b == eotChar);
+			}
+			frames--;
+			lastTakenStamp = stamps[stampHead];
+			stampHead = (stampHead + 1) % stamps.length;
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Throws away everything in the buffer, including any partial frame.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			head = 0;
+			size = 0;
+			frames = 0;
+			stampHead = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns when the frame last returned by {@link #take(byte[], long)} was 
+	 * received.  Only meaningful to the thread which called take.
+	 * 
+	 * @return the time, from {@link System#nanoTime()}
+	 */
+	public long getLastTakenTime() {
+		lock.lock();
+		try {
+			return lastTakenStamp;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes thrown away because the buffer was full.
+	 * @return the number of bytes dropped
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Frees space by discarding the oldest complete frame, or the partial frame
+	 * if that's all there is.  Must be called with the lock held.
+	 */
+	private void makeRoom() {
+		if (frames == 0) {
+			dropped += size;
+			head = 0;
+			size = 0;
+			return;
+		}
+		boolean done = false;
+		while (!done) {
+			done = (buf[head] == eotChar);
+			head = (head + 1) % buf.length;
+			size--;
+			dropped++;
+		}
+		frames--;
+		stampHead = (stampHead + 1) % stamps.length;
+	}
+}
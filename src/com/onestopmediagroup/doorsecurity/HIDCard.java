@@ -35,8 +35,13 @@ public class HIDCard {
 	public final int facility;
 	public final int cardNumber;
 	
-	private final int facilityMask = 0x1FE0000;
-	private final int cardIdMask = 0x1FFFE;
+	private static final int facilityMask = 0x1FE0000;
+	private static final int cardIdMask = 0x1FFFE;
+	
+	/**
+	 * The string form of the card id, built the first time it's asked for.
+	 */
+	private String cardId;
 	
 	/**
 	 * Creates a new HIDCard object given the output from Andrew's HID Reader to Serial Converter.
@@ -47,10 +52,24 @@ public class HIDCard {
 	 * 
 	 */
 	public HIDCard(byte[] readerData) {
+		this(readerData, 0, readerData.length);
+	}
+	
+	/**
+	 * Creates a new HIDCard object given the output from Andrew's HID Reader to Serial Converter.
+	 * Only the given range of the array is scanned for card data.
+	 * @param readerData buffer holding the card data used to initialize the object
+	 * @param offset the offset of the first byte of the frame
+	 * @param length the number of bytes in the frame
+	 * 
+	 * @throws IllegalArgumentException if the card data is somehow invalid
+	 * 
+	 */
+	public HIDCard(byte[] readerData, int offset, int length) {
 		
 		int startOffset = -1;
 		int endOffset = -1;
-		for (int i = 0; i < readerData.length; i++) {
+		for (int i = offset; i < offset + length; i++) {
 			if ((readerData[i] & 0x0f) == 0x0b) {
 				startOffset = i;
 			}
@@ -65,8 +84,10 @@ public class HIDCard {
 		}
 		
 		if ((endOffset - startOffset-1) != 16) {
-			log.debug(Arrays.toString(readerData));
-			log.debug("startoffset: "+startOffset+" endoffset: "+endOffset);
+			if (log.isDebugEnabled()) {
+				log.debug(Arrays.toString(Arrays.copyOfRange(readerData, offset, offset + length)));
+				log.debug("startoffset: "+startOffset+" endoffset: "+endOffset);
+			}
 			throw new IllegalArgumentException("only 26-bit wiegand data supported, data was incorrect length, expected 16, got "+(endOffset - startOffset));
 		}
 		
@@ -87,6 +108,71 @@ public class HIDCard {
 		
 	}
 	
+	/**
+	 * Packs a facility code and card number into a single int, unique for 
+	 * every 26-bit card.  The facility is 8 bits and the card number 16 bits,
+	 * so the result is never negative.
+	 * 
+	 * @param facility the facility code
+	 * @param cardNumber the card number
+	 * @return the packed card key
+	 */
+	public static int packCardKey(int facility, int cardNumber) {
+		return ((facility & 0xFF) << 16) | (cardNumber & 0xFFFF);
+	}
+	
+	/**
+	 * Formats a packed card key as a card ID, as returned by {@link #getCardId()}.
+	 * 
+	 * @param key the packed card key
+	 * @return the card id, of the form "facility-cardNumber"
+	 */
+	public static String formatCardKey(int key) {
+		return (key >>> 16)+"-"+(key & 0xFFFF);
+	}
+	
+	/**
+	 * Parses a stringified card ID, as returned by {@link #getCardId()}, into a packed card key.
+	 * 
+	 * Numbers with leading zeros, such as "01-123", are not of that form: 
+	 * the reader never produces them, and packing them would make "01-123"
+	 * and "1-123" the same card.
+	 * 
+	 * @param cardId the card id, of the form "facility-cardNumber"
+	 * @return the packed card key, or -1 if the id isn't of that form or is out of range
+	 */
+	public static int parseCardKey(String cardId) {
+		int dash = cardId.indexOf('-');
+		if (dash < 1 || dash == cardId.length() - 1) {
+			return -1;
+		}
+		int facility = parseDigits(cardId, 0, dash);
+		int number = parseDigits(cardId, dash + 1, cardId.length());
+		if (facility < 0 || facility > 0xFF || number < 0 || number > 0xFFFF) {
+			return -1;
+		}
+		return packCardKey(facility, number);
+	}
+	
+	/**
+	 * Parses a short run of decimal digits without allocating.
+	 * @return the value, or -1 if there are non-digits, a leading zero or more than 6 digits 
+	 */
+	private static int parseDigits(String s, int start, int end) {
+		if (end - start > 6 || (end - start > 1 && s.charAt(start) == '0')) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+	
 	/**
 	 * Returns a stringified unique card ID, suitable for determining
 	 * identity through a simple string comparison.
@@ -94,7 +180,22 @@ public class HIDCard {
 	 * @return a string representing the content of the card
 	 */
 	public String getCardId() {
-		return facility+"-"+cardNumber;
+		String id = cardId;
+		if (id == null) {
+			id = facility+"-"+cardNumber;
+			cardId = id;
+		}
+		return id;
+	}
+	
+	/**
+	 * Returns the card identity packed into an int.
+	 * 
+	 * @return the packed card key
+	 * @see #packCardKey(int, int)
+	 */
+	public int getCardKey() {
+		return packCardKey(facility, cardNumber);
 	}
 	
 	/**
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of durations, in microseconds, which can be 
+ * recorded from many threads without locking.
+ * 
+ * As in HdrHistogram, values are counted in buckets whose width doubles 
+ * with each power of two, each split into 32 sub-buckets, so percentiles 
+ * are accurate to about 3% from 1 microsecond up to about 2 hours.
+ * 
+ * @author dfraser
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * Values are clamped to 2^33 microseconds, a bit over 2 hours.
+	 */
+	private static final int MAX_EXPONENT = 33;
+	private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+	
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a duration.
+	 * 
+	 * @param micros the duration in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		} else if (micros > MAX_VALUE) {
+			micros = MAX_VALUE;
+		}
+		counts.incrementAndGet(indexOf(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get())) {
+			if (max.compareAndSet(m, micros)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Records the time since a start time taken from {@link System#nanoTime()}.
+	 * 
+	 * @param startNanos the start time
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+	
+	/**
+	 * Values below SUB_BUCKETS have a bucket each; above that, each power of 
+	 * two gets SUB_BUCKETS buckets.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * Returns the largest value counted in a bucket.
+	 */
+	private static long highestValueAt(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+	
+	/**
+	 * Returns the value below which the given percentage of recorded values fall.
+	 * 
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the value in microseconds, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the sum of all recorded values.
+	 * @return the sum in microseconds
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+	
+	/**
+	 * Returns the largest recorded value.
+	 * @return the maximum in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+}
@@ -1,17 +1,47 @@
 package com.onestopmediagroup.doorsecurity;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Shows door events on the hacklab.to LED sign.
+ * 
+ * Messages are sent by a background thread, so the door never waits on the 
+ * sign.  Only the most recent message is kept: a burst of events while a 
+ * message is being sent collapses into the latest one, and a message that 
+ * couldn't be sent within the timeout is thrown away rather than shown late.
+ * The response is always read to the end so the HTTP connection is kept alive
+ * and reused for the next message.
+ */
 public class LedSignWriter implements DoorAccessListener {
 
 	private static Logger log = Logger.getLogger(DoorController.class);
 	private String ledSignServiceUrl;
+	private final int timeoutMillis;
 	
-	public LedSignWriter(String ledSignServiceUrl) {
+	/**
+	 * The next message to send, or null.  Guarded by this.
+	 */
+	private PendingMessage pending;
+	private final Thread sender;
+	
+	public LedSignWriter(String ledSignServiceUrl, int timeoutMillis) {
 		this.ledSignServiceUrl = ledSignServiceUrl;
+		this.timeoutMillis = timeoutMillis;
+		this.sender = new SenderThread();
+	}
+	
+	public void start() {
+		sender.start();
+	}
+	
+	public void stop() {
+		sender.interrupt();
 	}
 	
 	@Override
@@ -23,18 +53,85 @@ public class LedSignWriter implements DoorAccessListener {
 		} else {
 			message = event.getCardId()+"\nunknown hid card";
 		}
+		synchronized (this) {
+			if (pending != null) {
+				log.debug("replacing unsent led sign message");
+			}
+			pending = new PendingMessage(message);
+			notifyAll();
+		}
+	}
+	
+	private static class PendingMessage {
+		final String message;
+		final long created = System.currentTimeMillis();
 		
+		PendingMessage(String message) {
+			this.message = message;
+		}
+	}
+	
+	private void send(String message) throws IOException {
+		log.debug("writing url");
+		URL url = new URL(ledSignServiceUrl+"SignService?FontSize=10&Action=ShowMessage&Message="+URLEncoder.encode(message, "UTF-8")+"&Version=2009-02-03");
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setConnectTimeout(timeoutMillis);
+		con.setReadTimeout(timeoutMillis);
+		InputStream in = null;
 		try {
-			log.debug("writing url");
-			URL url = new URL(ledSignServiceUrl+"SignService?FontSize=10&Action=ShowMessage&Message="+URLEncoder.encode(message, "UTF-8")+"&Version=2009-02-03");
-			url.getContent();
+			in = con.getInputStream();
+			byte[] buf = new byte[512];
+			while (in.read(buf) != -1) {
+				// drain the response so the connection can be reused
+			}
 			log.debug("url returned");
-		} catch (Exception e) {
-			log.error("couldn't make url", e);
+		} catch (IOException e) {
+			// the connection is no good for reuse
+			con.disconnect();
+			throw e;
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+	
+	/**
+	 * Sends the latest message whenever there is one.
+	 */
+	private class SenderThread extends Thread {
+		
+		SenderThread() {
+			super("LedSignWriter");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				PendingMessage next;
+				synchronized (LedSignWriter.this) {
+					while (pending == null) {
+						try {
+							LedSignWriter.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					next = pending;
+					pending = null;
+				}
+				if (System.currentTimeMillis() - next.created > timeoutMillis) {
+					log.debug("dropping stale led sign message");
+					continue;
+				}
+				try {
+					send(next.message);
+				} catch (Exception e) {
+					log.error("couldn't make url", e);
+				}
+			}
 		}
-
 	}
 	
 }
-
-
@@ -23,6 +23,7 @@ package com.onestopmediagroup.doorsecurity;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
+import org.apache.log4j.LogManager;
 import org.apache.log4j.PropertyConfigurator;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.servlet.Context;
@@ -32,13 +33,23 @@ public class Main {
 
 	private static Logger log = Logger.getLogger(Main.class);
 	private Session session;
+	private AccessLogger accessLogger;
+	private LedSignWriter ledSign;
 	
 	/**
 	 * Main entry point to the application.
 	 * 
-	 * @param args there are no command line arguments yet....
+	 * @param args <code>--thread-model=virtual</code> or <code>--thread-model=platform</code> 
+	 *        overrides the threadModel property
 	 */ 
 	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("--thread-model=")) {
+				System.setProperty("doorsystem.threadModel", args[i].substring("--thread-model=".length()));
+			} else {
+				throw new IllegalArgumentException("unknown argument: "+args[i]);
+			}
+		}
 		Main main = new Main();
 		main.start();
 	}
@@ -52,22 +63,40 @@ public class Main {
 		PropertyConfigurator.configure("log4j.properties");
 
 		session = new Session();
+		if (session.getAsyncLogBufferSize() > 0) {
+			AsyncLogAppender.wrapAll(session.getAsyncLogBufferSize());
+		}
+		log.info("door threads are "+(session.isVirtualThreads() ? "virtual" : "platform")+" threads");
 
 		// Create the LedSignWriter object and set ti to null
-		LedSignWriter ledSign = null;
+		ledSign = null;
+		if(session.isUseLedSign()) { // Check to see if we're using the led sign
+			ledSign = new LedSignWriter(session.getLedSignServiceUrl(), session.getLedSignTimeoutMillis()); // If so, instantiate the object
+			ledSign.start();
+		}
+		accessLogger = new AccessLogger(session);
+		accessLogger.start();
+		
+		// listeners are called on their own threads so they can't hold up a door.
+		// the led sign only wants the latest message, so old ones can go.
+		// the access log is the audit trail, so it never loses an event: its
+		// own queue is drained to the spool file when the database is down.
+		DoorEventBus bus = session.getEventBus();
 		if(session.isUseLedSign()) { // Check to see if we're using the led sign
-			ledSign = new LedSignWriter(session.getLedSignServiceUrl()); // If so, instantiate the object
+			bus.subscribe(ledSign, DoorEventBus.BackpressurePolicy.DROP_OLDEST, 
+					session.getListenerQueueSize()); // If so, register the class to the event
+		}
+		bus.subscribe(accessLogger, DoorEventBus.BackpressurePolicy.BLOCK, session.getListenerQueueSize());
+		if (session.isAccessEventLog()) {
+			AccessEventLog eventLog = new AccessEventLog();
+			bus.subscribe(eventLog, session.getListenerBackpressure(), session.getListenerQueueSize());
+			bus.addStateListener(eventLog);
 		}
-		AccessLogger accessLogger = new AccessLogger(session);
 
 		log.debug("starting controller threads...");
 		// let's get going!
 		for (Iterator<DoorController> dcIter = session.getDoorControllers().values().iterator(); dcIter.hasNext();) {
 			DoorController dc = (DoorController) dcIter.next();
-			if(session.isUseLedSign()) { // Check to see if we're using the led sign
-				dc.addDoorAccessListener(ledSign); // If so, register the class to the event
-			}
-			dc.addDoorAccessListener(accessLogger);
 			dc.start();
 		}
 		
@@ -84,11 +113,28 @@ public class Main {
 			DoorController dc = (DoorController) dcIter.next();
 			dc.interrupt();
 		}
+		session.getAccessCache().stop();
 		try {
 			Thread.sleep(2000);
 		} catch (InterruptedException e) {
 			// ok to ignore, we're going to exit anyways
 		}
+		session.getDoorScheduler().shutdownNow();
+		session.getReconnectExecutor().shutdownNow();
+		session.getScheduler().shutdownNow();
+		if (session.getIoEngine() != null) {
+			session.getIoEngine().stop();
+		}
+		if (ledSign != null) {
+			ledSign.stop();
+		}
+		// after the doors have stopped, so their last events are written
+		session.getEventBus().shutdown();
+		accessLogger.stop();
+		log.debug("database pool: "+session.getConnectionPool().getStatistics());
+		session.getConnectionPool().close();
+		// writes out anything still queued in the async appenders
+		LogManager.shutdown();
 		return;
 	}
 	
@@ -113,7 +159,9 @@ public class Main {
 				super.run();
 				Server server = new Server(port);
 		    	Context context = new Context(server,"/",Context.SESSIONS);
-		    	context.addServlet(new ServletHolder(new RemoteControlService(session.getDoorControllers())), "/xml-rpc/*");        
+		    	context.addServlet(new ServletHolder(new RemoteControlService(session.getDoorControllers(), session.getAccessCache())), "/xml-rpc/*");        
+		    	context.addServlet(new ServletHolder(new MetricsServlet(session, accessLogger)), "/metrics");
+		    	context.addServlet(new ServletHolder(new CacheInvalidationServlet(session.getAccessCache())), "/invalidate");
 		    	server.start();
 			} catch (Exception e) {
 				log.error("couldn't start server: "+e.getMessage());
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters for the whole system, exported by {@link MetricsServlet}.
+ * 
+ * Each swipe is timed through the stages of its path: waiting to be picked
+ * up after the frame arrived, parsing the card, checking access, writing the
+ * strike command, and handing the event to the listeners.  The total from 
+ * frame arrival to strike command is kept separately, as swipe-to-unlock.
+ * 
+ * @author dfraser
+ *
+ */
+public class Metrics {
+
+	private final Map<String,DoorMetrics> doors = new LinkedHashMap<String,DoorMetrics>();
+	
+	/**
+	 * How long each access cache reload took.
+	 */
+	public final LatencyHistogram cacheReload = new LatencyHistogram();
+	public final AtomicLong cacheReloadFailures = new AtomicLong();
+	public final LatencyHistogram cachePatch = new LatencyHistogram();
+	
+	public final LatencyHistogram cardLookup = new LatencyHistogram();
+	public final AtomicLong cardLookupFound = new AtomicLong();
+	public final AtomicLong cardLookupNotFound = new AtomicLong();
+	public final AtomicLong cardLookupTimeouts = new AtomicLong();
+	public final AtomicLong cardLookupSkipped = new AtomicLong();
+	
+	/**
+	 * Returns the metrics for a door, creating them if need be.
+	 * 
+	 * @param doorName the door name
+	 * @return the door's metrics
+	 */
+	public synchronized DoorMetrics door(String doorName) {
+		DoorMetrics m = doors.get(doorName);
+		if (m == null) {
+			m = new DoorMetrics(doorName);
+			doors.put(doorName, m);
+		}
+		return m;
+	}
+	
+	public synchronized List<DoorMetrics> getDoors() {
+		return new ArrayList<DoorMetrics>(doors.values());
+	}
+	
+	/**
+	 * Timings and counters for one door.
+	 */
+	public static class DoorMetrics {
+		public final String doorName;
+		
+		/** from the frame arriving to the door picking it up */
+		public final LatencyHistogram receive = new LatencyHistogram();
+		/** parsing the card data */
+		public final LatencyHistogram parse = new LatencyHistogram();
+		/** AccessVerifier.checkAccess */
+		public final LatencyHistogram check = new LatencyHistogram();
+		/** writing the strike command, for allowed cards */
+		public final LatencyHistogram strike = new LatencyHistogram();
+		/** handing the event to the listeners */
+		public final LatencyHistogram dispatch = new LatencyHistogram();
+		/** from the frame arriving to the strike command being written */
+		public final LatencyHistogram swipeToUnlock = new LatencyHistogram();
+		
+		public final AtomicLong allowed = new AtomicLong();
+		public final AtomicLong denied = new AtomicLong();
+		public final AtomicLong errors = new AtomicLong();
+		/** pauses after a denial longer than denyPauseMillis */
+		public final AtomicLong lockouts = new AtomicLong();
+		
+		/** commands written to the board */
+		public final AtomicLong commandsSent = new AtomicLong();
+		/** commands replaced by a newer one for the same output before being sent */
+		public final AtomicLong commandsCoalesced = new AtomicLong();
+		/** latch commands not sent because the board already had that state */
+		public final AtomicLong commandsSuppressed = new AtomicLong();
+		/** latch commands sent again because a status reply didn't match */
+		public final AtomicLong commandRetransmits = new AtomicLong();
+		
+		public final AtomicLong heldOpen = new AtomicLong();
+		public final AtomicLong forced = new AtomicLong();
+		public final AtomicLong linkLost = new AtomicLong();
+		
+		public final AtomicLong linkDowns = new AtomicLong();
+		public final AtomicLong downtimeMillis = new AtomicLong();
+		public final LatencyHistogram reconnect = new LatencyHistogram();
+		
+		DoorMetrics(String doorName) {
+			this.doorName = doorName;
+		}
+	}
+}
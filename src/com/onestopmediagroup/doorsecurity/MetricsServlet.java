@@ -0,0 +1,219 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link Metrics} and other statistics in the Prometheus text 
+ * exposition format.  Durations are reported in seconds, as summaries with 
+ * the 50th, 90th, 99th and 99.9th percentiles.
+ * 
+ * @author dfraser
+ *
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+	
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	
+	private final Session session;
+	private final AccessLogger accessLogger;
+	
+	/**
+	 * Creates a new MetricsServlet.
+	 * 
+	 * @param session the session whose statistics are served
+	 * @param accessLogger the access logger, or null if there isn't one
+	 */
+	public MetricsServlet(Session session, AccessLogger accessLogger) {
+		this.session = session;
+		this.accessLogger = accessLogger;
+	}
+	
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		resp.setContentType("text/plain; version=0.0.4");
+		resp.setStatus(HttpServletResponse.SC_OK);
+		PrintWriter out = resp.getWriter();
+		write(out);
+		out.flush();
+	}
+	
+	private void write(PrintWriter out) {
+		Metrics metrics = session.getMetrics();
+		
+		String[] stages = { "receive", "parse", "check", "strike", "dispatch" };
+		header(out, "cerberus_swipe_stage_seconds", "summary", "time spent in each stage of handling a swipe");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			LatencyHistogram[] histograms = { door.receive, door.parse, door.check, door.strike, door.dispatch };
+			for (int i = 0; i < stages.length; i++) {
+				summary(out, "cerberus_swipe_stage_seconds", "door=\""+escape(door.doorName)+"\",stage=\""+stages[i]+"\"", histograms[i]);
+			}
+		}
+		header(out, "cerberus_swipe_to_unlock_seconds", "summary", "time from a card frame arriving to the strike command being written");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			summary(out, "cerberus_swipe_to_unlock_seconds", "door=\""+escape(door.doorName)+"\"", door.swipeToUnlock);
+		}
+		header(out, "cerberus_swipes_total", "counter", "cards presented, by result");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			String d = escape(door.doorName);
+			out.println("cerberus_swipes_total{door=\""+d+"\",result=\"allowed\"} "+door.allowed.get());
+			out.println("cerberus_swipes_total{door=\""+d+"\",result=\"denied\"} "+door.denied.get());
+		}
+		header(out, "cerberus_door_errors_total", "counter", "errors talking to or handling a door");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			out.println("cerberus_door_errors_total{door=\""+escape(door.doorName)+"\"} "+door.errors.get());
+		}
+		header(out, "cerberus_door_lockouts_total", "counter", "escalated pauses after repeated denied cards");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			out.println("cerberus_door_lockouts_total{door=\""+escape(door.doorName)+"\"} "+door.lockouts.get());
+		}
+		header(out, "cerberus_board_commands_total", "counter", "commands for the door boards, by outcome");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			String d = escape(door.doorName);
+			out.println("cerberus_board_commands_total{door=\""+d+"\",outcome=\"sent\"} "+door.commandsSent.get());
+			out.println("cerberus_board_commands_total{door=\""+d+"\",outcome=\"coalesced\"} "+door.commandsCoalesced.get());
+			out.println("cerberus_board_commands_total{door=\""+d+"\",outcome=\"suppressed\"} "+door.commandsSuppressed.get());
+			out.println("cerberus_board_commands_total{door=\""+d+"\",outcome=\"resent\"} "+door.commandRetransmits.get());
+		}
+		header(out, "cerberus_door_alarms_total", "counter", "doors held or forced open, and boards lost, by type");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			String d = escape(door.doorName);
+			out.println("cerberus_door_alarms_total{door=\""+d+"\",type=\"held_open\"} "+door.heldOpen.get());
+			out.println("cerberus_door_alarms_total{door=\""+d+"\",type=\"forced\"} "+door.forced.get());
+			out.println("cerberus_door_alarms_total{door=\""+d+"\",type=\"link_lost\"} "+door.linkLost.get());
+		}
+		long now = System.currentTimeMillis();
+		header(out, "cerberus_door_link_up", "gauge", "1 if the door's board is answering");
+		for (DoorController dc : session.getDoorControllers().values()) {
+			DoorState state = dc.getDoorState();
+			out.println("cerberus_door_link_up{door=\""+escape(state.getDoorName())+"\"} "+(state.isLinkUp() ? 1 : 0));
+		}
+		header(out, "cerberus_door_heartbeat_age_seconds", "gauge", "time since anything was heard from the door's board");
+		for (DoorController dc : session.getDoorControllers().values()) {
+			DoorState state = dc.getDoorState();
+			out.println("cerberus_door_heartbeat_age_seconds{door=\""+escape(state.getDoorName())+"\"} "
+					+(now - state.getLastHeartbeat()) / 1000.0);
+		}
+		header(out, "cerberus_door_link_failures_total", "counter", "times the connection to the door's board failed or couldn't be opened");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			out.println("cerberus_door_link_failures_total{door=\""+escape(door.doorName)+"\"} "+door.linkDowns.get());
+		}
+		header(out, "cerberus_door_downtime_seconds_total", "counter", "time the connection to the door's board has been down");
+		for (DoorController dc : session.getDoorControllers().values()) {
+			Metrics.DoorMetrics door = metrics.door(dc.getDoorState().getDoorName());
+			long down = door.downtimeMillis.get();
+			if (dc.getTransport() instanceof SupervisedDoorTransport) {
+				down += ((SupervisedDoorTransport) dc.getTransport()).getDownMillis();
+			}
+			out.println("cerberus_door_downtime_seconds_total{door=\""+escape(door.doorName)+"\"} "+down / 1000.0);
+		}
+		header(out, "cerberus_door_reconnect_seconds", "summary", "time from the connection to the door's board failing to it being reopened");
+		for (Metrics.DoorMetrics door : metrics.getDoors()) {
+			summary(out, "cerberus_door_reconnect_seconds", "door=\""+escape(door.doorName)+"\"", door.reconnect);
+		}
+		header(out, "cerberus_door_open", "gauge", "1 if the door contact shows the door open");
+		for (DoorController dc : session.getDoorControllers().values()) {
+			DoorState state = dc.getDoorState();
+			if (state.isDoorContactKnown()) {
+				out.println("cerberus_door_open{door=\""+escape(state.getDoorName())+"\"} "+(state.isDoorOpen() ? 1 : 0));
+			}
+		}
+		
+		header(out, "cerberus_card_cache_size", "gauge", "cards in each door's access cache");
+		for (Map.Entry<String,Integer> e : session.getAccessCache().getCacheSizes().entrySet()) {
+			out.println("cerberus_card_cache_size{door=\""+escape(e.getKey())+"\"} "+e.getValue());
+		}
+		header(out, "cerberus_cache_reload_seconds", "summary", "time taken by each access cache reload");
+		summary(out, "cerberus_cache_reload_seconds", null, metrics.cacheReload);
+		header(out, "cerberus_cache_reload_failures_total", "counter", "access cache reloads which failed");
+		out.println("cerberus_cache_reload_failures_total "+metrics.cacheReloadFailures.get());
+		header(out, "cerberus_cache_patch_seconds", "summary", "time taken to patch changed or invalidated cards into the access caches");
+		summary(out, "cerberus_cache_patch_seconds", null, metrics.cachePatch);
+		header(out, "cerberus_card_lookups_total", "counter", "database lookups of cards missing from a door's cache, by outcome");
+		out.println("cerberus_card_lookups_total{outcome=\"found\"} "+metrics.cardLookupFound.get());
+		out.println("cerberus_card_lookups_total{outcome=\"not_found\"} "+metrics.cardLookupNotFound.get());
+		out.println("cerberus_card_lookups_total{outcome=\"timeout\"} "+metrics.cardLookupTimeouts.get());
+		out.println("cerberus_card_lookups_total{outcome=\"skipped\"} "+metrics.cardLookupSkipped.get());
+		header(out, "cerberus_card_lookup_seconds", "summary", "time taken by card lookups which found the card in time");
+		summary(out, "cerberus_card_lookup_seconds", null, metrics.cardLookup);
+		
+		ConnectionPool pool = session.getConnectionPool();
+		header(out, "cerberus_db_errors_total", "counter", "database errors, by kind");
+		out.println("cerberus_db_errors_total{kind=\"broken\"} "+pool.getBroken());
+		out.println("cerberus_db_errors_total{kind=\"connect\"} "+pool.getConnectFailures());
+		out.println("cerberus_db_errors_total{kind=\"timeout\"} "+pool.getTimeouts());
+		header(out, "cerberus_db_connections", "gauge", "database connections in the pool");
+		out.println("cerberus_db_connections{state=\"active\"} "+pool.getActive());
+		out.println("cerberus_db_connections{state=\"idle\"} "+pool.getIdle());
+		
+		if (accessLogger != null) {
+			header(out, "cerberus_access_log_queue_depth", "gauge", "access log entries waiting to be written");
+			out.println("cerberus_access_log_queue_depth "+accessLogger.getQueueDepth());
+			header(out, "cerberus_access_log_entries_total", "counter", "access log entries, by outcome");
+			out.println("cerberus_access_log_entries_total{outcome=\"written\"} "+accessLogger.getEntriesWritten());
+			out.println("cerberus_access_log_entries_total{outcome=\"spooled\"} "+accessLogger.getEntriesSpooled());
+			out.println("cerberus_access_log_entries_total{outcome=\"dropped\"} "+accessLogger.getEntriesDropped());
+		}
+		
+		header(out, "cerberus_listener_events_total", "counter", "door events for each listener, by outcome");
+		for (DoorEventBus.Subscription s : session.getEventBus().getSubscriptions()) {
+			String l = escape(s.getListener().getClass().getSimpleName());
+			out.println("cerberus_listener_events_total{listener=\""+l+"\",outcome=\"delivered\"} "+s.getDelivered());
+			out.println("cerberus_listener_events_total{listener=\""+l+"\",outcome=\"dropped\"} "+s.getDropped());
+			out.println("cerberus_listener_events_total{listener=\""+l+"\",outcome=\"error\"} "+s.getErrors());
+		}
+		
+		header(out, "cerberus_log_events_dropped_total", "counter", "log events dropped because the async appenders were full");
+		out.println("cerberus_log_events_dropped_total "+AsyncLogAppender.getTotalDropped());
+	}
+	
+	private static void header(PrintWriter out, String name, String type, String help) {
+		out.println("# HELP "+name+" "+help);
+		out.println("# TYPE "+name+" "+type);
+	}
+	
+	private static void summary(PrintWriter out, String name, String labels, LatencyHistogram h) {
+		String prefix = labels == null ? "" : labels+",";
+		for (double q : QUANTILES) {
+			out.println(name+"{"+prefix+"quantile=\""+q+"\"} "+seconds(h.getValueAtPercentile(q * 100)));
+		}
+		String braces = labels == null ? "" : "{"+labels+"}";
+		out.println(name+"_sum"+braces+" "+seconds(h.getSum()));
+		out.println(name+"_count"+braces+" "+h.getCount());
+	}
+	
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1e6);
+	}
+	
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
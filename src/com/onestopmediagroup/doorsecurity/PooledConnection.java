@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A database connection belonging to a {@link ConnectionPool}, with its own 
+ * cache of prepared statements.
+ * 
+ * @author dfraser
+ *
+ */
+public class PooledConnection {
+
+	private final Connection connection;
+	private final Map<String,PreparedStatement> statements;
+	private long lastUsed;
+	private boolean broken = false;
+	
+	PooledConnection(Connection connection, final int statementCacheSize) {
+		this.connection = connection;
+		this.lastUsed = System.currentTimeMillis();
+		// least recently used statements are closed when the cache is full
+		this.statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+				if (size() > statementCacheSize) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Returns a prepared statement for the given SQL, reusing one from an earlier 
+	 * call if possible.  The statement belongs to the connection and must not be 
+	 * closed by the caller.  For one-off SQL, use {@link #getConnection()} instead.
+	 * 
+	 * @param sql the SQL statement
+	 * @return the prepared statement
+	 * @throws SQLException if the statement couldn't be prepared
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement pstmt = statements.get(sql);
+		if (pstmt == null) {
+			pstmt = connection.prepareStatement(sql);
+			statements.put(sql, pstmt);
+		} else {
+			pstmt.clearParameters();
+		}
+		return pstmt;
+	}
+	
+	/**
+	 * Returns the underlying connection.  It must not be closed by the caller.
+	 * @return the connection
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * Marks this connection as having failed, so the pool closes it instead of reusing it.
+	 */
+	public void markBroken() {
+		broken = true;
+	}
+	
+	boolean isBroken() {
+		return broken;
+	}
+	
+	long getLastUsed() {
+		return lastUsed;
+	}
+	
+	void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Closes the connection and all its cached statements.
+	 */
+	void close() {
+		for (PreparedStatement pstmt : statements.values()) {
+			closeQuietly(pstmt);
+		}
+		statements.clear();
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// nothing to do
+		}
+	}
+	
+	private static void closeQuietly(PreparedStatement pstmt) {
+		try {
+			pstmt.close();
+		} catch (SQLException e) {
+			// nothing to do
+		}
+	}
+}
@@ -25,12 +25,15 @@ import gnu.io.CommPortIdentifier;
 import gnu.io.NoSuchPortException;
 import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
 import gnu.io.UnsupportedCommOperationException;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Enumeration;
+import java.util.TooManyListenersException;
 
 import org.apache.log4j.Logger;
 
@@ -40,7 +43,7 @@ import org.apache.log4j.Logger;
  * 
  * @author akilpatrick
  */
-public class RS232SerialPort {
+public class RS232SerialPort implements DoorTransport {
 	private Logger logger;
 	private SerialPort port;
 	private InputStream in;
@@ -48,6 +51,28 @@ public class RS232SerialPort {
 	private int receiveTimeout;
 	private int baudrate = -1;
 	
+	/**
+	 * Size of the per-port receive ring buffer, in bytes.
+	 */
+	private static final int FRAME_BUFFER_SIZE = 4096;
+	
+	/**
+	 * Frames delivered by the serial event listener, when frame events are enabled.
+	 * Set before frameEotChar, so a thread which sees frameEotChar set sees the buffer.
+	 */
+	private volatile FrameBuffer frames;
+	
+	/**
+	 * Scratch space used by the serial event listener to read from the port.
+	 */
+	private final byte[] chunk = new byte[256];
+	private volatile int frameEotChar = -1;
+	
+	/**
+	 * The last error seen by the serial event listener, reported to the next reader.
+	 */
+	private volatile IOException receiveError;
+	
 	
 	/**
 	 * Creates a new serial port.
@@ -159,21 +184,109 @@ public class RS232SerialPort {
 	}
 	
 	
+	/**
+	 * Switches the port to event-driven reception.  RXTX notifies us when data is
+	 * available, and complete frames terminated by eotChar are queued for 
+	 * {@link #receiveFrame()}, so no thread has to poll the port.
+	 * 
+	 * @param eotChar the byte which terminates a frame
+	 * @throws IOException if a listener could not be registered on the port
+	 */
+	public synchronized void enableFrameEvents(int eotChar) throws IOException {
+		if (frameEotChar != -1) {
+			return;
+		}
+		frames = new FrameBuffer(FRAME_BUFFER_SIZE, eotChar);
+		frameEotChar = eotChar;
+		try {
+			port.addEventListener(new FrameListener());
+		} catch (TooManyListenersException e) {
+			throw new IOException("couldn't register serial event listener: "+e.getMessage());
+		}
+		port.notifyOnDataAvailable(true);
+	}
+	
+	
+	/**
+	 * Waits up to the receive timeout for the next complete frame and copies it into rxBuf.  
+	 * Requires {@link #enableFrameEvents(int)} to have been called.
+	 * 
+	 * @param rxBuf buffer to read into
+	 * @return the number of bytes received, including the terminator, or 0 if no frame arrived in time
+	 * @throws IOException if the port reported an error while receiving
+	 */
+	public int receiveFrame(byte[] rxBuf) throws IOException {
+		if (frameEotChar == -1) {
+			throw new IllegalStateException("frame events are not enabled");
+		}
+		IOException e = receiveError;
+		if (e != null) {
+			receiveError = null;
+			throw e;
+		}
+		try {
+			return frames.take(rxBuf, receiveTimeout);
+		} catch (InterruptedException ie) {
+			// same as a timeout, but leave the flag set for our caller
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+	
+	/**
+	 * Returns when the frame last returned by {@link #receiveFrame(byte[])} arrived.
+	 * 
+	 * @return the time, from {@link System#nanoTime()}, or 0 if 
+	 *         {@link #enableFrameEvents(int)} hasn't been called
+	 */
+	public long getLastFrameTime() {
+		FrameBuffer f = frames;
+		return f != null ? f.getLastTakenTime() : 0;
+	}
+	
+	/**
+	 * Moves whatever bytes are available into the frame buffer.  
+	 * Called on the RXTX event thread.
+	 */
+	private void drainInput() throws IOException {
+		while (in.available() > 0) {
+			int ret = in.read(chunk, 0, chunk.length);
+			if (ret <= 0) {
+				return;
+			}
+			frames.write(chunk, 0, ret);
+		}
+	}
+	
+	
 	/**
 	 * Flushes the receive buffer.
 	 */
 	public void flushReceiver() throws IOException {
+		if (frames != null) {
+			frames.clear();
+		}
 		while(in.available() > 0) {
 			int ret = in.read();
 			logger.error("eating a byte: " + Integer.toHexString(ret));
 		}
 	}
 	
+	/**
+	 * Frames are only read with {@link #receiveFrame(byte[])}.
+	 */
+	public boolean setFrameHandler(DoorIoEngine.FrameHandler handler) {
+		return false;
+	}
+	
 	
 	/**
 	 * Closes the serial port.
 	 */
 	public void close() {
+		if (frameEotChar != -1) {
+			port.removeEventListener();
+		}
 		port.close();
 	}
 	
@@ -229,4 +342,22 @@ public class RS232SerialPort {
 		}
 		this.receiveTimeout = rxTimeout;
 	}
+	
+	
+	/**
+	 * Receives DATA_AVAILABLE notifications from RXTX and assembles frames.
+	 */
+	private class FrameListener implements SerialPortEventListener {
+		
+		public void serialEvent(SerialPortEvent event) {
+			if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) {
+				return;
+			}
+			try {
+				drainInput();
+			} catch (IOException e) {
+				receiveError = e;
+			}
+		}
+	}
 }
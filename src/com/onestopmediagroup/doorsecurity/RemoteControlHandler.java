@@ -24,16 +24,18 @@ import java.util.Map;
 
 
 /**
- * Handler to allow a door to be unlocked via XML-RPC.
+ * Handler to allow a door to be unlocked, and cards to be reloaded, via XML-RPC.
  * 
  * @author dfraser
  *
  */
 public class RemoteControlHandler {
 	private final Map<String, DoorController> doorControllers;
+	private final AccessCacheService accessCache;
 
-	public RemoteControlHandler(Map<String, DoorController> doorControllers) {
+	public RemoteControlHandler(Map<String, DoorController> doorControllers, AccessCacheService accessCache) {
 		this.doorControllers = doorControllers;
+		this.accessCache = accessCache;
 	}
 	
 	public int openDoor(String name) {
@@ -44,4 +46,30 @@ public class RemoteControlHandler {
 		}
 		return -1;
 	}
+	
+	/**
+	 * Reloads a card for every door, e.g. straight after it is revoked.
+	 * 
+	 * @param cardId the card, e.g. "10-1234"
+	 * @return the number of doors the card now opens; -1 if the database 
+	 *         couldn't be reached, in which case the card opens none until the 
+	 *         next reload; or -2 if a reload kept the caches busy, in which 
+	 *         case nothing was changed and the call should be made again
+	 */
+	public int invalidateCard(String cardId) {
+		return accessCache.invalidateCard(cardId);
+	}
+	
+	/**
+	 * Reloads every card in an access group, e.g. after it is given or loses a door.
+	 * 
+	 * @param groupId the access group id
+	 * @return the number of cards reloaded; -1 if the database couldn't be 
+	 *         reached, in which case the group's cards open nothing until the 
+	 *         next reload; or -2 if a reload kept the caches busy, in which 
+	 *         case nothing was changed and the call should be made again
+	 */
+	public int invalidateGroup(int groupId) {
+		return accessCache.invalidateGroup(groupId);
+	}
 }
@@ -37,15 +37,17 @@ public class RemoteControlService extends XmlRpcServlet {
 	private static final long serialVersionUID = 2091781880167729012L;
 	
 	private Map<String, DoorController> doorControllers;
+	private AccessCacheService accessCache;
 
-	public RemoteControlService(Map<String,DoorController> doorControllers) {
+	public RemoteControlService(Map<String,DoorController> doorControllers, AccessCacheService accessCache) {
 		this.doorControllers = doorControllers;
+		this.accessCache = accessCache;
 	}
 
 	public void init( ServletConfig servletConfig ) throws ServletException
     {
         super.init( servletConfig );
-        getXmlRpcServer().addInvocationHandler( "DoorControl", new RemoteControlHandler(doorControllers) );
+        getXmlRpcServer().addInvocationHandler( "DoorControl", new RemoteControlHandler(doorControllers, accessCache) );
         getXmlRpcServer().addInvocationHandler( "RandomNumberGenerator", new Random() );
     }
 
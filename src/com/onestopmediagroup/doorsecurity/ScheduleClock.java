@@ -0,0 +1,120 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.TimeZone;
+
+/**
+ * Converts the system time into local minute-of-week and day numbers for 
+ * {@link AccessSchedules}.  The conversion is done at most once a minute; 
+ * in between, {@link #now()} is a clock read and a comparison.
+ * 
+ * @author dfraser
+ *
+ */
+public class ScheduleClock {
+
+	private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+	
+	private final TimeZone zone;
+	
+	private volatile Minute current;
+	
+	/**
+	 * Creates a clock for the system default time zone.
+	 */
+	public ScheduleClock() {
+		this(TimeZone.getDefault());
+	}
+	
+	/**
+	 * Creates a clock for a given time zone.
+	 * 
+	 * @param zone the time zone the schedules are written in
+	 */
+	public ScheduleClock(TimeZone zone) {
+		this.zone = zone;
+		this.current = at(System.currentTimeMillis());
+	}
+	
+	/**
+	 * A local minute, as used by {@link AccessSchedules}.
+	 */
+	public static final class Minute {
+		/**
+		 * Minutes since Monday 00:00 local time, from 0 to 10079.
+		 */
+		public final int minuteOfWeek;
+		
+		/**
+		 * Local days since 1 January 1970.
+		 */
+		public final int epochDay;
+		
+		private final long startMillis;
+		private final long endMillis;
+		
+		Minute(int minuteOfWeek, int epochDay, long startMillis, long endMillis) {
+			this.minuteOfWeek = minuteOfWeek;
+			this.epochDay = epochDay;
+			this.startMillis = startMillis;
+			this.endMillis = endMillis;
+		}
+	}
+	
+	/**
+	 * Returns the current local minute.
+	 * 
+	 * @return the current minute
+	 */
+	public Minute now() {
+		long millis = System.currentTimeMillis();
+		Minute m = current;
+		if (millis >= m.endMillis || millis < m.startMillis) {
+			m = at(millis);
+			current = m;
+		}
+		return m;
+	}
+	
+	/**
+	 * Works out the local minute containing a given time.
+	 * 
+	 * @param millis the time, in milliseconds since the epoch
+	 * @return the minute
+	 */
+	public Minute at(long millis) {
+		long local = millis + zone.getOffset(millis);
+		long localMinute = floorDiv(local, MILLIS_PER_MINUTE);
+		long startMillis = millis - (local - localMinute * MILLIS_PER_MINUTE);
+		int epochDay = (int) floorDiv(localMinute, WeeklySchedule.MINUTES_PER_DAY);
+		int minuteOfDay = (int) (localMinute - (long) epochDay * WeeklySchedule.MINUTES_PER_DAY);
+		// 1 January 1970 was a Thursday, day 3 counting from Monday
+		int dayOfWeek = ((epochDay + 3) % 7 + 7) % 7;
+		return new Minute(dayOfWeek * WeeklySchedule.MINUTES_PER_DAY + minuteOfDay, epochDay, 
+				startMillis, startMillis + MILLIS_PER_MINUTE);
+	}
+	
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+	}
+}
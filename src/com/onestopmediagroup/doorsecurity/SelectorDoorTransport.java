@@ -0,0 +1,269 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A door controller board behind a serial-to-Ethernet converter, whose 
+ * connection is driven by a {@link DoorIoEngine} selector loop.
+ * 
+ * Once a {@link DoorIoEngine.FrameHandler} is set, received frames are pushed
+ * to it on the door's worker thread and no thread needs to wait in 
+ * {@link #receiveFrame(byte[])}.  Until then, frames are queued for 
+ * receiveFrame as with the other transports.
+ * 
+ * @author dfraser
+ *
+ */
+public class SelectorDoorTransport implements DoorTransport {
+
+	private static Logger log = Logger.getLogger(SelectorDoorTransport.class);
+	
+	private static final int FRAME_BUFFER_SIZE = 4096;
+	
+	/**
+	 * The longest frame we accept.  A card frame is about 20 bytes.
+	 */
+	private static final int MAX_FRAME = 256;
+	
+	private final DoorIoEngine engine;
+	private final DoorIoEngine.IoLoop loop;
+	private final SocketChannel channel;
+	private final ExecutorService worker;
+	private final String address;
+	
+	/**
+	 * Received bytes, only touched by the selector loop.
+	 */
+	private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_FRAME * 2);
+	
+	/**
+	 * Bytes waiting for room in the socket, guarded by itself.
+	 */
+	private final ByteBuffer out = ByteBuffer.allocate(4096);
+	
+	private final FrameBuffer frames = new FrameBuffer(FRAME_BUFFER_SIZE, '\n');
+	private volatile DoorIoEngine.FrameHandler handler;
+	private volatile IOException failure;
+	private volatile int receiveTimeout;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	SelectorDoorTransport(DoorIoEngine engine, DoorIoEngine.IoLoop loop, SocketChannel channel, 
+			ExecutorService worker, String address, int timeout) {
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+		this.worker = worker;
+		this.address = address;
+		this.receiveTimeout = timeout;
+	}
+	
+	/**
+	 * Sets the handler for received frames, or null to queue them for 
+	 * {@link #receiveFrame(byte[])} again.
+	 * 
+	 * @param handler the handler
+	 * @return true, since frames are always pushed to a handler
+	 */
+	public boolean setFrameHandler(DoorIoEngine.FrameHandler handler) {
+		this.handler = handler;
+		return true;
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Reads what has arrived and dispatches any complete frames.  Called on the selector loop.
+	 */
+	void readReady() throws IOException {
+		int ret = channel.read(in);
+		if (ret < 0) {
+			throw new IOException("connection to "+address+" closed");
+		}
+		engine.bytesReceived.addAndGet(ret);
+		int start = 0;
+		int end = in.position();
+		for (int i = 0; i < end; i++) {
+			if (in.get(i) == '\n') {
+				dispatch(start, i + 1 - start);
+				start = i + 1;
+			}
+		}
+		if (start > 0) {
+			// keep the partial frame at the start of the buffer
+			in.limit(end);
+			in.position(start);
+			in.compact();
+		} else if (end >= MAX_FRAME) {
+			// no newline in a frame's worth of data; it's noise
+			engine.framesDiscarded.incrementAndGet();
+			in.clear();
+		}
+	}
+	
+	private void dispatch(int start, int length) {
+		final long received = System.nanoTime();
+		engine.framesReceived.incrementAndGet();
+		final byte[] frame = new byte[length];
+		for (int i = 0; i < length; i++) {
+			frame[i] = in.get(start + i);
+		}
+		final DoorIoEngine.FrameHandler h = handler;
+		if (h == null) {
+			frames.write(frame, 0, length);
+			return;
+		}
+		try {
+			worker.execute(new Runnable() {
+				public void run() {
+					h.frame(frame, frame.length, received);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the engine is stopping
+		}
+	}
+	
+	/**
+	 * Writes pending output.  Called on the selector loop when the socket has room.
+	 * 
+	 * @return true if everything has been written
+	 */
+	boolean writeReady() throws IOException {
+		synchronized (out) {
+			out.flip();
+			channel.write(out);
+			out.compact();
+			return out.position() == 0;
+		}
+	}
+	
+	/**
+	 * Records a failed connection and tells the handler.  Called on the selector loop.
+	 */
+	void failed(final IOException e) {
+		failure = e;
+		close();
+		final DoorIoEngine.FrameHandler h = handler;
+		if (h != null) {
+			try {
+				worker.execute(new Runnable() {
+					public void run() {
+						h.closed(e);
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				// the engine is stopping
+			}
+		}
+	}
+	
+	public void enableFrameEvents(int eotChar) throws IOException {
+		if (eotChar != '\n') {
+			throw new IOException("only newline terminated frames are supported");
+		}
+	}
+
+	public int receiveFrame(byte[] rxBuf) throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw e;
+		}
+		try {
+			return frames.take(rxBuf, receiveTimeout);
+		} catch (InterruptedException ie) {
+			// same as a timeout, but leave the flag set for our caller
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+
+	public long getLastFrameTime() {
+		return frames.getLastTakenTime();
+	}
+	
+	/**
+	 * Sends a message.  Writes straight to the socket if it has room, otherwise
+	 * the rest is written by the selector loop; either way this doesn't block.
+	 */
+	public int send(byte[] txBuf, int txLen) throws IOException {
+		if(txBuf == null || txBuf.length < 1) {
+			throw new IllegalArgumentException("txBuf is null or empty");
+		}
+		if(txLen > txBuf.length || txLen < 1) {			
+			throw new IllegalArgumentException("txLen is invalid: " + txLen);
+		}
+		IOException e = failure;
+		if (e != null) {
+			throw e;
+		}
+		synchronized (out) {
+			ByteBuffer src = ByteBuffer.wrap(txBuf, 0, txLen);
+			if (out.position() == 0) {
+				channel.write(src);
+				if (!src.hasRemaining()) {
+					return txLen;
+				}
+			}
+			if (src.remaining() > out.remaining()) {
+				throw new IOException("output to "+address+" is backed up");
+			}
+			out.put(src);
+		}
+		loop.requestWrite(this);
+		return txLen;
+	}
+
+	public void flushReceiver() throws IOException {
+		frames.clear();
+	}
+
+	public void setRxTimeout(int rxTimeout) {
+		if (rxTimeout >= 0) {
+			this.receiveTimeout = rxTimeout;
+		}
+	}
+
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			engine.connections.decrementAndGet();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("error closing connection to "+address+": "+e.getMessage());
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "tcp://"+address;
+	}
+}
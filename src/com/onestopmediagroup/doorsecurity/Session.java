@@ -2,35 +2,99 @@ package com.onestopmediagroup.doorsecurity;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
 public class Session {
 
+	private static Logger log = Logger.getLogger(Session.class);
+
 	private final Map<String, DoorController> doorControllers = new HashMap<String, DoorController>();
+	private final AccessCacheService accessCache;
+	private final ConnectionPool connectionPool;
+	private final ScheduledExecutorService scheduler;
+	private final ScheduledExecutorService doorScheduler;
+	private final ExecutorService reconnectExecutor;
+	private final ThreadFactory doorThreadFactory;
+	private final boolean tcpSelectorIo;
+	private final int ioThreads;
+	private final int ioWorkerThreads;
+	private DoorIoEngine ioEngine;
+	private final boolean virtualThreads;
 	private final boolean rpcServerEnabled;
 	private final int rpcListenPort;
 	private final int cacheReloadSeconds;
+	private final boolean cacheDeltaReload;
+	private final int cacheFullReloadSeconds;
+	private final int changePollMillis;
+	private final int readThroughMillis;
+	private final int readThroughMissSeconds;
+	private final String cacheSnapshotFile;
+	private final int snapshotMaxAgeSeconds;
 	private final String dbUrl;
 	private final String dbDriver;
 	private final int afterHoursStart;
 	private final int afterHoursEnd;
 	private final boolean afterHoursEnabled;
+	private final WeeklySchedule defaultSchedule;
+	private final ScheduleClock scheduleClock = new ScheduleClock();
 	private final boolean friendlyLogRealName;
 	private final boolean useLedSign;
 	private final String ledSignServiceUrl;
+	private final int ledSignTimeoutMillis;
+	private final int listenerQueueSize;
+	private final DoorEventBus.BackpressurePolicy listenerBackpressure;
+	private final int asyncLogBufferSize;
+	private final boolean accessEventLog;
+	private final DoorEventBus eventBus = new DoorEventBus();
+	private final Metrics metrics = new Metrics();
+	private final int accessLogQueueSize;
+	private final int accessLogBatchSize;
+	private final int accessLogRetrySeconds;
+	private final String accessLogSpoolFile;
+	private final int accessLogDenySeconds;
+	private final int denyPauseMillis;
+	private final int denyLockoutMaxSeconds;
+	private final int denyWindowSeconds;
+	private final int bruteForceDenials;
+	private final Map<String, Integer> doorContactPins = new HashMap<String, Integer>();
+	private final Set<String> invertedDoorContacts = new HashSet<String>();
+	private final int heldOpenSeconds;
+	private final int forcedGraceMillis;
+	private final int reconnectMinMillis;
+	private final int reconnectMaxSeconds;
 
+	/**
+	 * Creates a new Session from doorsystem.properties in the current directory.
+	 * 
+	 * @throws IOException if the file couldn't be read or a door couldn't be set up
+	 */
 	public Session() throws IOException {
-		
-		FileInputStream fis;
-		Properties properties = new Properties();
-		fis = new FileInputStream("doorsystem.properties");
-		properties.load(fis);
+		this(loadProperties("doorsystem.properties"));
+	}
+	
+	/**
+	 * Creates a new Session from the given configuration, for embedding and benchmarks.
+	 * 
+	 * @param properties the configuration, with the same keys as doorsystem.properties
+	 * @throws IOException if a door couldn't be set up
+	 */
+	public Session(Properties properties) throws IOException {
 
 		if (properties.getProperty("rpcServerEnabled") != null && Integer.parseInt(properties.getProperty("rpcServerEnabled")) == 1) {
 			rpcServerEnabled = true;
@@ -45,11 +109,22 @@ public class Session {
 		}
 
 		dbDriver = properties.getProperty("dbDriver");
-		dbUrl = properties.getProperty("dbUrl");
 		
-		if (dbDriver == null || dbUrl == null) {
+		if (dbDriver == null || properties.getProperty("dbUrl") == null) {
 			throw new IllegalArgumentException("expected property dbDriver and/or dbUrl not found");
 		}
+		dbUrl = withBatchRewrite(properties.getProperty("dbUrl"));
+		try {
+			Class.forName(dbDriver).newInstance();
+		} catch (Exception e) {
+			System.out.println("couldn't load class: "+e.getMessage());
+		}
+		connectionPool = new ConnectionPool(dbUrl, 
+				Integer.parseInt(properties.getProperty("dbPoolMinSize", "1")),
+				Integer.parseInt(properties.getProperty("dbPoolMaxSize", "4")),
+				properties.getProperty("dbPoolValidationQuery", "SELECT 1"),
+				Integer.parseInt(properties.getProperty("dbPoolIdleSeconds", "300")),
+				Integer.parseInt(properties.getProperty("dbPoolStatementCacheSize", "20")));
 		
 		if (properties.getProperty("cacheReloadSeconds") != null) {
 			cacheReloadSeconds = Integer.parseInt(properties.getProperty("cacheReloadSeconds"));
@@ -57,6 +132,15 @@ public class Session {
 			cacheReloadSeconds = 120; // reasonable default
 		}		
 		
+		this.cacheDeltaReload = "delta".equals(properties.getProperty("cacheReloadMode"));
+		this.cacheFullReloadSeconds = Integer.parseInt(properties.getProperty("cacheFullReloadSeconds", "900"));
+		this.changePollMillis = Integer.parseInt(properties.getProperty("changePollMillis", "2000"));
+		this.readThroughMillis = Integer.parseInt(properties.getProperty("readThroughMillis", "0"));
+		this.readThroughMissSeconds = Integer.parseInt(properties.getProperty("readThroughMissSeconds", "60"));
+		
+		this.cacheSnapshotFile = properties.getProperty("cacheSnapshotFile");
+		this.snapshotMaxAgeSeconds = Integer.parseInt(properties.getProperty("snapshotMaxAgeSeconds", "86400"));
+		
 		boolean tmpAfterHoursEnabled = true;
 		if (properties.getProperty("afterHoursStart") != null) {
 			afterHoursStart = Integer.parseInt(properties.getProperty("afterHoursStart"));
@@ -73,6 +157,8 @@ public class Session {
 		}		
 		
 		this.afterHoursEnabled = tmpAfterHoursEnabled;
+		this.defaultSchedule = afterHoursEnabled ? WeeklySchedule.officeHours(afterHoursStart, afterHoursEnd) 
+				: WeeklySchedule.ALWAYS;
 		
 		
 		this.friendlyLogRealName = "user".equals(properties.getProperty("friendlyLogName"));
@@ -80,6 +166,89 @@ public class Session {
 		this.useLedSign = "true".equals(properties.getProperty("useLedSign"));
 		
 		this.ledSignServiceUrl = properties.getProperty("ledSignServiceUrl");
+		this.ledSignTimeoutMillis = Integer.parseInt(properties.getProperty("ledSignTimeoutMillis", "2000"));
+		
+		this.listenerQueueSize = Integer.parseInt(properties.getProperty("listenerQueueSize", "100"));
+		this.listenerBackpressure = DoorEventBus.BackpressurePolicy.parse(properties.getProperty("listenerBackpressure", "drop-newest"));
+		
+		this.asyncLogBufferSize = Integer.parseInt(properties.getProperty("asyncLogBufferSize", "1024"));
+		this.accessEventLog = "true".equals(properties.getProperty("accessEventLog"));
+		
+		this.accessLogQueueSize = Integer.parseInt(properties.getProperty("accessLogQueueSize", "1000"));
+		this.accessLogBatchSize = Integer.parseInt(properties.getProperty("accessLogBatchSize", "50"));
+		this.accessLogRetrySeconds = Integer.parseInt(properties.getProperty("accessLogRetrySeconds", "30"));
+		this.accessLogSpoolFile = properties.getProperty("accessLogSpoolFile", "logs/access_log.spool");
+		this.accessLogDenySeconds = Integer.parseInt(properties.getProperty("accessLogDenySeconds", "60"));
+		
+		this.denyPauseMillis = Integer.parseInt(properties.getProperty("denyPauseMillis", "2000"));
+		this.denyLockoutMaxSeconds = Integer.parseInt(properties.getProperty("denyLockoutMaxSeconds", "60"));
+		this.denyWindowSeconds = Integer.parseInt(properties.getProperty("denyWindowSeconds", "300"));
+		this.bruteForceDenials = Integer.parseInt(properties.getProperty("bruteForceDenials", "20"));
+		
+		this.heldOpenSeconds = Integer.parseInt(properties.getProperty("heldOpenSeconds", "30"));
+		this.forcedGraceMillis = Integer.parseInt(properties.getProperty("forcedGraceMillis", "1000"));
+		
+		this.reconnectMinMillis = Integer.parseInt(properties.getProperty("reconnectMinMillis", "250"));
+		this.reconnectMaxSeconds = Integer.parseInt(properties.getProperty("reconnectMaxSeconds", "30"));
+		
+		// the door loops run on virtual threads if asked for and the JVM has them.
+		// -Ddoorsystem.threadModel on the command line wins over the properties file.
+		String threadModel = System.getProperty("doorsystem.threadModel", properties.getProperty("threadModel", "platform"));
+		ThreadFactory virtualFactory = null;
+		if ("virtual".equals(threadModel)) {
+			virtualFactory = createVirtualThreadFactory();
+			if (virtualFactory == null) {
+				log.warn("virtual threads are not available in this JVM, using platform threads for doors");
+			}
+		} else if (!"platform".equals(threadModel)) {
+			throw new IllegalArgumentException("unknown threadModel: "+threadModel);
+		}
+		this.virtualThreads = virtualFactory != null;
+		this.doorThreadFactory = virtualThreads ? virtualFactory : new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r);
+			}
+		};
+		
+		// tcp doors get a thread each unless tcpDoorIo=selector
+		this.tcpSelectorIo = "selector".equals(properties.getProperty("tcpDoorIo", "thread"));
+		this.ioThreads = Integer.parseInt(properties.getProperty("ioThreads", "1"));
+		this.ioWorkerThreads = Integer.parseInt(properties.getProperty("ioWorkerThreads", "2"));
+		
+		// timer events for all doors: relocking, beeps, latch refresh, etc.  these 
+		// never touch the database, so a slow query can't keep a door open.
+		int doorTimerThreads = Integer.parseInt(properties.getProperty("doorTimerThreads", "2"));
+		this.doorScheduler = Executors.newScheduledThreadPool(doorTimerThreads, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DoorTimer-"+(count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		// opening door connections can block, so each open gets a thread of its own
+		this.reconnectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DoorReconnect-"+(count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		// everything else: cache reloads, saving door state, state listeners, etc.
+		int schedulerThreads = Integer.parseInt(properties.getProperty("schedulerThreads", "2"));
+		this.scheduler = Executors.newScheduledThreadPool(schedulerThreads, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Scheduler-"+(count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		this.accessCache = new AccessCacheService(this);
 		
 		Enumeration<Object> propKeys = properties.keys();
 		while (propKeys.hasMoreElements()) {
@@ -100,18 +269,77 @@ public class Session {
 					throw new IllegalArgumentException(
 							"expected property (name" + portNum + ") not found");
 				}
-				RS232SerialPort comPort = new RS232SerialPort(port, 9600, 1000);
-				DoorController dc = new DoorController(comPort, doorName, this);
+				String contact = properties.getProperty("contact" + portNum);
+				if (contact != null) {
+					contact = contact.trim();
+					if (contact.startsWith("!")) {
+						invertedDoorContacts.add(doorName);
+						contact = contact.substring(1);
+					}
+					int pin = Integer.parseInt(contact);
+					if (pin < 0 || pin >= DoorState.INPUT_COUNT) {
+						throw new IllegalArgumentException("contact" + portNum + " must be an input from 0 to "
+								+ (DoorState.INPUT_COUNT - 1));
+					}
+					doorContactPins.put(doorName, pin);
+				}
+				DoorTransport transport = openTransport(port, doorName, portNum);
+				DoorController dc = new DoorController(transport, doorName, this);
 				doorControllers.put(doorName, dc);
 			}
 		}
+		
+		accessCache.start();
+
+	}
 
+	private static Properties loadProperties(String fileName) throws IOException {
+		Properties properties = new Properties();
+		FileInputStream fis = new FileInputStream(fileName);
+		try {
+			properties.load(fis);
+		} finally {
+			fis.close();
+		}
+		return properties;
 	}
 
 	public String getLedSignServiceUrl() {
 		return ledSignServiceUrl;
 	}
 
+	public int getLedSignTimeoutMillis() {
+		return ledSignTimeoutMillis;
+	}
+
+	public int getListenerQueueSize() {
+		return listenerQueueSize;
+	}
+
+	public DoorEventBus.BackpressurePolicy getListenerBackpressure() {
+		return listenerBackpressure;
+	}
+
+	/**
+	 * Returns the ring size for the asynchronous log appenders, or 0 if 
+	 * logging is synchronous.
+	 */
+	public int getAsyncLogBufferSize() {
+		return asyncLogBufferSize;
+	}
+
+	public boolean isAccessEventLog() {
+		return accessEventLog;
+	}
+
+	public DoorEventBus getEventBus() {
+		return eventBus;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
 	public boolean isFriendlyLogRealName() {
 		return friendlyLogRealName;
 	}
@@ -128,6 +356,18 @@ public class Session {
 		return afterHoursEnabled;
 	}
 
+	/**
+	 * Returns the schedule for cards whose groups have no schedule of their own,
+	 * built from afterHoursStart and afterHoursEnd.
+	 */
+	public WeeklySchedule getDefaultSchedule() {
+		return defaultSchedule;
+	}
+
+	public ScheduleClock getScheduleClock() {
+		return scheduleClock;
+	}
+
 	public int getRpcListenPort() {
 		return rpcListenPort;
 	}
@@ -136,6 +376,163 @@ public class Session {
 		return rpcServerEnabled;
 	}
 
+	/**
+	 * Returns the scheduler for database and other background work, which 
+	 * may block.
+	 * @return the shared scheduler
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Returns the scheduler for door timer events.  Tasks run on it must not 
+	 * block on the database or anything else slow.
+	 * @return the door timer scheduler
+	 */
+	public ScheduledExecutorService getDoorScheduler() {
+		return doorScheduler;
+	}
+	
+	/**
+	 * Returns the executor which opens door connections for 
+	 * {@link SupervisedDoorTransport}.  Each open runs on its own thread, 
+	 * so one unreachable board can't hold up the others.
+	 * @return the reconnect executor
+	 */
+	public ExecutorService getReconnectExecutor() {
+		return reconnectExecutor;
+	}
+
+	/**
+	 * Opens the connection to a door's controller board, given the portN property.
+	 * This is one of:
+	 * <ul>
+	 * <li>a serial port name, e.g. <code>/dev/ttyS0</code></li>
+	 * <li><code>tcp://host:port</code>, for a serial-to-Ethernet converter.  These
+	 *     share a {@link DoorIoEngine} if tcpDoorIo=selector.</li>
+	 * <li><code>sim://?swipesPerMinute=6&amp;cards=10-1234,10-1235</code>, for a simulated
+	 *     board which presents the given cards (or random ones) at the given average rate</li>
+	 * </ul>
+	 * 
+	 * Serial and tcp ports are wrapped in a {@link SupervisedDoorTransport}, 
+	 * which opens them in the background and reopens them when they fail.  
+	 * Until one is open, its door's link is down.
+	 * 
+	 * @param spec the portN property
+	 * @param doorName the name of the door
+	 * @param portNum the N in portN, used to seed the simulator
+	 * @return the transport
+	 * @throws IOException if the connection could not be opened
+	 */
+	private DoorTransport openTransport(String spec, String doorName, int portNum) throws IOException {
+		if (spec.startsWith("tcp:") || spec.startsWith("sim:")) {
+			URI uri;
+			try {
+				uri = new URI(spec);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException("invalid port: "+spec);
+			}
+			if ("tcp".equals(uri.getScheme())) {
+				if (uri.getHost() == null || uri.getPort() == -1) {
+					throw new IllegalArgumentException("expected tcp://host:port, got "+spec);
+				}
+				final String host = uri.getHost();
+				final int port = uri.getPort();
+				if (tcpSelectorIo) {
+					if (ioEngine == null) {
+						ioEngine = new DoorIoEngine(ioThreads, ioWorkerThreads);
+					}
+					final DoorIoEngine engine = ioEngine;
+					return new SupervisedDoorTransport(doorName, new SupervisedDoorTransport.Opener() {
+						public DoorTransport open() throws IOException {
+							return engine.connect(host, port, 1000);
+						}
+					}, this, true);
+				}
+				return new SupervisedDoorTransport(doorName, new SupervisedDoorTransport.Opener() {
+					public DoorTransport open() throws IOException {
+						return new TcpDoorTransport(host, port, 1000);
+					}
+				}, this);
+			}
+			double swipesPerMinute = 0;
+			int[] cards = null;
+			if (uri.getQuery() != null) {
+				for (String param : uri.getQuery().split("&")) {
+					int eq = param.indexOf('=');
+					String key = eq == -1 ? param : param.substring(0, eq);
+					String value = eq == -1 ? "" : param.substring(eq + 1);
+					if ("swipesPerMinute".equals(key)) {
+						swipesPerMinute = Double.parseDouble(value);
+					} else if ("cards".equals(key)) {
+						String[] ids = value.split(",");
+						cards = new int[ids.length];
+						for (int i = 0; i < ids.length; i++) {
+							cards[i] = HIDCard.parseCardKey(ids[i].trim());
+							if (cards[i] == -1) {
+								throw new IllegalArgumentException("invalid card id "+ids[i]+" in "+spec);
+							}
+						}
+					} else {
+						throw new IllegalArgumentException("unknown parameter "+key+" in "+spec);
+					}
+				}
+			}
+			return new SimulatedDoorTransport(doorName, swipesPerMinute, cards, portNum);
+		}
+		final String portName = spec;
+		return new SupervisedDoorTransport(doorName, new SupervisedDoorTransport.Opener() {
+			public DoorTransport open() throws IOException {
+				return new RS232SerialPort(portName, 9600, 1000);
+			}
+		}, this);
+	}
+
+	/**
+	 * Returns the factory for door threads: virtual threads if threadModel=virtual
+	 * and the JVM supports them, otherwise ordinary platform threads.
+	 * 
+	 * @return the thread factory
+	 */
+	public ThreadFactory getDoorThreadFactory() {
+		return doorThreadFactory;
+	}
+
+	/**
+	 * Returns the engine driving the tcp doors.
+	 * 
+	 * @return the engine, or null if no doors use it
+	 */
+	public DoorIoEngine getIoEngine() {
+		return ioEngine;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Looks up Thread.ofVirtual().factory() by reflection, so that we can still 
+	 * be built for and run on older JVMs.
+	 * 
+	 * @return the virtual thread factory, or null if this JVM has none
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// NoSuchMethodException on anything before 21, or 19/20 without --enable-preview
+			return null;
+		}
+	}
+
+	public AccessCacheService getAccessCache() {
+		return accessCache;
+	}
+
 	public Map<String, DoorController> getDoorControllers() {
 		return Collections.unmodifiableMap(doorControllers);
 	}
@@ -145,14 +542,157 @@ public class Session {
 		return cacheReloadSeconds;
 	}
 
+	public boolean isCacheDeltaReload() {
+		return cacheDeltaReload;
+	}
+
+	/**
+	 * Returns how often a delta reload is replaced by a full one anyways, 
+	 * in case a change was missed.
+	 * @return the interval in seconds, or 0 for never
+	 */
+	public int getCacheFullReloadSeconds() {
+		return cacheFullReloadSeconds;
+	}
+
+	/**
+	 * Returns how often the access_change log is polled for changed cards.
+	 * @return the interval in milliseconds, or 0 if it isn't polled
+	 */
+	public int getChangePollMillis() {
+		return changePollMillis;
+	}
+
+	/**
+	 * Returns how long a card check waits for a card missing from the cache 
+	 * to be looked up in the database.
+	 * @return the deadline in milliseconds, or 0 if missing cards aren't looked up
+	 */
+	public int getReadThroughMillis() {
+		return readThroughMillis;
+	}
+
+	public int getReadThroughMissSeconds() {
+		return readThroughMissSeconds;
+	}
+
+	public String getCacheSnapshotFile() {
+		return cacheSnapshotFile;
+	}
+
+	/**
+	 * Returns the age beyond which a cache snapshot is not loaded at startup.
+	 * @return the age in seconds, or 0 for no limit
+	 */
+	public int getSnapshotMaxAgeSeconds() {
+		return snapshotMaxAgeSeconds;
+	}
+
 	public String getDbUrl() {
 		return dbUrl;
 	}
+
+	/**
+	 * Turns on rewriteBatchedStatements for MySQL, unless the url sets it 
+	 * already.  Without it Connector/J sends a batch of inserts as separate 
+	 * statements, and the access log's batches save nothing.
+	 * 
+	 * @param url the JDBC url from the configuration
+	 * @return the url to connect with
+	 */
+	static String withBatchRewrite(String url) {
+		if (!url.startsWith("jdbc:mysql:") || url.indexOf("rewriteBatchedStatements=") != -1) {
+			return url;
+		}
+		return url+(url.indexOf('?') == -1 ? "?" : "&")+"rewriteBatchedStatements=true";
+	}
+	
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
 	
 	public String getDbDriver() {
 		return dbDriver;
 	}
 	
+	public int getAccessLogQueueSize() {
+		return accessLogQueueSize;
+	}
+
+	public int getAccessLogBatchSize() {
+		return accessLogBatchSize;
+	}
+
+	/**
+	 * Returns how long repeated denials of the same card at a door are 
+	 * counted up before being written as a single access_log row.
+	 */
+	public int getAccessLogDenySeconds() {
+		return accessLogDenySeconds;
+	}
+
+	public int getDenyPauseMillis() {
+		return denyPauseMillis;
+	}
+
+	public int getDenyLockoutMaxSeconds() {
+		return denyLockoutMaxSeconds;
+	}
+
+	public int getDenyWindowSeconds() {
+		return denyWindowSeconds;
+	}
+
+	public int getBruteForceDenials() {
+		return bruteForceDenials;
+	}
+
+	/**
+	 * Returns the board input wired to a door's contact.
+	 * 
+	 * @param doorName the door
+	 * @return the input, from 0 to 4, or -1 if the door has no contact
+	 */
+	public int getDoorContactPin(String doorName) {
+		Integer pin = doorContactPins.get(doorName);
+		return pin != null ? pin.intValue() : -1;
+	}
+
+	/**
+	 * Returns whether a door's contact input is low, rather than high, when 
+	 * the door is open.
+	 * 
+	 * @param doorName the door
+	 * @return true if the contact is inverted
+	 */
+	public boolean isDoorContactInverted(String doorName) {
+		return invertedDoorContacts.contains(doorName);
+	}
+
+	public int getHeldOpenSeconds() {
+		return heldOpenSeconds;
+	}
+
+	public int getForcedGraceMillis() {
+		return forcedGraceMillis;
+	}
+
+	public int getReconnectMinMillis() {
+		return reconnectMinMillis;
+	}
+
+	public int getReconnectMaxSeconds() {
+		return reconnectMaxSeconds;
+	}
+
+	public int getAccessLogRetrySeconds() {
+		return accessLogRetrySeconds;
+	}
+
+	public String getAccessLogSpoolFile() {
+		return accessLogSpoolFile;
+	}
+
 	public boolean isUseLedSign() {
 		return useLedSign;
 	}
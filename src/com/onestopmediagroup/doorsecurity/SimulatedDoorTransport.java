@@ -0,0 +1,323 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * An in-memory stand-in for a door controller board, for load testing without
+ * hardware.  It answers commands the way hardware/HID_control.c does, and 
+ * presents cards at random at a configured average rate.
+ * 
+ * Commands sent to the board (B, G and S with a 0-9 or L parameter, and ?) 
+ * update its beeper, green LED and strike state; a status request is answered
+ * with a '?' frame followed by an 'i' frame.  Card swipes are 'H' frames 
+ * holding 26-bit Wiegand data, encoded as the HID reader would send it.
+ * 
+ * Swipes are generated by the thread waiting in {@link #receiveFrame(byte[])},
+ * so a simulated door costs no threads of its own.
+ * 
+ * @author dfraser
+ *
+ */
+public class SimulatedDoorTransport implements DoorTransport {
+
+	private static final int FRAME_BUFFER_SIZE = 4096;
+	private static final int EOT = '\n';
+	
+	private final String name;
+	private final FrameBuffer frames = new FrameBuffer(FRAME_BUFFER_SIZE, EOT);
+	private final Random random;
+	
+	/**
+	 * Average swipes per minute, or 0 for none.
+	 */
+	private final double swipesPerMinute;
+	
+	/**
+	 * Packed keys of the cards to present, or null for random cards.
+	 */
+	private final int[] cardKeys;
+	
+	private volatile int receiveTimeout = 1000;
+	private long nextSwipe;
+	private long swipes = 0;
+	private long commands = 0;
+	
+	// board state, guarded by this.  times are when each output switches off.
+	private long beepUntil = 0;
+	private long greenUntil = 0;
+	private long strikeUntil = 0;
+	private int inputs = 0;
+	
+	/**
+	 * The command being received, which may arrive split across several sends.
+	 */
+	private final byte[] command = new byte[8];
+	private int commandLength = 0;
+	
+	/**
+	 * Creates a new simulated board.
+	 * 
+	 * @param name a name for the board, used in messages
+	 * @param swipesPerMinute the average rate at which cards are presented, or 0 for none
+	 * @param cardKeys the cards to present, as packed by {@link HIDCard#packCardKey(int, int)}, 
+	 *        or null to present random cards
+	 * @param seed seed for the random number generator, so that runs can be repeated
+	 */
+	public SimulatedDoorTransport(String name, double swipesPerMinute, int[] cardKeys, long seed) {
+		this.name = name;
+		this.swipesPerMinute = swipesPerMinute;
+		this.cardKeys = cardKeys == null || cardKeys.length == 0 ? null : cardKeys.clone();
+		this.random = new Random(seed);
+		this.nextSwipe = nextSwipeTime(System.currentTimeMillis());
+	}
+	
+	public void enableFrameEvents(int eotChar) throws IOException {
+		if (eotChar != EOT) {
+			throw new IOException("the simulated board only uses newline terminated frames");
+		}
+	}
+
+	public int receiveFrame(byte[] rxBuf) throws IOException {
+		long deadline = System.currentTimeMillis() + receiveTimeout;
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				long due = generateSwipes(now);
+				long wait = Math.min(deadline, due) - now;
+				int rc = frames.take(rxBuf, Math.max(wait, 0));
+				if (rc > 0 || System.currentTimeMillis() >= deadline) {
+					return rc;
+				}
+			}
+		} catch (InterruptedException e) {
+			// same as a timeout, but leave the flag set for our caller
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+	
+	public long getLastFrameTime() {
+		return frames.getLastTakenTime();
+	}
+	
+	/**
+	 * Presents any cards whose time has come.
+	 * 
+	 * @param now the current time
+	 * @return the time the next card is due
+	 */
+	private synchronized long generateSwipes(long now) {
+		while (nextSwipe <= now) {
+			int key = cardKeys != null ? cardKeys[random.nextInt(cardKeys.length)] : random.nextInt(1 << 24);
+			writeCard(key >> 16, key & 0xFFFF);
+			nextSwipe = nextSwipeTime(nextSwipe);
+		}
+		return nextSwipe;
+	}
+	
+	/**
+	 * Picks the time of the next swipe, with exponentially distributed gaps 
+	 * so that swipes arrive as a Poisson process.
+	 */
+	private long nextSwipeTime(long from) {
+		if (swipesPerMinute <= 0) {
+			return Long.MAX_VALUE;
+		}
+		double gap = -Math.log(1.0 - random.nextDouble()) * 60000.0 / swipesPerMinute;
+		return from + Math.max(1, (long) gap);
+	}
+	
+	/**
+	 * Presents a card to the reader straight away.
+	 * 
+	 * @param facility the card's facility code
+	 * @param cardNumber the card number
+	 */
+	public synchronized void swipe(int facility, int cardNumber) {
+		writeCard(facility, cardNumber);
+	}
+	
+	private void writeCard(int facility, int cardNumber) {
+		byte[] frame = encodeCard(facility, cardNumber);
+		frames.write(frame, 0, frame.length);
+		swipes++;
+	}
+	
+	/**
+	 * Changes the state of the board's inputs, which the board reports with an 'i' frame.
+	 * 
+	 * @param pins the input pins, in the low 5 bits
+	 */
+	public synchronized void setInputs(int pins) {
+		inputs = pins & 0x1F;
+		writeInputs();
+	}
+	
+	private void writeInputs() {
+		byte ch = (byte) (inputs | 0x20);
+		byte[] frame = { 'i', ch, (byte) (ch ^ 0x1F), EOT };
+		frames.write(frame, 0, frame.length);
+	}
+
+	public synchronized int send(byte[] txBuf, int txLen) throws IOException {
+		if(txBuf == null || txBuf.length < 1) {
+			throw new IllegalArgumentException("txBuf is null or empty");
+		}
+		if(txLen > txBuf.length || txLen < 1) {			
+			throw new IllegalArgumentException("txLen is invalid: " + txLen);
+		}
+		for (int i = 0; i < txLen; i++) {
+			if (txBuf[i] == EOT) {
+				if (commandLength == 2) {
+					execute(command[0], command[1]);
+				}
+				commandLength = 0;
+			} else if (commandLength < command.length) {
+				command[commandLength++] = txBuf[i];
+			}
+		}
+		return txLen;
+	}
+	
+	/**
+	 * Carries out a command, as HID_control.c would.
+	 */
+	private void execute(byte cmd, byte param) {
+		commands++;
+		long now = System.currentTimeMillis();
+		long until;
+		if (param == 'L') {
+			until = Long.MAX_VALUE;
+		} else if (param >= '0' && param <= '9') {
+			until = param == '0' ? 0 : now + (param - '0') * 1000L;
+		} else {
+			until = -1;
+		}
+		switch (cmd) {
+		case 'B':
+			if (until >= 0) beepUntil = until;
+			break;
+		case 'G':
+			if (until >= 0) greenUntil = until;
+			break;
+		case 'S':
+			if (until >= 0) strikeUntil = until;
+			break;
+		case '?':
+			byte[] status = { '?', bit(beepUntil > now), bit(greenUntil > now), bit(strikeUntil > now), EOT };
+			frames.write(status, 0, status.length);
+			writeInputs();
+			break;
+		}
+	}
+	
+	private static byte bit(boolean b) {
+		return b ? (byte) '1' : (byte) '0';
+	}
+	
+	/**
+	 * Encodes a card as an 'H' frame, the way the HID reader and board send it:
+	 * 26 Wiegand bits as octal digits between start and end sentinels, each 
+	 * digit in a byte of the form B'001p dddd' where p is odd parity.
+	 * 
+	 * @param facility the card's facility code
+	 * @param cardNumber the card number
+	 * @return the frame, including the newline
+	 */
+	static byte[] encodeCard(int facility, int cardNumber) {
+		int data = ((facility & 0xFF) << 17) | ((cardNumber & 0xFFFF) << 1);
+		// bit 25 is even parity over bits 13-24, bit 0 odd parity over bits 1-12
+		if ((Integer.bitCount(data & 0x1FFE000) & 1) == 1) {
+			data |= 1 << 25;
+		}
+		if ((Integer.bitCount(data & 0x1FFE) & 1) == 0) {
+			data |= 1;
+		}
+		byte[] frame = new byte[1 + 2 + 1 + 7 + 9 + 1 + 1];
+		int n = 0;
+		frame[n++] = 'H';
+		frame[n++] = readerByte(0);
+		frame[n++] = readerByte(0);
+		frame[n++] = readerByte(0x0b);
+		for (int i = 0; i < 7; i++) {
+			frame[n++] = readerByte(0);
+		}
+		for (int shift = 24; shift >= 0; shift -= 3) {
+			frame[n++] = readerByte((data >> shift) & 7);
+		}
+		frame[n++] = readerByte(0x0f);
+		frame[n++] = EOT;
+		return frame;
+	}
+	
+	private static byte readerByte(int digit) {
+		int parity = (Integer.bitCount(digit) & 1) == 0 ? 0x10 : 0;
+		return (byte) (0x20 | parity | digit);
+	}
+
+	public void flushReceiver() throws IOException {
+		frames.clear();
+	}
+
+	/**
+	 * Frames are only read with {@link #receiveFrame(byte[])}.
+	 */
+	public boolean setFrameHandler(DoorIoEngine.FrameHandler handler) {
+		return false;
+	}
+
+	public void setRxTimeout(int rxTimeout) {
+		if (rxTimeout >= 0) {
+			this.receiveTimeout = rxTimeout;
+		}
+	}
+
+	public void close() {
+		frames.clear();
+	}
+	
+	public synchronized long getSwipes() {
+		return swipes;
+	}
+	
+	public synchronized long getCommands() {
+		return commands;
+	}
+	
+	public synchronized boolean isStrikeOpen() {
+		return strikeUntil > System.currentTimeMillis();
+	}
+	
+	public synchronized boolean isGreen() {
+		return greenUntil > System.currentTimeMillis();
+	}
+	
+	public synchronized boolean isBeeping() {
+		return beepUntil > System.currentTimeMillis();
+	}
+	
+	@Override
+	public String toString() {
+		return "sim://"+name;
+	}
+}
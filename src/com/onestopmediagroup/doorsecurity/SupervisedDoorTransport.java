@@ -0,0 +1,469 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a door's connection to its board open, reopening it whenever it fails.
+ * 
+ * The underlying transport is opened by an {@link Opener}, e.g. by looking up 
+ * the serial port again, so a USB serial adapter which has gone away and 
+ * come back under the same name is picked up.  When a send or receive 
+ * fails, or the door sees no reply to its status requests and calls 
+ * {@link #linkFailed(String)}, the transport is closed and reopened after a 
+ * delay.  The delay starts at reconnectMinMillis and doubles with each 
+ * attempt, up to reconnectMaxSeconds, and goes back to the minimum once a 
+ * frame arrives on the new connection.
+ * 
+ * Opening can block for a while, e.g. on a tcp connect to a converter which 
+ * is unreachable, so every open, including the first, runs on one of the 
+ * session's reconnect threads, never on a door timer or the caller's thread.
+ * 
+ * While the link is down, receives wait and return nothing and sends fail, 
+ * so the door thread never spins on a dead port.  Transports which push 
+ * frames to a {@link DoorIoEngine.FrameHandler}, like the selector ones, 
+ * are supervised the same way: the handler is set on each new transport, 
+ * and a transport reporting itself closed is reopened.  The {@link Listener} is 
+ * told when the link comes back, so it can send the board its latch state again.
+ * 
+ * @author dfraser
+ *
+ */
+public class SupervisedDoorTransport implements DoorTransport {
+
+	private static Logger log = Logger.getLogger(SupervisedDoorTransport.class);
+	
+	/**
+	 * Opens the underlying transport.
+	 */
+	public interface Opener {
+		DoorTransport open() throws IOException;
+	}
+	
+	/**
+	 * Told when the link comes back.
+	 */
+	public interface Listener {
+		/**
+		 * Called on a reconnect thread once the transport has been reopened.
+		 */
+		void reconnected();
+	}
+	
+	private final String doorName;
+	private final Opener opener;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService opens;
+	private final Metrics.DoorMetrics metrics;
+	private final long minBackoffMillis;
+	private final long maxBackoffMillis;
+	private final boolean pushesFrames;
+	
+	/**
+	 * The open transport, or null while the link is down.
+	 */
+	private volatile DoorTransport current;
+	private volatile Listener listener;
+	private volatile DoorIoEngine.FrameHandler handler;
+	
+	// all guarded by this
+	private int eotChar = -1;
+	private int rxTimeout = 1000;
+	private DoorTransport failed;
+	private long downSince;
+	private long connectedAt;
+	private long backoffMillis;
+	private int attempts = 0;
+	private boolean opened = false;
+	private boolean closed = false;
+	
+	/**
+	 * Whether a frame has arrived on the current transport.
+	 */
+	private volatile boolean confirmed = false;
+	
+	/**
+	 * Starts opening the transport in the background.  Until it is open, the 
+	 * link is down.
+	 * 
+	 * @param doorName the name of the door, for logging
+	 * @param opener opens the underlying transport
+	 * @param session the session, for the reconnect threads and delays
+	 */
+	public SupervisedDoorTransport(String doorName, Opener opener, Session session) {
+		this(doorName, opener, session, false);
+	}
+	
+	/**
+	 * Starts opening the transport in the background.  Until it is open, the 
+	 * link is down.
+	 * 
+	 * @param doorName the name of the door, for logging
+	 * @param opener opens the underlying transport
+	 * @param session the session, for the reconnect threads and delays
+	 * @param pushesFrames whether the opener's transports push frames to a 
+	 *        {@link DoorIoEngine.FrameHandler}
+	 */
+	public SupervisedDoorTransport(String doorName, Opener opener, Session session, boolean pushesFrames) {
+		this.doorName = doorName;
+		this.pushesFrames = pushesFrames;
+		this.opener = opener;
+		this.scheduler = session.getDoorScheduler();
+		this.opens = session.getReconnectExecutor();
+		this.metrics = session.getMetrics().door(doorName);
+		this.minBackoffMillis = session.getReconnectMinMillis();
+		this.maxBackoffMillis = Math.max(minBackoffMillis, session.getReconnectMaxSeconds() * 1000L);
+		this.backoffMillis = minBackoffMillis;
+		this.downSince = System.nanoTime();
+		this.connectedAt = System.currentTimeMillis();
+		scheduleReopen(0);
+	}
+	
+	/**
+	 * Sets who to tell when the link comes back.
+	 * 
+	 * @param listener the listener
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Sets the handler on the current transport, and on each one opened after it.
+	 */
+	public synchronized boolean setFrameHandler(DoorIoEngine.FrameHandler handler) {
+		if (!pushesFrames) {
+			return false;
+		}
+		this.handler = handler;
+		if (current != null) {
+			current.setFrameHandler(supervise(current, handler));
+		}
+		return true;
+	}
+	
+	/**
+	 * Wraps the door's handler for one transport, to note when the link is 
+	 * confirmed and reopen it when it fails.
+	 */
+	private DoorIoEngine.FrameHandler supervise(final DoorTransport t, final DoorIoEngine.FrameHandler h) {
+		if (h == null) {
+			return null;
+		}
+		return new DoorIoEngine.FrameHandler() {
+			public void frame(byte[] frame, int length, long received) {
+				if (!confirmed) {
+					confirm(t);
+				}
+				h.frame(frame, length, received);
+			}
+			
+			public void closed(IOException cause) {
+				failed(t, cause.getMessage());
+			}
+		};
+	}
+	
+	public synchronized void enableFrameEvents(int eotChar) throws IOException {
+		this.eotChar = eotChar;
+		if (current != null) {
+			current.enableFrameEvents(eotChar);
+		}
+	}
+	
+	/**
+	 * Waits up to the receive timeout for the next frame.  While the link is 
+	 * down this just waits, for the link to come back or the timeout.
+	 */
+	public int receiveFrame(byte[] rxBuf) throws IOException {
+		DoorTransport t = current;
+		if (t == null) {
+			synchronized (this) {
+				if (current == null) {
+					try {
+						wait(rxTimeout);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			return 0;
+		}
+		int rc;
+		try {
+			rc = t.receiveFrame(rxBuf);
+		} catch (IOException e) {
+			failed(t, e.getMessage());
+			return 0;
+		}
+		if (rc > 0 && !confirmed) {
+			confirm(t);
+		}
+		return rc;
+	}
+	
+	public long getLastFrameTime() {
+		DoorTransport t = current;
+		return t != null ? t.getLastFrameTime() : 0;
+	}
+	
+	public int send(byte[] txBuf, int txLen) throws IOException {
+		DoorTransport t = current;
+		if (t == null) {
+			throw new IOException("link to door "+doorName+" is down");
+		}
+		try {
+			return t.send(txBuf, txLen);
+		} catch (IOException e) {
+			failed(t, e.getMessage());
+			throw e;
+		}
+	}
+	
+	public void flushReceiver() throws IOException {
+		DoorTransport t = current;
+		if (t != null) {
+			t.flushReceiver();
+		}
+	}
+	
+	public synchronized void setRxTimeout(int rxTimeout) {
+		this.rxTimeout = rxTimeout;
+		if (current != null) {
+			current.setRxTimeout(rxTimeout);
+		}
+	}
+	
+	/**
+	 * Closes the transport for good.
+	 */
+	public void close() {
+		DoorTransport t;
+		synchronized (this) {
+			closed = true;
+			t = current;
+			current = null;
+			notifyAll();
+		}
+		if (t != null) {
+			t.close();
+		}
+	}
+	
+	/**
+	 * Reports the link dead even though nothing has failed, e.g. because 
+	 * the board has stopped answering status requests, and reopens it.
+	 * 
+	 * @param reason why, for the log
+	 */
+	public void linkFailed(String reason) {
+		DoorTransport t = current;
+		if (t != null) {
+			failed(t, reason);
+		}
+	}
+	
+	/**
+	 * Returns whether the transport is open.
+	 * @return true unless the link is down
+	 */
+	public boolean isConnected() {
+		return current != null;
+	}
+	
+	/**
+	 * Returns when the current transport was opened.
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public synchronized long getConnectedAt() {
+		return connectedAt;
+	}
+	
+	/**
+	 * Returns how long the link has been down.
+	 * @return the time, in milliseconds, or 0 if it is up
+	 */
+	public synchronized long getDownMillis() {
+		return current == null && !closed ? (System.nanoTime() - downSince) / 1000000 : 0;
+	}
+	
+	/**
+	 * Takes a transport out of use and schedules it to be reopened, unless 
+	 * that has already happened.
+	 */
+	private void failed(DoorTransport t, String reason) {
+		long delay;
+		synchronized (this) {
+			if (current != t) {
+				return;
+			}
+			current = null;
+			failed = t;
+			downSince = System.nanoTime();
+			delay = nextDelay();
+		}
+		metrics.linkDowns.incrementAndGet();
+		log.error("link to door "+doorName+" failed ("+reason+"), reopening in "+delay+"ms");
+		scheduleReopen(delay);
+	}
+	
+	/**
+	 * Hands a reopen to a reconnect thread once the delay is up.  The timer 
+	 * itself only submits it, so it never blocks.
+	 */
+	private void scheduleReopen(long delayMillis) {
+		final Runnable task = new Runnable() {
+			public void run() {
+				reopen();
+			}
+		};
+		if (delayMillis <= 0) {
+			opens.execute(task);
+			return;
+		}
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				opens.execute(task);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs on a reconnect thread: closes the failed transport and tries to 
+	 * open a new one.
+	 */
+	private void reopen() {
+		DoorTransport old;
+		boolean first;
+		int tries;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			old = failed;
+			failed = null;
+			first = !opened;
+			tries = ++attempts;
+		}
+		if (old != null) {
+			closeQuietly(old);
+		}
+		DoorTransport t = null;
+		String error = null;
+		long down = 0;
+		try {
+			t = opener.open();
+			synchronized (this) {
+				if (closed) {
+					t.close();
+					return;
+				}
+				// set up under the lock, so a change to either can't be missed
+				if (eotChar != -1) {
+					t.enableFrameEvents(eotChar);
+				}
+				t.setRxTimeout(rxTimeout);
+				if (handler != null) {
+					t.setFrameHandler(supervise(t, handler));
+				}
+				confirmed = false;
+				current = t;
+				connectedAt = System.currentTimeMillis();
+				down = System.nanoTime() - downSince;
+				attempts = 0;
+				opened = true;
+				notifyAll();
+			}
+		} catch (IOException e) {
+			error = e.getMessage();
+		} catch (RuntimeException e) {
+			error = e.toString();
+		}
+		if (error != null) {
+			if (t != null) {
+				// opened but couldn't be set up; don't leak the port or socket
+				closeQuietly(t);
+			}
+			long delay;
+			synchronized (this) {
+				delay = nextDelay();
+			}
+			if (first && tries == 1) {
+				log.error("couldn't open the board for door "+doorName+", will keep trying: "+error);
+				metrics.linkDowns.incrementAndGet();
+			} else if (log.isInfoEnabled()) {
+				log.info("couldn't reopen link to door "+doorName+" (attempt "+tries+"): "
+						+error+", retrying in "+delay+"ms");
+			}
+			scheduleReopen(delay);
+			return;
+		}
+		if (first) {
+			if (log.isInfoEnabled()) {
+				log.info("link to door "+doorName+" opened");
+			}
+		} else {
+			metrics.reconnect.record(down / 1000);
+			metrics.downtimeMillis.addAndGet(down / 1000000);
+			log.warn("link to door "+doorName+" reopened after "+down / 1000000+"ms, "+tries+" attempts");
+		}
+		Listener l = listener;
+		if (l != null) {
+			l.reconnected();
+		}
+	}
+	
+	private void closeQuietly(DoorTransport t) {
+		try {
+			t.close();
+		} catch (RuntimeException e) {
+			// the device may already be gone
+			log.debug("error closing link to door "+doorName+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the delay before the next reopen, and doubles it for the one 
+	 * after.  Must be called with the lock held.
+	 */
+	private long nextDelay() {
+		long delay = backoffMillis;
+		backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+		return delay;
+	}
+	
+	/**
+	 * The first frame has arrived on a new connection, so it's good: the 
+	 * next failure is retried after the shortest delay again.
+	 */
+	private synchronized void confirm(DoorTransport t) {
+		if (current == t) {
+			confirmed = true;
+			backoffMillis = minBackoffMillis;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.onestopmediagroup.doorsecurity;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A door controller board reached through a serial-to-Ethernet converter, 
+ * which passes the board's serial data through a raw TCP connection.
+ * 
+ * The channel is non-blocking.  The door thread reads from it while waiting
+ * in {@link #receiveFrame(byte[])}, so no extra thread is needed per door.
+ * 
+ * @author dfraser
+ *
+ */
+public class TcpDoorTransport implements DoorTransport {
+
+	private static Logger log = Logger.getLogger(TcpDoorTransport.class);
+	
+	private static final int FRAME_BUFFER_SIZE = 4096;
+	
+	private final String address;
+	private final SocketChannel channel;
+	private final Selector readSelector;
+	private final Selector writeSelector;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(512);
+	
+	/**
+	 * The bytes of readBuffer, copied out for the frame buffer.
+	 */
+	private final byte[] chunk = new byte[512];
+	private FrameBuffer frames;
+	private volatile int receiveTimeout;
+	
+	/**
+	 * Connects to a serial-to-Ethernet converter.
+	 * 
+	 * @param host the converter's host name or address
+	 * @param port the TCP port the converter listens on
+	 * @param timeout the connect and receive timeout, in ms
+	 * @throws IOException if the connection could not be made
+	 */
+	public TcpDoorTransport(String host, int port, int timeout) throws IOException {
+		this.address = host+":"+port;
+		this.receiveTimeout = timeout;
+		log.debug("connecting to "+address);
+		channel = SocketChannel.open();
+		try {
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			channel.socket().connect(new InetSocketAddress(host, port), timeout);
+			channel.configureBlocking(false);
+			readSelector = Selector.open();
+			writeSelector = Selector.open();
+			channel.register(readSelector, SelectionKey.OP_READ);
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			channel.close();
+			throw new IOException("couldn't connect to "+address+": "+e.getMessage());
+		}
+		log.debug("connected to "+address);
+	}
+	
+	public synchronized void enableFrameEvents(int eotChar) throws IOException {
+		if (frames == null) {
+			frames = new FrameBuffer(FRAME_BUFFER_SIZE, eotChar);
+		}
+	}
+
+	public int receiveFrame(byte[] rxBuf) throws IOException {
+		if (frames == null) {
+			throw new IllegalStateException("frame events are not enabled");
+		}
+		long deadline = System.currentTimeMillis() + receiveTimeout;
+		try {
+			while (true) {
+				int rc = frames.take(rxBuf, 0);
+				if (rc > 0) {
+					return rc;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return 0;
+				}
+				readSelector.select(wait);
+				readSelector.selectedKeys().clear();
+				if (Thread.currentThread().isInterrupted()) {
+					return 0;
+				}
+				readAvailable();
+			}
+		} catch (InterruptedException ie) {
+			// same as a timeout, but leave the flag set for our caller
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+	
+	public long getLastFrameTime() {
+		return frames.getLastTakenTime();
+	}
+	
+	/**
+	 * Moves whatever bytes have arrived into the frame buffer.
+	 */
+	private void readAvailable() throws IOException {
+		while (true) {
+			readBuffer.clear();
+			int ret = channel.read(readBuffer);
+			if (ret < 0) {
+				throw new IOException("connection to "+address+" closed");
+			}
+			if (ret == 0) {
+				return;
+			}
+			readBuffer.flip();
+			readBuffer.get(chunk, 0, ret);
+			frames.write(chunk, 0, ret);
+		}
+	}
+
+	public synchronized int send(byte[] txBuf, int txLen) throws IOException {
+		if(txBuf == null || txBuf.length < 1) {
+			throw new IllegalArgumentException("txBuf is null or empty");
+		}
+		if(txLen > txBuf.length || txLen < 1) {			
+			throw new IllegalArgumentException("txLen is invalid: " + txLen);
+		}
+		ByteBuffer out = ByteBuffer.wrap(txBuf, 0, txLen);
+		long deadline = System.currentTimeMillis() + receiveTimeout;
+		while (out.hasRemaining()) {
+			if (channel.write(out) == 0) {
+				// the socket buffer is full, which only happens if the converter has stalled
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new IOException("timed out writing to "+address);
+				}
+				writeSelector.select(wait);
+				writeSelector.selectedKeys().clear();
+			}
+		}
+		return txLen;
+	}
+
+	public void flushReceiver() throws IOException {
+		if (frames != null) {
+			frames.clear();
+		}
+	}
+
+	/**
+	 * Frames are only read with {@link #receiveFrame(byte[])}.
+	 */
+	public boolean setFrameHandler(DoorIoEngine.FrameHandler handler) {
+		return false;
+	}
+
+	public void setRxTimeout(int rxTimeout) {
+		if (rxTimeout >= 0) {
+			this.receiveTimeout = rxTimeout;
+		}
+	}
+
+	public void close() {
+		try {
+			readSelector.close();
+			writeSelector.close();
+			channel.close();
+		} catch (IOException e) {
+			log.debug("error closing connection to "+address+": "+e.getMessage());
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "tcp://"+address;
+	}
+}
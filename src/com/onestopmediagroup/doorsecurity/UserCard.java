@@ -51,6 +51,16 @@ public class UserCard {
 	 * Whether or not this user has "magic" access.
 	 */
 	private final boolean magic;
+	
+	/**
+	 * The time the card becomes valid, in milliseconds since the epoch.
+	 */
+	private final long validFrom;
+	
+	/**
+	 * The time the card expires, in milliseconds since the epoch.
+	 */
+	private final long expires;
 
 	/**
 	 * Creates a new AccessInfo object. These objects are created by the AccessVerifier
@@ -60,10 +70,24 @@ public class UserCard {
 	 * @param magic whether or not the user has "magic" access
 	 */
 	protected UserCard(String realName, String nickName, boolean afterHours, boolean magic) {
+		this(realName, nickName, afterHours, magic, 0, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Creates a new AccessInfo object which is only valid for a limited time.
+	 * 
+	 * @param magic whether or not the user has "magic" access
+	 * @param validFrom the time the card becomes valid, in milliseconds since the epoch, or 0
+	 * @param expires the time the card expires, in milliseconds since the epoch, or Long.MAX_VALUE
+	 */
+	protected UserCard(String realName, String nickName, boolean afterHours, boolean magic, 
+			long validFrom, long expires) {
 		this.realName = realName;
 		this.nickName = nickName;
 		this.afterHoursAllowed = afterHours;
 		this.magic = magic;
+		this.validFrom = validFrom;
+		this.expires = expires;
 	}
 
 	public String getRealName() {
@@ -81,6 +105,31 @@ public class UserCard {
 	public boolean isMagic() {
 		return magic;
 	}
+	
+	public long getValidFrom() {
+		return validFrom;
+	}
+	
+	public long getExpires() {
+		return expires;
+	}
+	
+	/**
+	 * Whether the card has a valid-from or expiry time set.
+	 * @return true if the card is only valid for a limited time
+	 */
+	public boolean isTimeLimited() {
+		return validFrom != 0 || expires != Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Checks whether the card is valid at a given time.
+	 * @param now the time, in milliseconds since the epoch
+	 * @return true if the card has become valid and not yet expired
+	 */
+	public boolean isValidAt(long now) {
+		return validFrom < now && now < expires;
+	}
 
 	
 
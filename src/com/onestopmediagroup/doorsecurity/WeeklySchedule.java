@@ -0,0 +1,192 @@
+/*
+ * Copyright 2008 Dan Fraser
+ *
+ * This file is part of Cerberus-Prox.
+ *
+ * Cerberus-Prox is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Cerberus-Prox is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cerberus-Prox.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.onestopmediagroup.doorsecurity;
+
+import java.util.Arrays;
+
+/**
+ * The minutes of the week at which access is allowed, as a bitmap of 10,080 
+ * bits (one per minute, Monday 00:00 first).  Built once when the 
+ * configuration or cache is loaded, so that checking a swipe is a single 
+ * bit test.
+ * 
+ * Immutable once built.
+ * 
+ * @author dfraser
+ *
+ */
+public final class WeeklySchedule {
+
+	public static final int MINUTES_PER_DAY = 24 * 60;
+	public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+	
+	/**
+	 * A schedule allowing every minute of the week.
+	 */
+	public static final WeeklySchedule ALWAYS = new Builder().allow(0, MINUTES_PER_WEEK).build();
+	
+	private final long[] bits;
+	
+	private WeeklySchedule(long[] bits) {
+		this.bits = bits;
+	}
+	
+	/**
+	 * Builds the schedule described by the afterHoursStart and afterHoursEnd 
+	 * settings: Monday to Friday are allowed except between the two times, 
+	 * and Saturday and Sunday are not allowed at all.
+	 * 
+	 * @param afterHoursStart the time at which after hours starts, as HHmm
+	 * @param afterHoursEnd the time at which after hours ends, as HHmm
+	 * @return the schedule
+	 */
+	public static WeeklySchedule officeHours(int afterHoursStart, int afterHoursEnd) {
+		Builder b = new Builder();
+		for (int day = 0; day < 5; day++) {
+			for (int m = 0; m < MINUTES_PER_DAY; m++) {
+				int time = (m / 60) * 100 + m % 60;
+				boolean afterHours;
+				if (afterHoursStart > afterHoursEnd) {
+					// crossing midnight
+					afterHours = time >= afterHoursStart || time < afterHoursEnd;
+				} else {
+					afterHours = time >= afterHoursStart && time < afterHoursEnd;
+				}
+				if (!afterHours) {
+					b.allow(day * MINUTES_PER_DAY + m, day * MINUTES_PER_DAY + m + 1);
+				}
+			}
+		}
+		return b.build();
+	}
+	
+	/**
+	 * Checks whether access is allowed at a given minute.
+	 * 
+	 * @param minuteOfWeek minutes since Monday 00:00, from 0 to 10079
+	 * @return true if access is allowed
+	 */
+	public boolean allows(int minuteOfWeek) {
+		return (bits[minuteOfWeek >>> 6] & (1L << minuteOfWeek)) != 0;
+	}
+	
+	/**
+	 * Returns a schedule allowing every minute allowed by either this schedule or another.
+	 * 
+	 * @param other the other schedule
+	 * @return the combined schedule
+	 */
+	public WeeklySchedule union(WeeklySchedule other) {
+		long[] combined = new long[bits.length];
+		for (int i = 0; i < bits.length; i++) {
+			combined[i] = bits[i] | other.bits[i];
+		}
+		return new WeeklySchedule(combined);
+	}
+	
+	/**
+	 * Returns the raw bitmap, for saving.  It must not be modified.
+	 */
+	long[] getBits() {
+		return bits;
+	}
+	
+	/**
+	 * Rebuilds a schedule from a bitmap returned by {@link #getBits()}.
+	 */
+	static WeeklySchedule fromBits(long[] bits) {
+		if (bits.length != (MINUTES_PER_WEEK + 63) / 64) {
+			throw new IllegalArgumentException("wrong bitmap length "+bits.length);
+		}
+		return new WeeklySchedule(bits.clone());
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof WeeklySchedule && Arrays.equals(bits, ((WeeklySchedule) o).bits);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bits);
+	}
+	
+	/**
+	 * Builds a schedule from a set of allowed time windows.
+	 */
+	public static class Builder {
+		
+		private final long[] bits = new long[(MINUTES_PER_WEEK + 63) / 64];
+		
+		/**
+		 * Allows a time window on one day of the week.  A window which ends 
+		 * at or before its start runs past midnight into the next day (Sunday 
+		 * wraps round to Monday).
+		 * 
+		 * @param day the day of the week, 0 for Monday to 6 for Sunday
+		 * @param startMinute the first allowed minute of the day
+		 * @param endMinute the minute of the day after the last allowed one;
+		 *        1440 for the end of the day
+		 * @return this builder
+		 */
+		public Builder allow(int day, int startMinute, int endMinute) {
+			if (day < 0 || day > 6) {
+				throw new IllegalArgumentException("bad day of week "+day);
+			}
+			if (startMinute < 0 || startMinute >= MINUTES_PER_DAY || endMinute < 0 || endMinute > MINUTES_PER_DAY) {
+				throw new IllegalArgumentException("bad time window "+startMinute+"-"+endMinute);
+			}
+			int start = day * MINUTES_PER_DAY + startMinute;
+			int end = day * MINUTES_PER_DAY + endMinute;
+			if (endMinute <= startMinute) {
+				end += MINUTES_PER_DAY;
+			}
+			if (end > MINUTES_PER_WEEK) {
+				allow(start, MINUTES_PER_WEEK);
+				allow(0, end - MINUTES_PER_WEEK);
+			} else {
+				allow(start, end);
+			}
+			return this;
+		}
+		
+		/**
+		 * Allows a range of minutes of the week.
+		 * 
+		 * @param start the first allowed minute since Monday 00:00
+		 * @param end the minute after the last allowed one
+		 * @return this builder
+		 */
+		public Builder allow(int start, int end) {
+			for (int m = start; m < end; m++) {
+				bits[m >>> 6] |= 1L << m;
+			}
+			return this;
+		}
+		
+		/**
+		 * Returns the schedule built so far.
+		 */
+		public WeeklySchedule build() {
+			return new WeeklySchedule(bits.clone());
+		}
+	}
+}